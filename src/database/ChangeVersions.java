@@ -0,0 +1,185 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the in-process caches of several application instances sharing one database coherent. CHANGE_VERSION
+// holds one counter per cached table; every repository write to such a table bumps its counter on the write's own
+// connection, so the bump commits or rolls back with the change. Caches call check() before they answer; at most
+// once every -Dclinicdb.cache.pollMillis (default 1000, 0 for every call) it reads the few counters, and for each
+// table whose counter moved runs the invalidations registered for that table only. A change made by another
+// instance is therefore seen within one poll interval of the next read; this instance's own writes already
+// invalidate directly. Inside a unit of work nothing is polled: the transaction's snapshot is no news, and caches
+// keep nothing they load there. A bump made in a transaction reads back the version it produced and, once the
+// transaction commits, notes it as this instance's own, so the poll that sees it does not throw away caches the
+// write already invalidated precisely; a table whose counter moved only by such versions runs no invalidations.
+// (Auto-commit bumps are not noted: another instance's bump could slip in before the read back.) When the
+// counters cannot be read every registered cache is invalidated, since none of them can be vouched for; the last
+// versions read are kept for comparison once polling works again, and polls back off from RETRY_MIN_MILLIS to
+// RETRY_MAX_MILLIS meanwhile, so an outage does not turn every cache read into a connection attempt.
+public final class ChangeVersions {
+    private static final long POLL_INTERVAL_MILLIS = Long.getLong("clinicdb.cache.pollMillis", 1000L);
+    private static final long RETRY_MIN_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+    static final String SELECT_VERSIONS = "SELECT table_name, version FROM CHANGE_VERSION";
+    private static final String BUMP_VERSION = "UPDATE CHANGE_VERSION SET version = version + 1 WHERE table_name = ?";
+    private static final String SELECT_VERSION = "SELECT version FROM CHANGE_VERSION WHERE table_name = ?";
+
+    private static final Map<String, List<Runnable>> INVALIDATIONS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> CHANGES_SEEN = new ConcurrentHashMap<>();
+    // Versions this instance's own committed bumps produced, until a poll has seen them
+    private static final Map<String, Set<Long>> OWN_VERSIONS = new ConcurrentHashMap<>();
+    private static final AtomicLong NEXT_POLL_AT = new AtomicLong(Long.MIN_VALUE);
+    private static final LongAdder POLLS = new LongAdder();
+    private static final LongAdder FAILED_POLLS = new LongAdder();
+    // Written only under the class lock, by the thread that polls
+    private static volatile Map<String, Long> seen;
+    private static boolean failing;
+    private static long retryMillis;
+
+    private ChangeVersions() { }
+
+    // The invalidation runs whenever another instance may have changed the table
+    public static void register(String table, Runnable invalidation) {
+        INVALIDATIONS.computeIfAbsent(table, t -> new CopyOnWriteArrayList<>()).add(invalidation);
+    }
+
+    // Called by writes, on the connection that made the change
+    public static void bump(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(BUMP_VERSION)) {
+            statement.setString(1, table);
+            statement.executeUpdate();
+        }
+        if (connection.getAutoCommit()) {
+            return;
+        }
+        // The row stays locked until the transaction ends, so this is the version the bump produced
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_VERSION)) {
+            statement.setString(1, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    long version = resultSet.getLong(1);
+                    UnitOfWork.afterCommit(() ->
+                            OWN_VERSIONS.computeIfAbsent(table, t -> ConcurrentHashMap.newKeySet()).add(version));
+                }
+            }
+        }
+    }
+
+    public static void check() {
+        if (UnitOfWork.isActive()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long due = NEXT_POLL_AT.get();
+        if (now < due) {
+            return;
+        }
+        if (seen == null) {
+            pollFirst();
+        } else if (NEXT_POLL_AT.compareAndSet(due, now + POLL_INTERVAL_MILLIS)) {
+            poll();
+        }
+    }
+
+    // Whatever was loaded before the first successful poll is invalidated by it, so a change in between is not lost
+    private static synchronized void pollFirst() {
+        long now = System.currentTimeMillis();
+        if (seen == null && now >= NEXT_POLL_AT.get()) {
+            NEXT_POLL_AT.set(now + POLL_INTERVAL_MILLIS);
+            poll();
+        }
+    }
+
+    public static String summary() {
+        StringBuilder summary = new StringBuilder("Change versions (polled every " + POLL_INTERVAL_MILLIS + " ms): "
+                + POLLS.sum() + " polls, " + FAILED_POLLS.sum() + " failed\n");
+        Map<String, Long> versions = seen;
+        for (String table : INVALIDATIONS.keySet()) {
+            LongAdder changes = CHANGES_SEEN.get(table);
+            summary.append("    ").append(table).append(": version ")
+                    .append(versions == null ? "unknown" : String.valueOf(versions.getOrDefault(table, 0L)))
+                    .append(", ").append(changes == null ? 0 : changes.sum()).append(" changes seen\n");
+        }
+        return summary.toString();
+    }
+
+    private static synchronized void poll() {
+        POLLS.increment();
+        Map<String, Long> versions = new HashMap<>();
+        try (Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(SELECT_VERSIONS)) {
+            while (resultSet.next()) {
+                versions.put(resultSet.getString("table_name"), resultSet.getLong("version"));
+            }
+        } catch (SQLException e) {
+            FAILED_POLLS.increment();
+            if (!failing) {
+                System.out.println("\nCache change versions could not be read, caches are dropped until they can: " + e.getMessage());
+                failing = true;
+            }
+            retryMillis = Math.min(RETRY_MAX_MILLIS,
+                    Math.max(Math.max(RETRY_MIN_MILLIS, POLL_INTERVAL_MILLIS), retryMillis * 2));
+            NEXT_POLL_AT.set(System.currentTimeMillis() + retryMillis);
+            for (String table : INVALIDATIONS.keySet()) {
+                invalidate(table);
+            }
+            return;
+        }
+        failing = false;
+        retryMillis = 0;
+        Map<String, Long> previous = seen;
+        seen = versions;
+        if (previous == null) {
+            // Whatever was cached before the first successful poll may be older than these versions
+            for (String table : INVALIDATIONS.keySet()) {
+                invalidate(table);
+            }
+            return;
+        }
+        for (String table : INVALIDATIONS.keySet()) {
+            long from = previous.getOrDefault(table, 0L);
+            long to = versions.getOrDefault(table, 0L);
+            if (to != from && !onlyOwn(table, from, to)) {
+                CHANGES_SEEN.computeIfAbsent(table, t -> new LongAdder()).increment();
+                invalidate(table);
+            }
+        }
+    }
+
+    // True when every version after from up to to came from this instance; forgets the ones up to to either way
+    private static boolean onlyOwn(String table, long from, long to) {
+        Set<Long> own = OWN_VERSIONS.get(table);
+        if (own == null) {
+            return false;
+        }
+        boolean onlyOwn = to > from && to - from <= own.size();
+        for (long version = from + 1; onlyOwn && version <= to; version++) {
+            onlyOwn = own.contains(version);
+        }
+        own.removeIf(version -> version <= to);
+        return onlyOwn;
+    }
+
+    private static void invalidate(String table) {
+        for (Runnable invalidation : INVALIDATIONS.getOrDefault(table, List.of())) {
+            try {
+                invalidation.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
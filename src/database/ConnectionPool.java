@@ -0,0 +1,363 @@
+package database;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionPool {
+    // A connection used this recently is assumed alive and skips the validation round trip
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final DataSource dataSource;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final int statementCacheSize;
+
+    private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final StatementCache.Statistics statementCacheStatistics = new StatementCache.Statistics();
+    private final LeakDetector leakDetector;
+    private final SlowQueryLog slowQueryLog;
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean shutdown;
+
+    public ConnectionPool(DataSource dataSource, int minSize, int maxSize,
+                          long idleTimeoutMillis, long borrowTimeoutMillis, int statementCacheSize,
+                          LeakDetector leakDetector, SlowQueryLog slowQueryLog) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.dataSource = dataSource;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.leakDetector = leakDetector;
+        this.slowQueryLog = slowQueryLog;
+        this.permits = new Semaphore(maxSize, true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool has been shut down");
+        }
+        // An operation with a deadline waits no longer than its remaining time
+        Deadline deadline = Deadline.current();
+        long waitMillis = borrowTimeoutMillis;
+        if (deadline != null) {
+            deadline.checkExpired();
+            waitMillis = Math.min(waitMillis, deadline.remainingMillis());
+        }
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                if (waitMillis < borrowTimeoutMillis) {
+                    throw deadline.timedOut(null);
+                }
+                throw new SQLTransientConnectionException("Timed out after " + borrowTimeoutMillis
+                        + " ms waiting for a database connection (pool max size " + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (isAlive(pooled)) {
+                    return checkout(pooled);
+                }
+                discard(pooled);
+            }
+            return checkout(open());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        evictor.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = pollIdle()) != null) {
+            discard(pooled);
+        }
+        slowQueryLog.close();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public int getTotalCount() {
+        return totalConnections.get();
+    }
+
+    public synchronized int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public StatementCache.Statistics getStatementCacheStatistics() {
+        return statementCacheStatistics;
+    }
+
+    public LeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[active=" + getActiveCount() + ", idle=" + getIdleCount()
+                + ", total=" + getTotalCount() + ", waiting=" + getWaitingCount()
+                + ", min=" + minSize + ", max=" + maxSize + "]";
+    }
+
+    private Connection checkout(PooledConnection pooled) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new CheckedOutConnection(pooled, leakDetector.checkedOut()));
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            if (shutdown || pooled.broken || pooled.physical.isClosed() || totalConnections.get() > maxSize) {
+                discard(pooled);
+                return;
+            }
+            // Never hand the next caller someone else's half-finished transaction
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            pooled.physical.clearWarnings();
+            pooled.lastUsedAt = System.currentTimeMillis();
+            synchronized (this) {
+                idleConnections.addFirst(pooled);
+            }
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private synchronized PooledConnection pollIdle() {
+        return idleConnections.pollFirst();
+    }
+
+    private boolean isAlive(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsedAt < VALIDATION_BYPASS_MILLIS) {
+            return true;
+        }
+        try {
+            return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection physical = dataSource.getConnection();
+        totalConnections.incrementAndGet();
+        return new PooledConnection(physical, new StatementCache(statementCacheSize, statementCacheStatistics));
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        pooled.statementCache.closeAll();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // The connection is being thrown away, nothing more to do with it
+        }
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            // The idle deque is most-recently-used first, so the stalest connections sit at the tail
+            Iterator<PooledConnection> iterator = idleConnections.descendingIterator();
+            while (iterator.hasNext() && totalConnections.get() > minSize) {
+                PooledConnection pooled = iterator.next();
+                if (now - pooled.lastUsedAt < idleTimeoutMillis) {
+                    break;
+                }
+                iterator.remove();
+                discard(pooled);
+            }
+        }
+        while (!shutdown && totalConnections.get() < minSize) {
+            try {
+                PooledConnection pooled = open();
+                synchronized (this) {
+                    idleConnections.addLast(pooled);
+                }
+            } catch (SQLException e) {
+                System.out.println("Connection pool could not open a connection: " + e.getMessage());
+                break;
+            }
+        }
+    }
+
+    private static final class PooledConnection {
+        private final Connection physical;
+        private final StatementCache statementCache;
+        private volatile long lastUsedAt;
+        private volatile boolean broken;
+
+        private PooledConnection(Connection physical, StatementCache statementCache) {
+            this.physical = physical;
+            this.statementCache = statementCache;
+            this.lastUsedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final class CheckedOutConnection implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final LeakDetector.Checkout checkout;
+        // Closing a pooled connection does not close the physical one, so its statements are closed here instead.
+        // Each one maps to where it was created when the leak detector captures stack traces.
+        private final Map<Statement, Throwable> openStatements = new IdentityHashMap<>();
+        private boolean closed;
+
+        private CheckedOutConnection(PooledConnection pooled, LeakDetector.Checkout checkout) {
+            this.pooled = pooled;
+            this.checkout = checkout;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        closeStatements();
+                        leakDetector.returned(checkout);
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.physical + (closed ? ", returned" : "") + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            try {
+                if (isCacheablePrepare(method, args)) {
+                    PreparedStatement statement = pooled.statementCache.prepare((Connection) proxy, pooled.physical,
+                            (String) args[0], args.length == 2 ? (Integer) args[1] : null);
+                    return track(statement, method.getReturnType(), (String) args[0]);
+                }
+                Object result = method.invoke(pooled.physical, args);
+                if (result instanceof Statement) {
+                    String sql = method.getName().startsWith("prepare") ? (String) args[0] : null;
+                    return track((Statement) result, method.getReturnType(), sql);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                // SQL state class 08 means the link itself failed, so the connection must not be reused
+                if (cause instanceof SQLException) {
+                    String sqlState = ((SQLException) cause).getSQLState();
+                    if (sqlState != null && sqlState.startsWith("08")) {
+                        pooled.broken = true;
+                    }
+                }
+                throw cause;
+            }
+        }
+
+        // Only prepareStatement(sql) and prepareStatement(sql, autoGeneratedKeys) are cached
+        private boolean isCacheablePrepare(Method method, Object[] args) {
+            return pooled.statementCache.isEnabled()
+                    && method.getName().equals("prepareStatement")
+                    && (args.length == 1 || (args.length == 2 && args[1] instanceof Integer));
+        }
+
+        private Statement track(Statement statement, Class<?> statementType, String sql) {
+            if (openStatements.size() >= 32) {
+                openStatements.keySet().removeIf(tracked -> {
+                    try {
+                        return tracked.isClosed();
+                    } catch (SQLException e) {
+                        return true;
+                    }
+                });
+            }
+            Deadline deadline = Deadline.current();
+            if (deadline != null) {
+                statement = deadline.guard(statement, statementType);
+            }
+            statement = slowQueryLog.track(statement, statementType, sql);
+            Statement tracked = leakDetector.track(statement, statementType);
+            openStatements.put(tracked, leakDetector.allocationSite());
+            return tracked;
+        }
+
+        private void closeStatements() {
+            for (Map.Entry<Statement, Throwable> entry : openStatements.entrySet()) {
+                Statement statement = entry.getKey();
+                try {
+                    if (!statement.isClosed()) {
+                        leakDetector.statementLeaked(statement, entry.getValue());
+                    }
+                    statement.close();
+                } catch (SQLException e) {
+                    pooled.broken = true;
+                }
+            }
+            openStatements.clear();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package database;
+
+public enum DatabaseBackend {
+    MYSQL("jdbc:mysql://127.0.0.1:3306/clinicdb?useServerPrepStmts=true", "root", "12345678", SqlDialect.MYSQL),
+    // In-process H2 database for load tests, benchmarks and CI; needs the H2 driver on the classpath
+    EMBEDDED("jdbc:h2:mem:clinicdb;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "", SqlDialect.H2);
+
+    private final String defaultUrl;
+    private final String defaultUser;
+    private final String defaultPassword;
+    private final SqlDialect dialect;
+
+    DatabaseBackend(String defaultUrl, String defaultUser, String defaultPassword, SqlDialect dialect) {
+        this.defaultUrl = defaultUrl;
+        this.defaultUser = defaultUser;
+        this.defaultPassword = defaultPassword;
+        this.dialect = dialect;
+    }
+
+    public String getDefaultUrl() {
+        return defaultUrl;
+    }
+
+    public String getDefaultUser() {
+        return defaultUser;
+    }
+
+    public String getDefaultPassword() {
+        return defaultPassword;
+    }
+
+    public SqlDialect getDialect() {
+        return dialect;
+    }
+
+    public static DatabaseBackend fromName(String name) {
+        for (DatabaseBackend backend : values()) {
+            if (backend.name().equalsIgnoreCase(name.trim())) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown database backend '" + name + "', expected one of mysql, embedded");
+    }
+}
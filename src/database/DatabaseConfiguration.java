@@ -2,50 +2,91 @@ package database;
 
 import services.Audit;
 
-import java.io.IOException;
+import javax.sql.DataSource;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class DatabaseConfiguration {
-    private static final String DB_URL = "jdbc:mysql://127.0.0.1:3306/clinicdb";
-    private static final String USER = "root";
-    private static final String PASSWORD = "12345678";
+    // -Dclinicdb.backend=embedded runs everything against an in-process database instead of the MySQL server;
+    // clinicdb.url, clinicdb.user and clinicdb.password override the backend's defaults
+    private static final DatabaseBackend BACKEND = DatabaseBackend.fromName(System.getProperty("clinicdb.backend", "mysql"));
+    private static final String DB_URL = System.getProperty("clinicdb.url", BACKEND.getDefaultUrl());
+    private static final String USER = System.getProperty("clinicdb.user", BACKEND.getDefaultUser());
+    private static final String PASSWORD = System.getProperty("clinicdb.password", BACKEND.getDefaultPassword());
+
+    private static final int POOL_MIN_SIZE = Integer.getInteger("clinicdb.pool.minSize", 2);
+    private static final int POOL_MAX_SIZE = Integer.getInteger("clinicdb.pool.maxSize", 10);
+    private static final long POOL_IDLE_TIMEOUT_MILLIS = Long.getLong("clinicdb.pool.idleTimeoutMillis", 5 * 60 * 1000L);
+    private static final long POOL_BORROW_TIMEOUT_MILLIS = Long.getLong("clinicdb.pool.borrowTimeoutMillis", 30 * 1000L);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("clinicdb.pool.statementCacheSize", 64);
+    // Connections held longer than this are reported; -Dclinicdb.leakDetection=true also records where
+    // every statement and result set was created
+    private static final long LEAK_THRESHOLD_MILLIS = Long.getLong("clinicdb.leakDetection.thresholdMillis", 2000L);
+    private static final boolean LEAK_STACK_TRACES = Boolean.getBoolean("clinicdb.leakDetection");
+    // -Dclinicdb.slowQueryLog=true writes statements slower than the threshold to a rolling file,
+    // with their execution plan once they pass the explain threshold
+    private static final boolean SLOW_QUERY_LOG = Boolean.getBoolean("clinicdb.slowQueryLog");
+    private static final long SLOW_QUERY_THRESHOLD_MILLIS = Long.getLong("clinicdb.slowQueryLog.thresholdMillis", 200L);
+    private static final long SLOW_QUERY_EXPLAIN_MILLIS = Long.getLong("clinicdb.slowQueryLog.explainThresholdMillis", 1000L);
+    private static final String SLOW_QUERY_FILE = System.getProperty("clinicdb.slowQueryLog.file", "src/Files/slow-queries.log");
+    private static final long SLOW_QUERY_MAX_FILE_BYTES = Long.getLong("clinicdb.slowQueryLog.maxFileBytes", 10L * 1024 * 1024);
+    private static final int SLOW_QUERY_MAX_FILES = Integer.getInteger("clinicdb.slowQueryLog.maxFiles", 5);
 
     private static Audit audit = Audit.getInstance();
-    private static Connection databaseConnection;
+    private static DataSource dataSource = new DriverManagerDataSource(DB_URL, USER, PASSWORD);
+    private static SqlDialect dialect = BACKEND.getDialect();
+    private static volatile ConnectionPool connectionPool;
 
     private DatabaseConfiguration() { }
 
-    public static Connection getDatabaseConnection() {
-        try {
-            if (databaseConnection == null || databaseConnection.isClosed()) {
-                databaseConnection = DriverManager.getConnection(DB_URL, USER, PASSWORD);
-                //audit.logAction("Open connection with database");
-            }else {
-                System.out.println("Connection Failed");
-                //audit.logAction("Connection failed with database!");
+    // Lets benchmarks and tests point the repositories at their own database; the current pool is closed
+    public static void useDataSource(DataSource newDataSource, SqlDialect newDialect) {
+        synchronized (DatabaseConfiguration.class) {
+            closeDatabaseConnection();
+            dataSource = newDataSource;
+            dialect = newDialect;
+        }
+    }
+
+    public static SqlDialect getDialect() {
+        return dialect;
+    }
+
+    public static ConnectionPool getConnectionPool() {
+        ConnectionPool pool = connectionPool;
+        if (pool == null || pool.isShutdown()) {
+            synchronized (DatabaseConfiguration.class) {
+                pool = connectionPool;
+                if (pool == null || pool.isShutdown()) {
+                    pool = new ConnectionPool(dataSource, POOL_MIN_SIZE, POOL_MAX_SIZE,
+                            POOL_IDLE_TIMEOUT_MILLIS, POOL_BORROW_TIMEOUT_MILLIS, STATEMENT_CACHE_SIZE,
+                            new LeakDetector(LEAK_THRESHOLD_MILLIS, LEAK_STACK_TRACES),
+                            new SlowQueryLog(SLOW_QUERY_LOG, SLOW_QUERY_THRESHOLD_MILLIS, SLOW_QUERY_EXPLAIN_MILLIS,
+                                    Paths.get(SLOW_QUERY_FILE), SLOW_QUERY_MAX_FILE_BYTES, SLOW_QUERY_MAX_FILES, dataSource));
+                    connectionPool = pool;
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-//        catch (IOException e) {
-//            throw new RuntimeException(e);
-//        }
-        return databaseConnection;
+        return pool;
+    }
+
+    // Every caller gets its own connection; closing it hands it back to the pool.
+    // Inside a UnitOfWork the caller joins the transaction's connection instead.
+    public static Connection getDatabaseConnection() throws SQLException {
+        Connection transactional = UnitOfWork.currentConnection();
+        if (transactional != null) {
+            return transactional;
+        }
+        return getConnectionPool().borrow();
     }
 
     public static void closeDatabaseConnection() {
-        try {
-            if (databaseConnection != null && !databaseConnection.isClosed()) {
-                databaseConnection.close();
-                //audit.logAction("Close connection with database");
+        synchronized (DatabaseConfiguration.class) {
+            if (connectionPool != null) {
+                connectionPool.shutdown();
+                connectionPool = null;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-//        catch (IOException e) {
-//            throw new RuntimeException(e);
-//        }
     }
 }
@@ -0,0 +1,210 @@
+package database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Time budget for one repository operation, bound to the current thread for as long as it is open:
+//
+//     try (Deadline deadline = Deadline.start("PatientRepository.searchPatientsByName");
+//          Connection connection = DatabaseConfiguration.getDatabaseConnection()) { ... }
+//
+// The budget comes from -Dclinicdb.timeout.<operation>=<millis>, falling back to -Dclinicdb.timeout.defaultMillis.
+// While it is open the pool waits for a connection no longer than the time left, and every statement it hands out
+// gets the remaining time as its query timeout. Once the deadline has passed no further statement is started,
+// so a slow operation gives up instead of queueing more work. Either way the caller gets a QueryTimeoutException.
+// An operation started inside another one never outlives the enclosing deadline, nor one started on another thread
+// on its behalf (see carry).
+public final class Deadline implements AutoCloseable {
+    private static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("clinicdb.timeout.defaultMillis", 10_000L);
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    private static final Map<String, Counters> COUNTERS = new ConcurrentHashMap<>();
+
+    private final String operation;
+    private final long timeoutMillis;
+    private final long startedAt;
+    private final long expiresAt;
+    private final Deadline outer;
+    private boolean closed;
+
+    private Deadline(String operation, long timeoutMillis, long startedAt, long expiresAt, Deadline outer) {
+        this.operation = operation;
+        this.timeoutMillis = timeoutMillis;
+        this.startedAt = startedAt;
+        this.expiresAt = expiresAt;
+        this.outer = outer;
+    }
+
+    public static Deadline start(String operation) {
+        long timeoutMillis = Long.getLong("clinicdb.timeout." + operation, DEFAULT_TIMEOUT_MILLIS);
+        long startedAt = System.nanoTime();
+        long expiresAt = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Deadline outer = CURRENT.get();
+        if (outer != null && outer.expiresAt - expiresAt < 0) {
+            expiresAt = outer.expiresAt;
+        }
+        Deadline deadline = new Deadline(operation, timeoutMillis, startedAt, expiresAt, outer);
+        counters(operation).calls.increment();
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    // Binds a deadline opened on another thread to this one as well, for work handed off to an executor: until it
+    // is closed, operations started here never outlive it. Null, which try-with-resources skips, when there is none.
+    public static Deadline carry(Deadline deadline) {
+        if (deadline == null) {
+            return null;
+        }
+        Deadline carried = new Deadline(deadline.operation, deadline.timeoutMillis, deadline.startedAt, deadline.expiresAt,
+                CURRENT.get());
+        CURRENT.set(carried);
+        return carried;
+    }
+
+    // The innermost operation open on this thread, or null outside of one
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    // Cooperative cancellation point: called before any new database work is started
+    public void checkExpired() throws QueryTimeoutException {
+        if (isExpired()) {
+            throw timedOut(null);
+        }
+    }
+
+    QueryTimeoutException timedOut(Throwable cause) {
+        counters(operation).timeouts.increment();
+        return new QueryTimeoutException(operation, timeoutMillis, cause);
+    }
+
+    // Hands out the statement with the deadline applied to every execution
+    Statement guard(Statement statement, Class<?> statementType) {
+        return (Statement) Proxy.newProxyInstance(
+                statementType.getClassLoader(),
+                new Class<?>[]{statementType},
+                new GuardedStatement(statement));
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (outer != null) {
+            CURRENT.set(outer);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    public static String summary() {
+        List<String> operations = new ArrayList<>(COUNTERS.keySet());
+        operations.sort(null);
+        StringBuilder summary = new StringBuilder("Query deadlines (default " + DEFAULT_TIMEOUT_MILLIS + " ms):\n");
+        for (String operation : operations) {
+            Counters counters = COUNTERS.get(operation);
+            summary.append("    ").append(operation)
+                    .append(": calls=").append(counters.calls.sum())
+                    .append(", timeouts=").append(counters.timeouts.sum()).append("\n");
+        }
+        return summary.toString();
+    }
+
+    public static long getTimeoutCount(String operation) {
+        Counters counters = COUNTERS.get(operation);
+        return counters == null ? 0 : counters.timeouts.sum();
+    }
+
+    private static Counters counters(String operation) {
+        return COUNTERS.computeIfAbsent(operation, key -> new Counters());
+    }
+
+    private static final class Counters {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+    }
+
+    private final class GuardedStatement implements InvocationHandler {
+        private final Statement statement;
+
+        private GuardedStatement(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return statement.toString();
+                default:
+                    break;
+            }
+            if (!method.getName().startsWith("execute")) {
+                try {
+                    return method.invoke(statement, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+
+            checkExpired();
+            // Query timeouts are whole seconds; round up so a short budget is not turned into "no timeout"
+            long remaining = remainingMillis();
+            statement.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLTimeoutException && !(cause instanceof QueryTimeoutException)) {
+                    throw timedOut(cause);
+                }
+                throw cause;
+            } finally {
+                resetQueryTimeout();
+            }
+        }
+
+        // The physical statement may be cached and reused by a caller without a deadline
+        private void resetQueryTimeout() {
+            try {
+                if (!statement.isClosed()) {
+                    statement.setQueryTimeout(0);
+                }
+            } catch (SQLException e) {
+                // The statement is unusable anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// A secondary index the repositories' queries rely on. The schema creates it through a migration; the query
+// plan check lists the declared indexes next to any full table scan it finds.
+public final class IndexDefinition {
+    private final String name;
+    private final String table;
+    private final List<String> columns;
+
+    public IndexDefinition(String name, String table, String... columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("Index " + name + " needs at least one column");
+        }
+        this.name = name;
+        this.table = table;
+        this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public String createStatement() {
+        return "CREATE INDEX " + name + " ON " + table + "(" + String.join(", ", columns) + ")";
+    }
+
+    public boolean existsIn(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet indexInfo = metaData.getIndexInfo(connection.getCatalog(), null, table, false, true)) {
+            while (indexInfo.next()) {
+                if (name.equalsIgnoreCase(indexInfo.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name + " ON " + table + "(" + String.join(", ", columns) + ")";
+    }
+}
@@ -0,0 +1,235 @@
+package database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Watches how the pool's connections are used. Checkout durations are always recorded and any checkout held
+// longer than the threshold is flagged. Statements and result sets still open when their connection goes back
+// to the pool are leaks: the pool closes them, and they are counted here. With stack trace capture on
+// (-Dclinicdb.leakDetection=true) every statement and result set remembers where it was created, so the
+// summary can point at the code that leaked it.
+public class LeakDetector {
+    private static final int REPORTED_SITES = 10;
+
+    private final long thresholdMillis;
+    private final boolean captureStackTraces;
+
+    private final Set<Checkout> activeCheckouts = ConcurrentHashMap.newKeySet();
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder totalHeldNanos = new LongAdder();
+    private final AtomicLong maxHeldNanos = new AtomicLong();
+    private final LongAdder longHolds = new LongAdder();
+    private final LongAdder leakedStatements = new LongAdder();
+    private final LongAdder leakedResultSets = new LongAdder();
+    private final Map<String, LongAdder> leakSites = new ConcurrentHashMap<>();
+
+    public LeakDetector(long thresholdMillis, boolean captureStackTraces) {
+        this.thresholdMillis = thresholdMillis;
+        this.captureStackTraces = captureStackTraces;
+    }
+
+    Checkout checkedOut() {
+        Checkout checkout = new Checkout(Thread.currentThread().getName(), System.nanoTime(), allocationSite());
+        activeCheckouts.add(checkout);
+        checkouts.increment();
+        return checkout;
+    }
+
+    void returned(Checkout checkout) {
+        if (!activeCheckouts.remove(checkout)) {
+            return;
+        }
+        long heldNanos = System.nanoTime() - checkout.startedAt;
+        totalHeldNanos.add(heldNanos);
+        maxHeldNanos.accumulateAndGet(heldNanos, Math::max);
+        if (heldNanos > TimeUnit.MILLISECONDS.toNanos(thresholdMillis)) {
+            longHolds.increment();
+            System.out.println("Connection held for " + TimeUnit.NANOSECONDS.toMillis(heldNanos)
+                    + " ms by thread " + checkout.threadName + describe(checkout.site));
+        }
+    }
+
+    // Wraps a statement so the result sets it produces are recorded too; only done while capturing stack traces
+    Statement track(Statement statement, Class<?> statementType) {
+        if (!captureStackTraces) {
+            return statement;
+        }
+        return (Statement) Proxy.newProxyInstance(
+                statementType.getClassLoader(),
+                new Class<?>[]{statementType},
+                new TrackedStatement(statement));
+    }
+
+    Throwable allocationSite() {
+        return captureStackTraces ? new Throwable("allocated here") : null;
+    }
+
+    // Called for every statement the caller left open when the connection went back to the pool
+    void statementLeaked(Statement statement, Throwable site) {
+        leakedStatements.increment();
+        recordSite("Statement", site);
+        if (Proxy.isProxyClass(statement.getClass()) && Proxy.getInvocationHandler(statement) instanceof TrackedStatement) {
+            for (TrackedResultSet resultSet : ((TrackedStatement) Proxy.getInvocationHandler(statement)).resultSets) {
+                try {
+                    if (!resultSet.resultSet.isClosed()) {
+                        leakedResultSets.increment();
+                        recordSite("ResultSet", resultSet.site);
+                    }
+                } catch (SQLException e) {
+                    // Closed along with its connection
+                }
+            }
+        }
+    }
+
+    public long getCheckoutCount() {
+        return checkouts.sum();
+    }
+
+    public long getLongHoldCount() {
+        return longHolds.sum();
+    }
+
+    public long getLeakedStatementCount() {
+        return leakedStatements.sum();
+    }
+
+    public long getLeakedResultSetCount() {
+        return leakedResultSets.sum();
+    }
+
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        long returnedCount = checkouts.sum() - activeCheckouts.size();
+        long averageMillis = returnedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalHeldNanos.sum() / returnedCount);
+        summary.append("Connection checkouts: ").append(checkouts.sum())
+                .append(" (average hold ").append(averageMillis).append(" ms")
+                .append(", longest ").append(TimeUnit.NANOSECONDS.toMillis(maxHeldNanos.get())).append(" ms")
+                .append(", held over ").append(thresholdMillis).append(" ms: ").append(longHolds.sum()).append(")\n");
+
+        long now = System.nanoTime();
+        List<Checkout> held = new ArrayList<>(activeCheckouts);
+        held.sort(Comparator.comparingLong(checkout -> checkout.startedAt));
+        summary.append("Connections checked out now: ").append(held.size()).append("\n");
+        for (Checkout checkout : held) {
+            long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - checkout.startedAt);
+            summary.append("    ").append(checkout.threadName).append(" for ").append(heldMillis).append(" ms")
+                    .append(heldMillis > thresholdMillis ? " [OVER THRESHOLD]" : "")
+                    .append(describe(checkout.site)).append("\n");
+        }
+
+        summary.append("Leaked statements: ").append(leakedStatements.sum())
+                .append(", leaked result sets: ").append(leakedResultSets.sum()).append("\n");
+        if (!captureStackTraces) {
+            summary.append("    (run with -Dclinicdb.leakDetection=true to see where they were created)\n");
+        } else {
+            List<Map.Entry<String, LongAdder>> sites = new ArrayList<>(leakSites.entrySet());
+            sites.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+            for (Map.Entry<String, LongAdder> site : sites.subList(0, Math.min(REPORTED_SITES, sites.size()))) {
+                summary.append("    ").append(site.getValue().sum()).append("x ").append(site.getKey()).append("\n");
+            }
+        }
+        return summary.toString();
+    }
+
+    private void recordSite(String kind, Throwable site) {
+        if (site != null) {
+            leakSites.computeIfAbsent(kind + describe(site), key -> new LongAdder()).increment();
+        }
+    }
+
+    // The first frame outside this package is the repository code that asked for the resource
+    private static String describe(Throwable site) {
+        if (site == null) {
+            return "";
+        }
+        for (StackTraceElement frame : site.getStackTrace()) {
+            if (!frame.getClassName().startsWith("database.")
+                    && !frame.getClassName().startsWith("jdk.proxy")
+                    && !frame.getClassName().startsWith("com.sun.proxy")) {
+                return " at " + frame;
+            }
+        }
+        return "";
+    }
+
+    static final class Checkout {
+        private final String threadName;
+        private final long startedAt;
+        private final Throwable site;
+
+        private Checkout(String threadName, long startedAt, Throwable site) {
+            this.threadName = threadName;
+            this.startedAt = startedAt;
+            this.site = site;
+        }
+    }
+
+    private static final class TrackedResultSet {
+        private final ResultSet resultSet;
+        private final Throwable site;
+
+        private TrackedResultSet(ResultSet resultSet, Throwable site) {
+            this.resultSet = resultSet;
+            this.site = site;
+        }
+    }
+
+    private final class TrackedStatement implements InvocationHandler {
+        private final Statement statement;
+        private final List<TrackedResultSet> resultSets = new ArrayList<>();
+
+        private TrackedStatement(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return statement.toString();
+                default:
+                    break;
+            }
+            try {
+                Object result = method.invoke(statement, args);
+                if (result instanceof ResultSet) {
+                    // A statement only keeps its latest result sets open, so forget the ones already closed
+                    resultSets.removeIf(tracked -> isClosed(tracked.resultSet));
+                    resultSets.add(new TrackedResultSet((ResultSet) result, allocationSite()));
+                } else if (method.getName().equals("close")) {
+                    resultSets.clear();
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private boolean isClosed(ResultSet resultSet) {
+            try {
+                return resultSet.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package database;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// One step of the schema history. Once released a migration must never be edited: its checksum is stored
+// with its version, and a mismatch on a later start means the database and the code disagree about the schema.
+public final class Migration {
+    private final int version;
+    private final String description;
+    private final List<String> statements;
+    private final String checksum;
+
+    public Migration(int version, String description, String... statements) {
+        this.version = version;
+        this.description = description;
+        this.statements = Collections.unmodifiableList(Arrays.asList(statements));
+        this.checksum = computeChecksum(this.statements);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    private static String computeChecksum(List<String> statements) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String statement : statements) {
+                // Collapse whitespace so reformatting a statement does not count as changing it
+                digest.update(statement.trim().replaceAll("\\s+", " ").getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
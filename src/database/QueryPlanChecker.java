@@ -0,0 +1,145 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs EXPLAIN on a set of registered queries and reports every table a plan reads in full. Queries that
+// have to scan by design (listing a whole table, LIKE '%name%' searches) declare which tables they scan;
+// any other full scan means a lookup lost its index. Tables are named the way the query refers to them,
+// i.e. by alias where it has one. Run it against a database with realistic row counts: on a nearly empty
+// table MySQL may prefer a scan even where an index exists.
+public class QueryPlanChecker {
+    // H2 marks a scanned table in its plan as "/* PUBLIC.PATIENT.tableScan */", right after the table and its alias
+    private static final Pattern H2_TABLE_SCAN = Pattern.compile(
+            "\"?\\w+\"?\\.\"?(\\w+)\"?(?:\\s+\"?(\\w+)\"?)?\\s*/\\*\\s*[\\w.]+\\.tableScan\\s*\\*/");
+
+    private final List<Query> queries = new ArrayList<>();
+    private final List<IndexDefinition> indexes;
+
+    public QueryPlanChecker(List<IndexDefinition> indexes) {
+        this.indexes = indexes;
+    }
+
+    public Query register(String name, String sql, Object... binds) {
+        Query query = new Query(name, sql, binds);
+        queries.add(query);
+        return query;
+    }
+
+    public Report check() throws SQLException {
+        Report report = new Report();
+        try (Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
+            for (IndexDefinition index : indexes) {
+                if (!index.existsIn(connection)) {
+                    report.missingIndexes.add(index);
+                }
+            }
+            for (Query query : queries) {
+                try {
+                    for (String table : scannedTables(connection, query)) {
+                        if (query.expectedScans.contains(table.toUpperCase(Locale.ROOT))) {
+                            report.expectedScans.add(query.name + ": " + table);
+                        } else {
+                            report.unexpectedScans.add(query.name + ": " + table);
+                        }
+                    }
+                } catch (SQLException e) {
+                    report.failures.add(query.name + ": " + e.getMessage());
+                }
+                report.checked++;
+            }
+        }
+        return report;
+    }
+
+    private Set<String> scannedTables(Connection connection, Query query) throws SQLException {
+        SqlDialect dialect = DatabaseConfiguration.getDialect();
+        String sql = query.sql.trim();
+        while (sql.endsWith(";")) {
+            sql = sql.substring(0, sql.length() - 1).trim();
+        }
+        Set<String> tables = new LinkedHashSet<>();
+        try (PreparedStatement explain = connection.prepareStatement(dialect.translate("EXPLAIN " + sql))) {
+            for (int i = 0; i < query.binds.length; i++) {
+                explain.setObject(i + 1, query.binds[i]);
+            }
+            try (ResultSet plan = explain.executeQuery()) {
+                while (plan.next()) {
+                    if (dialect == SqlDialect.H2) {
+                        Matcher matcher = H2_TABLE_SCAN.matcher(plan.getString(1));
+                        while (matcher.find()) {
+                            tables.add(matcher.group(2) != null ? matcher.group(2) : matcher.group(1));
+                        }
+                    } else if ("ALL".equalsIgnoreCase(plan.getString("type")) && plan.getString("table") != null) {
+                        tables.add(plan.getString("table"));
+                    }
+                }
+            }
+        }
+        return tables;
+    }
+
+    public static final class Query {
+        private final String name;
+        private final String sql;
+        private final Object[] binds;
+        private final Set<String> expectedScans = new LinkedHashSet<>();
+
+        private Query(String name, String sql, Object[] binds) {
+            this.name = name;
+            this.sql = sql;
+            this.binds = binds;
+        }
+
+        // Tables (or aliases) this query reads in full on purpose
+        public Query expectFullScan(String... tables) {
+            for (String table : tables) {
+                expectedScans.add(table.toUpperCase(Locale.ROOT));
+            }
+            return this;
+        }
+    }
+
+    public static final class Report {
+        private final List<IndexDefinition> missingIndexes = new ArrayList<>();
+        private final List<String> unexpectedScans = new ArrayList<>();
+        private final List<String> expectedScans = new ArrayList<>();
+        private final List<String> failures = new ArrayList<>();
+        private int checked;
+
+        // Anything here should fail a build
+        public int getProblemCount() {
+            return missingIndexes.size() + unexpectedScans.size() + failures.size();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder("Query plans: " + checked + " queries checked, "
+                    + unexpectedScans.size() + " unexpected full table scans\n");
+            append(report, "Declared indexes missing from the database", missingIndexes);
+            append(report, "Unexpected full table scans", unexpectedScans);
+            append(report, "Queries that could not be explained", failures);
+            append(report, "Full table scans by design", expectedScans);
+            return report.toString();
+        }
+
+        private static void append(StringBuilder report, String heading, List<?> lines) {
+            if (lines.isEmpty()) {
+                return;
+            }
+            report.append(heading).append(":\n");
+            for (Object line : lines) {
+                report.append("    ").append(line).append("\n");
+            }
+        }
+    }
+}
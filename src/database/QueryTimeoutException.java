@@ -0,0 +1,26 @@
+package database;
+
+import java.sql.SQLTimeoutException;
+
+// Thrown when a repository operation runs past its deadline, whether the database stopped the query or the
+// deadline had already expired before the next statement could start
+public class QueryTimeoutException extends SQLTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    private final String operation;
+    private final long timeoutMillis;
+
+    public QueryTimeoutException(String operation, long timeoutMillis, Throwable cause) {
+        super(operation + " took longer than " + timeoutMillis + " ms and was stopped", "57014", cause);
+        this.operation = operation;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,250 @@
+package database;
+
+import services.Audit;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Brings the database schema up to date at startup. Applied migrations are recorded in SCHEMA_VERSION with
+// their checksums; on an up-to-date database the whole bootstrap is the one SELECT that reads that table.
+// Pending migrations run on a single connection in a single transaction. MySQL and H2 commit DDL implicitly,
+// so every migration records its version row right after its statements and an interrupted run resumes
+// from the first migration it did not finish. Such a migration may already have created some of its tables
+// and indexes: tables are created IF NOT EXISTS, and an index that is already there is skipped.
+public class SchemaMigrator {
+    private static Audit audit = Audit.getInstance();
+
+    private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS SCHEMA_VERSION (" +
+            "version INT PRIMARY KEY, " +
+            "description VARCHAR(200), " +
+            "checksum CHAR(64), " +
+            "applied_at DATETIME)";
+    private static final String SELECT_VERSIONS = "SELECT version, checksum FROM SCHEMA_VERSION ORDER BY version";
+    private static final String INSERT_VERSION = "INSERT INTO SCHEMA_VERSION(version, description, checksum, applied_at) VALUES(?, ?, ?, ?)";
+
+    // Secondary indexes behind the repositories' lookups. Each one is created by exactly one migration below,
+    // so a released definition is as frozen as the migration that creates it; new indexes get a new migration.
+    // Lookup by natural key in getPatientId and getDoctorId, on every booking and payment
+    private static final IndexDefinition PATIENT_NAME_EMAIL = new IndexDefinition("idx_patient_name_email", "PATIENT", "firstName", "lastName", "email");
+    private static final IndexDefinition DOCTOR_NAME_EMAIL = new IndexDefinition("idx_doctor_name_email", "DOCTOR", "firstName", "lastName", "email");
+    // getTreatmentId
+    private static final IndexDefinition TREATMENT_NAME = new IndexDefinition("idx_treatment_name", "TREATMENT", "name");
+    // A doctor's appointments in date order, for scheduling; also serves the joins on id_doctor
+    private static final IndexDefinition APPOINTMENT_DOCTOR_DATE = new IndexDefinition("idx_appointment_doctor_date", "APPOINTMENT", "id_doctor", "date");
+    // The audit history of one entity, and audit rows by time
+    private static final IndexDefinition AUDIT_ENTITY = new IndexDefinition("idx_audit_entity", "AUDIT", "entity_type", "entity_id", "logged_at");
+    private static final IndexDefinition AUDIT_LOGGED_AT = new IndexDefinition("idx_audit_logged_at", "AUDIT", "logged_at");
+    private static final List<IndexDefinition> INDEXES = Collections.unmodifiableList(Arrays.asList(
+            PATIENT_NAME_EMAIL, DOCTOR_NAME_EMAIL, TREATMENT_NAME, APPOINTMENT_DOCTOR_DATE,
+            AUDIT_ENTITY, AUDIT_LOGGED_AT));
+
+    // Append only: a released migration is never edited, changes go into a new one
+    private static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            // The tables the repositories used to create one by one. IF NOT EXISTS lets a database created
+            // before versioning was introduced be adopted as version 1.
+            new Migration(1, "Baseline schema",
+                    "CREATE TABLE IF NOT EXISTS ADDRESS (" +
+                            "id_address INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "country VARCHAR(100), " +
+                            "city VARCHAR(100), " +
+                            "street VARCHAR(100), " +
+                            "number_address INT)",
+                    "CREATE TABLE IF NOT EXISTS PATIENT (" +
+                            "id_patient INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "firstName VARCHAR(100), " +
+                            "lastName VARCHAR(100), " +
+                            "email VARCHAR(100), " +
+                            "id_address INT, " +
+                            "phoneNumber VARCHAR(20), " +
+                            "birthDate DATETIME, " +
+                            "age INT, " +
+                            "gender VARCHAR(10), " +
+                            "medicalHistory TEXT, " +
+                            "FOREIGN KEY (id_address) REFERENCES ADDRESS(id_address) ON DELETE CASCADE)",
+                    "CREATE TABLE IF NOT EXISTS DOCTOR (" +
+                            "id_doctor INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "firstName VARCHAR(100), " +
+                            "lastName VARCHAR(100), " +
+                            "email VARCHAR(100), " +
+                            "id_address INT, " +
+                            "phoneNumber VARCHAR(20), " +
+                            "specializations TEXT, " +
+                            "FOREIGN KEY (id_address) REFERENCES ADDRESS(id_address) ON DELETE CASCADE)",
+                    "CREATE TABLE IF NOT EXISTS TREATMENT (" +
+                            "id_treatment INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "category VARCHAR(50), " +
+                            "name VARCHAR(100), " +
+                            "price DOUBLE)",
+                    "CREATE TABLE IF NOT EXISTS APPOINTMENT (" +
+                            "id_appointment INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "date DATETIME, " +
+                            "id_patient INT, " +
+                            "id_treatment INT, " +
+                            "id_doctor INT, " +
+                            "status VARCHAR(20), " +
+                            "FOREIGN KEY (id_patient) REFERENCES PATIENT(id_patient), " +
+                            "FOREIGN KEY (id_treatment) REFERENCES TREATMENT(id_treatment), " +
+                            "FOREIGN KEY (id_doctor) REFERENCES DOCTOR(id_doctor))",
+                    "CREATE TABLE IF NOT EXISTS PAYMENT (" +
+                            "id_payment INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "paymentDate TIMESTAMP, " +
+                            "totalAmount DOUBLE, " +
+                            "id_patient INT, " +
+                            "FOREIGN KEY (id_patient) REFERENCES PATIENT(id_patient))",
+                    "CREATE TABLE IF NOT EXISTS PAYMENT_TREATMENT (" +
+                            "id_payment INT, " +
+                            "id_treatment INT, " +
+                            "PRIMARY KEY (id_payment, id_treatment), " +
+                            "FOREIGN KEY (id_payment) REFERENCES PAYMENT(id_payment), " +
+                            "FOREIGN KEY (id_treatment) REFERENCES TREATMENT(id_treatment))"),
+            new Migration(2, "Secondary indexes for repository lookups",
+                    PATIENT_NAME_EMAIL.createStatement(),
+                    DOCTOR_NAME_EMAIL.createStatement(),
+                    TREATMENT_NAME.createStatement(),
+                    APPOINTMENT_DOCTOR_DATE.createStatement()),
+            // Filled by DatabaseAuditSink when -Dclinicdb.audit.database=true
+            new Migration(3, "Audit table",
+                    "CREATE TABLE IF NOT EXISTS AUDIT (" +
+                            "id_audit BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                            "logged_at DATETIME(3), " +
+                            "action VARCHAR(500), " +
+                            "entity_type VARCHAR(30), " +
+                            "entity_id BIGINT, " +
+                            "operation VARCHAR(100), " +
+                            "outcome VARCHAR(20), " +
+                            "latency_ms BIGINT, " +
+                            "repeat_count INT, " +
+                            "duration_ms BIGINT)",
+                    AUDIT_ENTITY.createStatement(),
+                    AUDIT_LOGGED_AT.createStatement()),
+            // Bumped by every write to a table that instances cache, and polled by ChangeVersions
+            new Migration(4, "Change versions for cache coherence",
+                    "CREATE TABLE IF NOT EXISTS CHANGE_VERSION (" +
+                            "table_name VARCHAR(30) PRIMARY KEY, " +
+                            "version BIGINT NOT NULL)",
+                    "INSERT INTO CHANGE_VERSION(table_name, version) VALUES ('PATIENT', 0)",
+                    "INSERT INTO CHANGE_VERSION(table_name, version) VALUES ('DOCTOR', 0)",
+                    "INSERT INTO CHANGE_VERSION(table_name, version) VALUES ('TREATMENT', 0)")
+    ));
+
+    private SchemaMigrator() { }
+
+    public static List<Migration> getMigrations() {
+        return MIGRATIONS;
+    }
+
+    public static List<IndexDefinition> getIndexes() {
+        return INDEXES;
+    }
+
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).getVersion();
+    }
+
+    // Returns the schema version the database is at afterwards
+    public static int migrate() throws SQLException {
+        try (Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
+            Map<Integer, String> applied = readAppliedVersions(connection);
+            List<Migration> pending = pendingMigrations(applied == null ? Collections.emptyMap() : applied);
+            if (pending.isEmpty()) {
+                return getLatestVersion();
+            }
+
+            SqlDialect dialect = DatabaseConfiguration.getDialect();
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement();
+                 PreparedStatement recordVersion = connection.prepareStatement(INSERT_VERSION)) {
+                if (applied == null) {
+                    statement.executeUpdate(dialect.translate(CREATE_VERSION_TABLE));
+                }
+                for (Migration migration : pending) {
+                    for (String sql : migration.getStatements()) {
+                        IndexDefinition index = createdIndex(sql);
+                        if (index != null && index.existsIn(connection)) {
+                            continue;
+                        }
+                        statement.executeUpdate(dialect.translate(sql));
+                    }
+                    recordVersion.setInt(1, migration.getVersion());
+                    recordVersion.setString(2, migration.getDescription());
+                    recordVersion.setString(3, migration.getChecksum());
+                    recordVersion.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
+                    recordVersion.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+
+            int version = getLatestVersion();
+            try {
+                audit.logAction("Database schema migrated to version " + version);
+            } catch (IOException e) {
+                System.out.println("Error with audit: " + e);
+            }
+            return version;
+        }
+    }
+
+    // The declared index a migration statement creates, or null when it creates none. Matched on the whole
+    // statement, since the text of a released migration never changes.
+    private static IndexDefinition createdIndex(String sql) {
+        for (IndexDefinition index : INDEXES) {
+            if (index.createStatement().equals(sql)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    // null when the version table does not exist yet, i.e. on a database that has never been migrated
+    private static Map<Integer, String> readAppliedVersions(Connection connection) throws SQLException {
+        Map<Integer, String> applied = new TreeMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(SELECT_VERSIONS)) {
+            while (resultSet.next()) {
+                applied.put(resultSet.getInt("version"), resultSet.getString("checksum"));
+            }
+            return applied;
+        } catch (SQLException e) {
+            // SQL state class 42 is "syntax error or access rule violation", which covers a missing table
+            if (e.getSQLState() != null && e.getSQLState().startsWith("42")) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private static List<Migration> pendingMigrations(Map<Integer, String> applied) throws SQLException {
+        List<Migration> pending = new ArrayList<>();
+        for (Migration migration : MIGRATIONS) {
+            String checksum = applied.get(migration.getVersion());
+            if (checksum == null) {
+                pending.add(migration);
+            } else if (!checksum.trim().equals(migration.getChecksum())) {
+                throw new SQLException("Schema migration " + migration.getVersion() + " (" + migration.getDescription()
+                        + ") does not match the one applied to this database");
+            }
+        }
+        for (int version : applied.keySet()) {
+            if (version > getLatestVersion()) {
+                throw new SQLException("The database schema is at version " + version
+                        + ", newer than this application knows (" + getLatestVersion() + ")");
+            }
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,444 @@
+package database;
+
+import javax.sql.DataSource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Opt-in log of slow statements (-Dclinicdb.slowQueryLog=true). Every statement the pool hands out is timed
+// from execute until its results are read or closed; one that took at least the threshold is written with its
+// SQL, bind values, row count and the repository operation it ran under (the name of the open Deadline).
+// Above a second threshold the entry also carries the EXPLAIN output. Callers only queue the entry: a
+// background thread runs the EXPLAIN on a connection of its own and appends to the log file, which rolls over
+// into file.1, file.2, ... once it reaches its size limit. When the queue is full entries are dropped and counted.
+public class SlowQueryLog {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_BIND_LENGTH = 200;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private final boolean enabled;
+    private final long thresholdMillis;
+    private final long explainThresholdMillis;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final DataSource dataSource;
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Map<String, OperationStatistics> operations = new ConcurrentHashMap<>();
+    private volatile Thread writer;
+    private volatile boolean closed;
+
+    public SlowQueryLog(boolean enabled, long thresholdMillis, long explainThresholdMillis,
+                        Path file, long maxFileBytes, int maxFiles, DataSource dataSource) {
+        this.enabled = enabled;
+        this.thresholdMillis = thresholdMillis;
+        this.explainThresholdMillis = explainThresholdMillis;
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.dataSource = dataSource;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // sql is known for prepared statements; plain statements get theirs with every execute
+    Statement track(Statement statement, Class<?> statementType, String sql) {
+        if (!enabled) {
+            return statement;
+        }
+        return (Statement) Proxy.newProxyInstance(
+                statementType.getClassLoader(),
+                new Class<?>[]{statementType},
+                new TimedStatement(statement, sql));
+    }
+
+    // Waits briefly for the queued entries to reach the file, so stopping the application does not lose them
+    public void close() {
+        closed = true;
+        Thread current = writer;
+        if (current != null) {
+            try {
+                current.join(TimeUnit.SECONDS.toMillis(2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String summary() {
+        if (!enabled) {
+            return "Slow query log: off (run with -Dclinicdb.slowQueryLog=true)\n";
+        }
+        StringBuilder summary = new StringBuilder("Slow query log (" + file + ", over " + thresholdMillis + " ms): "
+                + logged.sum() + " logged, " + dropped.sum() + " dropped\n");
+        List<Map.Entry<String, OperationStatistics>> slowest = new ArrayList<>(operations.entrySet());
+        slowest.sort((a, b) -> Long.compare(b.getValue().totalMillis.sum(), a.getValue().totalMillis.sum()));
+        for (Map.Entry<String, OperationStatistics> operation : slowest) {
+            OperationStatistics statistics = operation.getValue();
+            summary.append("    ").append(operation.getKey())
+                    .append(": ").append(statistics.count.sum()).append(" slow")
+                    .append(", total ").append(statistics.totalMillis.sum()).append(" ms")
+                    .append(", longest ").append(statistics.maxMillis.get()).append(" ms\n");
+        }
+        return summary.toString();
+    }
+
+    private void finished(Entry entry) {
+        if (entry.elapsedMillis < thresholdMillis) {
+            return;
+        }
+        OperationStatistics statistics = operations.computeIfAbsent(entry.operation, key -> new OperationStatistics());
+        statistics.count.increment();
+        statistics.totalMillis.add(entry.elapsedMillis);
+        statistics.maxMillis.accumulateAndGet(entry.elapsedMillis, Math::max);
+        if (closed || !queue.offer(entry)) {
+            dropped.increment();
+            return;
+        }
+        startWriter();
+    }
+
+    private void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (this) {
+            if (writer == null && !closed) {
+                Thread thread = new Thread(this::writeEntries, "slow-query-log-writer");
+                thread.setDaemon(true);
+                writer = thread;
+                thread.start();
+            }
+        }
+    }
+
+    private void writeEntries() {
+        while (!closed || !queue.isEmpty()) {
+            Entry entry;
+            try {
+                entry = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (entry == null) {
+                continue;
+            }
+            List<Entry> batch = new ArrayList<>();
+            batch.add(entry);
+            queue.drainTo(batch);
+            StringBuilder text = new StringBuilder();
+            for (Entry queued : batch) {
+                format(queued, text);
+            }
+            try {
+                append(text.toString());
+                logged.add(batch.size());
+            } catch (IOException e) {
+                dropped.add(batch.size());
+                System.out.println("Error with slow query log: " + e);
+            }
+        }
+    }
+
+    private void format(Entry entry, StringBuilder text) {
+        text.append(TIMESTAMP.format(entry.startedAt)).append(" ").append(entry.elapsedMillis).append(" ms ")
+                .append(entry.operation).append(" rows=").append(entry.rows < 0 ? "?" : String.valueOf(entry.rows))
+                .append(" thread=").append(entry.threadName);
+        if (entry.failure != null) {
+            text.append(" failed: ").append(entry.failure);
+        }
+        text.append("\n    SQL: ").append(entry.sql.replaceAll("\\s+", " ").trim()).append("\n");
+        if (entry.batchSize > 0) {
+            text.append("    Batch: ").append(entry.batchSize).append(" parameter sets, last ").append(entry.binds).append("\n");
+        } else if (!entry.bindValues.isEmpty()) {
+            text.append("    Binds: ").append(entry.binds).append("\n");
+        }
+        if (entry.elapsedMillis >= explainThresholdMillis) {
+            text.append("    Plan:\n");
+            for (String line : explain(entry)) {
+                text.append("        ").append(line).append("\n");
+            }
+        }
+    }
+
+    // EXPLAIN only describes the statement, so it is safe for updates and deletes as well as queries
+    private List<String> explain(Entry entry) {
+        List<String> plan = new ArrayList<>();
+        String sql = entry.sql.trim();
+        while (sql.endsWith(";")) {
+            sql = sql.substring(0, sql.length() - 1).trim();
+        }
+        String verb = sql.split("\\s+", 2)[0].toUpperCase();
+        if (!verb.equals("SELECT") && !verb.equals("UPDATE") && !verb.equals("DELETE")) {
+            plan.add("(not explained: " + verb + ")");
+            return plan;
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement explain = connection.prepareStatement(DatabaseConfiguration.getDialect().translate("EXPLAIN " + sql))) {
+            for (Map.Entry<Integer, Object> bind : entry.bindValues.entrySet()) {
+                explain.setObject(bind.getKey(), bind.getValue());
+            }
+            try (ResultSet rows = explain.executeQuery()) {
+                ResultSetMetaData metaData = rows.getMetaData();
+                while (rows.next()) {
+                    StringBuilder line = new StringBuilder();
+                    for (int column = 1; column <= metaData.getColumnCount(); column++) {
+                        if (metaData.getColumnCount() > 1) {
+                            line.append(column > 1 ? ", " : "").append(metaData.getColumnLabel(column)).append("=");
+                        }
+                        line.append(rows.getString(column));
+                    }
+                    for (String part : line.toString().split("\n")) {
+                        plan.add(part);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            plan.add("(EXPLAIN failed: " + e.getMessage() + ")");
+        }
+        return plan;
+    }
+
+    private void append(String text) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (Files.exists(file) && Files.size(file) >= maxFileBytes) {
+            roll();
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(text);
+        }
+    }
+
+    // slow-queries.log becomes .1, .1 becomes .2 and so on; the oldest one falls off the end
+    private void roll() throws IOException {
+        Files.deleteIfExists(rolled(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rolled(i))) {
+                Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rolled(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private static String describe(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        String text = value instanceof String ? "'" + value + "'" : String.valueOf(value);
+        return text.length() > MAX_BIND_LENGTH ? text.substring(0, MAX_BIND_LENGTH) + "...(" + text.length() + " chars)" : text;
+    }
+
+    private static final class OperationStatistics {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final AtomicLong maxMillis = new AtomicLong();
+    }
+
+    private static final class Entry {
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private final String threadName = Thread.currentThread().getName();
+        private final String operation;
+        private final String sql;
+        private final Map<Integer, Object> bindValues;
+        private final String binds;
+        private final int batchSize;
+        private final long startedNanos;
+        private long elapsedMillis;
+        private long rows = -1;
+        private String failure;
+
+        private Entry(String operation, String sql, Map<Integer, Object> bindValues, int batchSize) {
+            this.operation = operation;
+            this.sql = sql;
+            this.bindValues = new TreeMap<>(bindValues);
+            StringBuilder binds = new StringBuilder("[");
+            for (Map.Entry<Integer, Object> bind : this.bindValues.entrySet()) {
+                binds.append(binds.length() > 1 ? ", " : "").append(bind.getKey()).append("=").append(describe(bind.getValue()));
+            }
+            this.binds = binds.append("]").toString();
+            this.batchSize = batchSize;
+            this.startedNanos = System.nanoTime();
+        }
+    }
+
+    private final class TimedStatement implements InvocationHandler {
+        private final Statement statement;
+        private final String preparedSql;
+        private final Map<Integer, Object> binds = new TreeMap<>();
+        private int batchSize;
+        // A query is only finished once its rows have been read, so its entry waits here until then
+        private Entry pending;
+
+        private TimedStatement(Statement statement, String preparedSql) {
+            this.statement = statement;
+            this.preparedSql = preparedSql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return statement.toString();
+                case "close":
+                    complete();
+                    break;
+                case "clearParameters":
+                    binds.clear();
+                    break;
+                case "addBatch":
+                    batchSize++;
+                    break;
+                case "clearBatch":
+                    batchSize = 0;
+                    break;
+                default:
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        binds.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+                    }
+                    break;
+            }
+            if (!name.startsWith("execute")) {
+                try {
+                    return method.invoke(statement, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+
+            complete();
+            String sql = preparedSql != null ? preparedSql : (args != null && args.length > 0 ? (String) args[0] : "?");
+            Deadline deadline = Deadline.current();
+            Entry entry = new Entry(deadline != null ? deadline.getOperation() : "(no operation)", sql,
+                    binds, name.equals("executeBatch") ? batchSize : 0);
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                entry.failure = String.valueOf(e.getCause());
+                finish(entry);
+                throw e.getCause();
+            }
+            if (name.equals("executeBatch")) {
+                batchSize = 0;
+            }
+            if (result instanceof ResultSet) {
+                pending = entry;
+                entry.rows = 0;
+                return Proxy.newProxyInstance(
+                        ResultSet.class.getClassLoader(),
+                        new Class<?>[]{ResultSet.class},
+                        new TimedResultSet((ResultSet) result, entry));
+            }
+            if (result instanceof Integer || result instanceof Long) {
+                entry.rows = ((Number) result).longValue();
+            } else if (result instanceof int[]) {
+                entry.rows = 0;
+                for (int count : (int[]) result) {
+                    entry.rows += Math.max(0, count);
+                }
+            }
+            finish(entry);
+            return result;
+        }
+
+        private void complete() {
+            if (pending != null) {
+                finish(pending);
+            }
+        }
+
+        private void finish(Entry entry) {
+            if (entry == pending) {
+                pending = null;
+            }
+            entry.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.startedNanos);
+            finished(entry);
+        }
+
+        private final class TimedResultSet implements InvocationHandler {
+            private final ResultSet resultSet;
+            private final Entry entry;
+
+            private TimedResultSet(ResultSet resultSet, Entry entry) {
+                this.resultSet = resultSet;
+                this.entry = entry;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return resultSet.toString();
+                    default:
+                        break;
+                }
+                Object result;
+                try {
+                    result = method.invoke(resultSet, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (pending == entry) {
+                    if (method.getName().equals("next")) {
+                        if ((Boolean) result) {
+                            entry.rows++;
+                        } else {
+                            finish(entry);
+                        }
+                    } else if (method.getName().equals("close")) {
+                        finish(entry);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package database;
+
+// The repositories are written against MySQL; other backends get the few rewrites they need here
+public enum SqlDialect {
+    MYSQL {
+        @Override
+        public String translate(String sql) {
+            return sql;
+        }
+    },
+    H2 {
+        @Override
+        public String translate(String sql) {
+            // MODE=MySQL already accepts AUTO_INCREMENT, DATETIME and TEXT as written, so only the
+            // trailing terminator is dropped to keep every statement a single command
+            String translated = sql.trim();
+            while (translated.endsWith(";")) {
+                translated = translated.substring(0, translated.length() - 1).trim();
+            }
+            return translated;
+        }
+    };
+
+    public abstract String translate(String sql);
+}
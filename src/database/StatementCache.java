@@ -0,0 +1,223 @@
+package database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+// Prepared statements of one physical connection, reused across checkouts. A pooled connection is only
+// ever used by one caller at a time, so the cache itself needs no locking; the statistics are shared
+// by every connection of the pool.
+public class StatementCache {
+    private final int capacity;
+    private final Statistics statistics;
+    private final LinkedHashMap<Key, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+    StatementCache(int capacity, Statistics statistics) {
+        this.capacity = capacity;
+        this.statistics = statistics;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    PreparedStatement prepare(Connection owner, Connection physical, String sql, Integer autoGeneratedKeys) throws SQLException {
+        Key key = new Key(sql, autoGeneratedKeys);
+        CachedStatement cached = statements.get(key);
+        if (cached != null && !cached.inUse) {
+            statistics.hits.increment();
+            return cached.checkout(owner);
+        }
+
+        statistics.misses.increment();
+        PreparedStatement statement = autoGeneratedKeys == null
+                ? physical.prepareStatement(sql)
+                : physical.prepareStatement(sql, autoGeneratedKeys);
+        if (cached != null) {
+            // The same SQL is already open in this checkout; hand out a plain statement rather than share it
+            return statement;
+        }
+        cached = new CachedStatement(statement);
+        statements.put(key, cached);
+        evictOverflow();
+        return cached.checkout(owner);
+    }
+
+    void closeAll() {
+        for (CachedStatement cached : statements.values()) {
+            cached.closePhysical();
+        }
+        statements.clear();
+    }
+
+    private void evictOverflow() {
+        Iterator<CachedStatement> iterator = statements.values().iterator();
+        while (statements.size() > capacity && iterator.hasNext()) {
+            CachedStatement eldest = iterator.next();
+            iterator.remove();
+            statistics.evictions.increment();
+            if (eldest.inUse) {
+                eldest.evicted = true;
+            } else {
+                eldest.closePhysical();
+            }
+        }
+    }
+
+    public static final class Statistics {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public double getHitRatio() {
+            long hitCount = getHits();
+            long total = hitCount + getMisses();
+            return total == 0 ? 0.0 : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("StatementCache[hits=%d, misses=%d, evictions=%d, hitRatio=%.1f%%]",
+                    getHits(), getMisses(), getEvictions(), getHitRatio() * 100);
+        }
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final Integer autoGeneratedKeys;
+
+        private Key(String sql, Integer autoGeneratedKeys) {
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return sql.equals(key.sql) && Objects.equals(autoGeneratedKeys, key.autoGeneratedKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + Objects.hashCode(autoGeneratedKeys);
+        }
+    }
+
+    private static final class CachedStatement {
+        private final PreparedStatement physical;
+        private boolean inUse;
+        private boolean evicted;
+
+        private CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        private PreparedStatement checkout(Connection owner) {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    new Handle(this, owner));
+        }
+
+        private void checkin() {
+            inUse = false;
+            try {
+                physical.clearParameters();
+                physical.clearBatch();
+                physical.clearWarnings();
+            } catch (SQLException e) {
+                evicted = true;
+            }
+            if (evicted) {
+                closePhysical();
+            }
+        }
+
+        private void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // Already unusable, nothing more to release
+            }
+        }
+    }
+
+    // What the repository sees: closing it returns the statement to the cache instead of closing it
+    private static final class Handle implements InvocationHandler {
+        private final CachedStatement cached;
+        private final Connection owner;
+        private final List<ResultSet> resultSets = new ArrayList<>();
+        private boolean closed;
+
+        private Handle(CachedStatement cached, Connection owner) {
+            this.cached = cached;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        for (ResultSet resultSet : resultSets) {
+                            resultSet.close();
+                        }
+                        resultSets.clear();
+                        cached.checkin();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return owner;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + cached.physical + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement has already been closed");
+            }
+            try {
+                Object result = method.invoke(cached.physical, args);
+                if (result instanceof ResultSet) {
+                    resultSets.add((ResultSet) result);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
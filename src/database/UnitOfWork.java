@@ -0,0 +1,229 @@
+package database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Groups the statements of one logical operation on a single connection with a single commit.
+// The transaction is bound to the current thread: while it is open, DatabaseConfiguration hands every
+// repository call on this thread the same connection, so operations compose into one transaction.
+//
+//     try (UnitOfWork unitOfWork = UnitOfWork.begin()) {
+//         Connection connection = unitOfWork.getConnection();
+//         ...
+//         unitOfWork.commit();
+//     }
+//
+// A unit of work begun while another is open joins it; only the outermost one commits. Closing without
+// committing rolls the whole transaction back.
+public final class UnitOfWork implements AutoCloseable {
+    private static final ThreadLocal<Transaction> CURRENT = new ThreadLocal<>();
+
+    private final Transaction transaction;
+    private final boolean outermost;
+    private boolean committed;
+    private boolean closed;
+
+    private UnitOfWork(Transaction transaction, boolean outermost) {
+        this.transaction = transaction;
+        this.outermost = outermost;
+    }
+
+    public static UnitOfWork begin() throws SQLException {
+        Transaction transaction = CURRENT.get();
+        if (transaction != null) {
+            return new UnitOfWork(transaction, false);
+        }
+        Connection connection = DatabaseConfiguration.getConnectionPool().borrow();
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        transaction = new Transaction(connection);
+        CURRENT.set(transaction);
+        return new UnitOfWork(transaction, true);
+    }
+
+    // Runs several repository operations as one transaction, e.g. registering a patient together with
+    // their first appointment. Repositories report their own errors, so a failed operation only shows up
+    // as a rollback-only mark; the whole unit is then rolled back and an SQLException is thrown.
+    public static void run(Work work) throws SQLException {
+        try (UnitOfWork unitOfWork = begin()) {
+            work.execute();
+            unitOfWork.commit();
+        }
+    }
+
+    public static boolean isActive() {
+        return CURRENT.get() != null;
+    }
+
+    // Called by repository error handlers; a no-op when no unit of work is open
+    public static void markRollbackOnly(Throwable cause) {
+        Transaction transaction = CURRENT.get();
+        if (transaction != null) {
+            transaction.markRollbackOnly(cause);
+        }
+    }
+
+    // Runs the action once the transaction open on this thread has ended, committed or rolled back, or right away
+    // when there is none; caches use it to drop what a transaction may have changed
+    public static void afterCompletion(Runnable action) {
+        Transaction transaction = CURRENT.get();
+        if (transaction == null) {
+            action.run();
+        } else {
+            transaction.completions.add(action);
+        }
+    }
+
+    // Runs the action once the transaction open on this thread has committed, or right away when there is none.
+    // Hooks of both kinds run in the order they were added.
+    public static void afterCommit(Runnable action) {
+        Transaction transaction = CURRENT.get();
+        if (transaction == null) {
+            action.run();
+        } else {
+            transaction.completions.add(() -> {
+                if (transaction.finished) {
+                    action.run();
+                }
+            });
+        }
+    }
+
+    static Connection currentConnection() {
+        Transaction transaction = CURRENT.get();
+        return transaction == null ? null : transaction.boundConnection;
+    }
+
+    public Connection getConnection() {
+        return transaction.boundConnection;
+    }
+
+    public void commit() throws SQLException {
+        if (closed) {
+            throw new SQLException("Unit of work has already been closed");
+        }
+        committed = true;
+        if (!outermost) {
+            return;
+        }
+        if (transaction.rollbackOnly) {
+            throw new SQLException("Unit of work was rolled back because one of its operations failed", transaction.failure);
+        }
+        transaction.connection.commit();
+        transaction.finished = true;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!committed) {
+            transaction.markRollbackOnly(null);
+        }
+        if (!outermost) {
+            return;
+        }
+        CURRENT.remove();
+        try {
+            if (!transaction.finished) {
+                transaction.connection.rollback();
+            }
+            // Back in auto-commit mode the pool has no open transaction to roll back on return
+            transaction.connection.setAutoCommit(true);
+        } finally {
+            transaction.connection.close();
+            transaction.complete();
+        }
+    }
+
+    public interface Work {
+        void execute() throws SQLException;
+    }
+
+    private static final class Transaction {
+        private final Connection connection;
+        private final Connection boundConnection;
+        private final List<Runnable> completions = new ArrayList<>();
+        private boolean rollbackOnly;
+        private boolean finished;
+        private Throwable failure;
+
+        private Transaction(Connection connection) {
+            this.connection = connection;
+            this.boundConnection = (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new BoundConnection(this));
+        }
+
+        private void markRollbackOnly(Throwable cause) {
+            rollbackOnly = true;
+            if (failure == null) {
+                failure = cause;
+            }
+        }
+
+        private void complete() {
+            for (Runnable completion : completions) {
+                try {
+                    completion.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // The connection repositories see inside a unit of work: transaction boundaries belong to the
+    // outermost unit, so close, commit and auto-commit changes are ignored and a rollback marks the unit
+    private static final class BoundConnection implements InvocationHandler {
+        private final Transaction transaction;
+
+        private BoundConnection(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                case "commit":
+                case "setAutoCommit":
+                    return null;
+                case "getAutoCommit":
+                    return false;
+                case "rollback":
+                    if (args == null) {
+                        transaction.markRollbackOnly(null);
+                        return null;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "UnitOfWorkConnection[" + transaction.connection + "]";
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(transaction.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
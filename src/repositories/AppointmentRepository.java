@@ -1,6 +1,9 @@
 package repositories;
 
 import database.DatabaseConfiguration;
+import database.Deadline;
+import database.QueryTimeoutException;
+import database.UnitOfWork;
 import models.address.Address;
 import models.appointment.Appointment;
 import models.appointment.AppointmentStatus;
@@ -9,6 +12,8 @@ import models.person.Patient;
 import models.treatment.Treatment;
 import models.treatment.TreatmentCategory;
 import services.Audit;
+import services.audit.AuditEvent;
+import services.audit.AuditOutcome;
 
 import java.io.IOException;
 import java.sql.*;
@@ -16,12 +21,43 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static models.person.Doctor.deserializeSpecializations;
 
 public class AppointmentRepository {
+    // Read queries; RepositoryQueries registers them with the query plan check
+    static final String VIEW_APPOINTMENTS = "SELECT a.id_appointment, a.date, a.status, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
+            + "d.firstName AS doctorFirstName, d.lastName AS doctorLastName, t.name AS treatmentName "
+            + "FROM APPOINTMENT a "
+            + "JOIN PATIENT p ON a.id_patient = p.id_patient "
+            + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
+            + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment;";
+    private static final String APPOINTMENT_DETAILS = "SELECT a.id_appointment, a.date, a.status, "
+            + "p.id_patient, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
+            + "p.email AS patientEmail, p.phoneNumber AS patientPhoneNumber, p.birthDate AS patientBirthDate, "
+            + "p.age AS patientAge, p.gender AS patientGender, p.medicalHistory AS patientMedicalHistory, "
+            + "pa.country AS patientCountry, pa.city AS patientCity, pa.street AS patientStreet, pa.number_address AS patientNumberAddress, "
+            + "d.id_doctor, d.firstName AS doctorFirstName, d.lastName AS doctorLastName, "
+            + "d.email AS doctorEmail, d.phoneNumber AS doctorPhoneNumber, d.specializations AS doctorSpecializations, "
+            + "da.country AS doctorCountry, da.city AS doctorCity, da.street AS doctorStreet, da.number_address AS doctorNumberAddress, "
+            + "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice "
+            + "FROM APPOINTMENT a "
+            + "JOIN PATIENT p ON a.id_patient = p.id_patient "
+            + "JOIN ADDRESS pa ON p.id_address = pa.id_address "
+            + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
+            + "JOIN ADDRESS da ON d.id_address = da.id_address "
+            + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment";
+    static final String SELECT_ALL_APPOINTMENTS = APPOINTMENT_DETAILS + ";";
+    static final String SELECT_APPOINTMENT_BY_ID = APPOINTMENT_DETAILS + " WHERE a.id_appointment = ?;";
+    static final String SEARCH_APPOINTMENTS_BY_PATIENT = APPOINTMENT_DETAILS + " WHERE p.firstName LIKE ? OR p.lastName LIKE ?;";
+    static final String SEARCH_APPOINTMENTS_BY_DOCTOR = APPOINTMENT_DETAILS + " WHERE d.firstName LIKE ? OR d.lastName LIKE ?;";
+    static final String SELECT_APPOINTMENT_FOR_UPDATE = "SELECT * FROM APPOINTMENT WHERE id_appointment = ?";
+    static final String APPOINTMENT_EXISTS = "SELECT 1 FROM APPOINTMENT WHERE id_appointment = ?";
+
     private static AppointmentRepository instance;
     private static Audit audit = Audit.getInstance();
+    private static final String AUDIT_ENTITY = "APPOINTMENT";
     private PatientRepository patientRepository;
     private DoctorRepository doctorRepository;
     private TreatmentRepository treatmentRepository;
@@ -46,46 +82,47 @@ public class AppointmentRepository {
         }
         return instance;
     }
-    public void createTable() {
-        String query1 = "CREATE TABLE IF NOT EXISTS APPOINTMENT (" +
-                "id_appointment INT AUTO_INCREMENT PRIMARY KEY, " +
-                "date DATETIME, " +
-                "id_patient INT, " +
-                "id_treatment INT, " +
-                "id_doctor INT, " +
-                "status VARCHAR(20), " +
-                "FOREIGN KEY (id_patient) REFERENCES PATIENT(id_patient), " +
-                "FOREIGN KEY (id_treatment) REFERENCES TREATMENT(id_treatment), " +
-                "FOREIGN KEY (id_doctor) REFERENCES DOCTOR(id_doctor));";
 
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query1);
-            audit.logAction("Appointment table has been crated");
-            DatabaseConfiguration.closeDatabaseConnection();
+    @SuppressWarnings("try")
+    public void addAppointment(Appointment appointment) {
+        try (Deadline deadline = Deadline.start("AppointmentRepository.addAppointment")) {
+            // Get the IDs from the database. The three lookups are independent and run concurrently, except inside
+            // a unit of work, where they must see its uncommitted rows and so stay on its connection.
+            int patientId;
+            int treatmentId;
+            int doctorId;
+            if (UnitOfWork.isActive()) {
+                patientId = patientRepository.getPatientId(appointment.getPatient());
+                treatmentId = treatmentRepository.getTreatmentId(appointment.getTreatment());
+                doctorId = doctorRepository.getDoctorId(appointment.getDoctor());
+            } else {
+                AsyncRepositories asyncRepositories = AsyncRepositories.getInstance();
+                CompletableFuture<Integer> patientLookup = asyncRepositories.getPatientId(appointment.getPatient());
+                CompletableFuture<Integer> treatmentLookup = asyncRepositories.getTreatmentId(appointment.getTreatment());
+                CompletableFuture<Integer> doctorLookup = asyncRepositories.getDoctorId(appointment.getDoctor());
+                patientId = AsyncRepositories.await(patientLookup);
+                treatmentId = AsyncRepositories.await(treatmentLookup);
+                doctorId = AsyncRepositories.await(doctorLookup);
+            }
+
+            addAppointment(appointment, patientId, treatmentId, doctorId);
+        } catch (QueryTimeoutException e) {
+            UnitOfWork.markRollbackOnly(e);
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
+            UnitOfWork.markRollbackOnly(e);
             System.out.println(e);
-        }catch (IOException e){
-            System.out.println("Error with audit: " + e);
         }
     }
-
-    public void addAppointment(Appointment appointment) {
+    private void addAppointment(Appointment appointment, int patientId, int treatmentId, int doctorId) throws SQLException {
         String insertAppointmentSql = "INSERT INTO APPOINTMENT(date, id_patient, id_treatment, id_doctor, status) VALUES(?, ?, ?, ?, ?);";
 
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        try (Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
             PreparedStatement appointmentStatement = connection.prepareStatement(insertAppointmentSql, Statement.RETURN_GENERATED_KEYS);
 
             // Set the appointment date
             appointmentStatement.setTimestamp(1, java.sql.Timestamp.valueOf(appointment.getDate()));
 
-            // Get the IDs from the database
-            int patientId = patientRepository.getPatientId(appointment.getPatient()); // Get patient ID
-            int treatmentId = treatmentRepository.getTreatmentId(appointment.getTreatment()); // Get treatment ID
-            int doctorId = doctorRepository.getDoctorId(appointment.getDoctor()); // Get doctor ID
-
             // Set the IDs and status
             appointmentStatement.setInt(2, patientId);
             appointmentStatement.setInt(3, treatmentId);
@@ -94,30 +131,24 @@ public class AppointmentRepository {
 
             int rowsInserted = appointmentStatement.executeUpdate();
             if (rowsInserted > 0) {
+                ResultSet generatedKeys = appointmentStatement.getGeneratedKeys();
+                long appointmentId = generatedKeys.next() ? generatedKeys.getLong(1) : AuditEvent.NO_ENTITY_ID;
                 System.out.println("\nAppointment inserted successfully.");
-                audit.logAction("Added new Appointment");
+                audit.logEvent(AUDIT_ENTITY, appointmentId, AuditOutcome.SUCCESS, "Added new Appointment");
             } else {
                 throw new SQLException("\nInserting appointment failed.");
             }
-            DatabaseConfiguration.closeDatabaseConnection();
-        } catch (SQLException e) {
-            System.out.println(e);
-        }catch (IOException e){
+        } catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void viewAppointments() {
-        String selectSql = "SELECT a.id_appointment, a.date, a.status, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
-                + "d.firstName AS doctorFirstName, d.lastName AS doctorLastName, t.name AS treatmentName "
-                + "FROM APPOINTMENT a "
-                + "JOIN PATIENT p ON a.id_patient = p.id_patient "
-                + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
-                + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment;";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try (Statement stmt = connection.createStatement()) {
+        try (Deadline deadline = Deadline.start("AppointmentRepository.viewAppointments");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             Statement stmt = connection.createStatement()) {
             boolean empty = true;
-            ResultSet resultSet = stmt.executeQuery(selectSql);
+            ResultSet resultSet = stmt.executeQuery(VIEW_APPOINTMENTS);
             while (resultSet.next()) {
                 if (empty) {
                     System.out.println("\nList of all Appointments:");
@@ -134,35 +165,23 @@ public class AppointmentRepository {
                 System.out.println(appointmentInfo);
                 System.out.println("----------------------------------------------------------------------------------------------------------------------------");
             }
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing Appointments!");
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+    @SuppressWarnings("try")
     public List<Appointment> getAllAppointments() {
         List<Appointment> appointments = new ArrayList<>();
-        String selectSql = "SELECT a.id_appointment, a.date, a.status, "
-                + "p.id_patient, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
-                + "p.email AS patientEmail, p.phoneNumber AS patientPhoneNumber, p.birthDate AS patientBirthDate, "
-                + "p.age AS patientAge, p.gender AS patientGender, p.medicalHistory AS patientMedicalHistory, "
-                + "pa.country AS patientCountry, pa.city AS patientCity, pa.street AS patientStreet, pa.number_address AS patientNumberAddress, "
-                + "d.id_doctor, d.firstName AS doctorFirstName, d.lastName AS doctorLastName, "
-                + "d.email AS doctorEmail, d.phoneNumber AS doctorPhoneNumber, d.specializations AS doctorSpecializations, "
-                + "da.country AS doctorCountry, da.city AS doctorCity, da.street AS doctorStreet, da.number_address AS doctorNumberAddress, "
-                + "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice "
-                + "FROM APPOINTMENT a "
-                + "JOIN PATIENT p ON a.id_patient = p.id_patient "
-                + "JOIN ADDRESS pa ON p.id_address = pa.id_address "
-                + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
-                + "JOIN ADDRESS da ON d.id_address = da.id_address "
-                + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment;";
-
-        try (Connection connection = DatabaseConfiguration.getDatabaseConnection();
+
+        try (Deadline deadline = Deadline.start("AppointmentRepository.getAllAppointments");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
              Statement stmt = connection.createStatement();
-             ResultSet resultSet = stmt.executeQuery(selectSql)) {
+             ResultSet resultSet = stmt.executeQuery(SELECT_ALL_APPOINTMENTS)) {
 
             while (resultSet.next()) {
                 int appointmentId = resultSet.getInt("id_appointment");
@@ -218,8 +237,10 @@ public class AppointmentRepository {
                 // Create Appointment object
                 Appointment appointment = new Appointment(date, patient, treatment, doctor, status);
                 appointments.add(appointment);
-                audit.logAction("View All Appointments");
+                audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "View All Appointments");
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -227,29 +248,13 @@ public class AppointmentRepository {
         }
         return appointments;
     }
+    @SuppressWarnings("try")
     public Appointment getAppointmentById(int id){
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
         Appointment appointment = null;
-        String selectSql = "SELECT a.id_appointment, a.date, a.status, "
-                + "p.id_patient, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
-                + "p.email AS patientEmail, p.phoneNumber AS patientPhoneNumber, p.birthDate AS patientBirthDate, "
-                + "p.age AS patientAge, p.gender AS patientGender, p.medicalHistory AS patientMedicalHistory, "
-                + "pa.country AS patientCountry, pa.city AS patientCity, pa.street AS patientStreet, pa.number_address AS patientNumberAddress, "
-                + "d.id_doctor, d.firstName AS doctorFirstName, d.lastName AS doctorLastName, "
-                + "d.email AS doctorEmail, d.phoneNumber AS doctorPhoneNumber, d.specializations AS doctorSpecializations, "
-                + "da.country AS doctorCountry, da.city AS doctorCity, da.street AS doctorStreet, da.number_address AS doctorNumberAddress, "
-                + "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice "
-                + "FROM APPOINTMENT a "
-                + "JOIN PATIENT p ON a.id_patient = p.id_patient "
-                + "JOIN ADDRESS pa ON p.id_address = pa.id_address "
-                + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
-                + "JOIN ADDRESS da ON d.id_address = da.id_address "
-                + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment "
-                + "WHERE a.id_appointment = ?;";
 
-
-        try {
-            PreparedStatement statement = connection.prepareStatement(selectSql);
+        try (Deadline deadline = Deadline.start("AppointmentRepository.getAppointmentById");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_APPOINTMENT_BY_ID)) {
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
@@ -307,8 +312,8 @@ public class AppointmentRepository {
                 appointment = new Appointment(date, patient, treatment, doctor, status);
 
             }
-
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -318,27 +323,13 @@ public class AppointmentRepository {
 
         return appointment;
     }
+    @SuppressWarnings("try")
     public List<Appointment> searchAppointmentsByPatient(String name) {
         List<Appointment> appointments = new ArrayList<>();
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT a.id_appointment, a.date, a.status, "
-                + "p.id_patient, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
-                + "p.email AS patientEmail, p.phoneNumber AS patientPhoneNumber, p.birthDate AS patientBirthDate, "
-                + "p.age AS patientAge, p.gender AS patientGender, p.medicalHistory AS patientMedicalHistory, "
-                + "pa.country AS patientCountry, pa.city AS patientCity, pa.street AS patientStreet, pa.number_address AS patientNumberAddress, "
-                + "d.id_doctor, d.firstName AS doctorFirstName, d.lastName AS doctorLastName, "
-                + "d.email AS doctorEmail, d.phoneNumber AS doctorPhoneNumber, d.specializations AS doctorSpecializations, "
-                + "da.country AS doctorCountry, da.city AS doctorCity, da.street AS doctorStreet, da.number_address AS doctorNumberAddress, "
-                + "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice "
-                + "FROM APPOINTMENT a "
-                + "JOIN PATIENT p ON a.id_patient = p.id_patient "
-                + "JOIN ADDRESS pa ON p.id_address = pa.id_address "
-                + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
-                + "JOIN ADDRESS da ON d.id_address = da.id_address "
-                + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment "
-                + "WHERE p.firstName LIKE ? OR p.lastName LIKE ?;";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
+
+        try (Deadline deadline = Deadline.start("AppointmentRepository.searchAppointmentsByPatient");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement stmt = connection.prepareStatement(SEARCH_APPOINTMENTS_BY_PATIENT)) {
             stmt.setString(1, "%" + name + "%");
             stmt.setString(2, "%" + name + "%");
 
@@ -399,8 +390,9 @@ public class AppointmentRepository {
                 Appointment appointment = new Appointment(date, patient, treatment, doctor, status);
                 appointments.add(appointment);
             }
-            audit.logAction("Searched Appointment by Patient name "+name.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched Appointment by Patient name "+name.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -408,27 +400,13 @@ public class AppointmentRepository {
         }
         return appointments;
     }
+    @SuppressWarnings("try")
     public List<Appointment> searchAppointmentsByDoctor(String name) {
         List<Appointment> appointments = new ArrayList<>();
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT a.id_appointment, a.date, a.status, "
-                + "p.id_patient, p.firstName AS patientFirstName, p.lastName AS patientLastName, "
-                + "p.email AS patientEmail, p.phoneNumber AS patientPhoneNumber, p.birthDate AS patientBirthDate, "
-                + "p.age AS patientAge, p.gender AS patientGender, p.medicalHistory AS patientMedicalHistory, "
-                + "pa.country AS patientCountry, pa.city AS patientCity, pa.street AS patientStreet, pa.number_address AS patientNumberAddress, "
-                + "d.id_doctor, d.firstName AS doctorFirstName, d.lastName AS doctorLastName, "
-                + "d.email AS doctorEmail, d.phoneNumber AS doctorPhoneNumber, d.specializations AS doctorSpecializations, "
-                + "da.country AS doctorCountry, da.city AS doctorCity, da.street AS doctorStreet, da.number_address AS doctorNumberAddress, "
-                + "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice "
-                + "FROM APPOINTMENT a "
-                + "JOIN PATIENT p ON a.id_patient = p.id_patient "
-                + "JOIN ADDRESS pa ON p.id_address = pa.id_address "
-                + "JOIN DOCTOR d ON a.id_doctor = d.id_doctor "
-                + "JOIN ADDRESS da ON d.id_address = da.id_address "
-                + "JOIN TREATMENT t ON a.id_treatment = t.id_treatment "
-                + "WHERE d.firstName LIKE ? OR d.lastName LIKE ?;";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
+
+        try (Deadline deadline = Deadline.start("AppointmentRepository.searchAppointmentsByDoctor");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement stmt = connection.prepareStatement(SEARCH_APPOINTMENTS_BY_DOCTOR)) {
             stmt.setString(1, "%" + name + "%");
             stmt.setString(2, "%" + name + "%");
 
@@ -489,8 +467,9 @@ public class AppointmentRepository {
                 Appointment appointment = new Appointment(date, patient, treatment, doctor, status);
                 appointments.add(appointment);
             }
-            audit.logAction("Searched Appointments by Doctor Name "+name.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched Appointments by Doctor Name "+name.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -498,12 +477,12 @@ public class AppointmentRepository {
         }
         return appointments;
     }
+    @SuppressWarnings("try")
     public void updateAppointment(int id, Appointment appointment) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("AppointmentRepository.updateAppointment");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
             // Retrieve the treatment details
-            String selectAppointmentSql = "SELECT * FROM APPOINTMENT WHERE id_appointment = ?";
-            PreparedStatement selectStatement = connection.prepareStatement(selectAppointmentSql);
+            PreparedStatement selectStatement = connection.prepareStatement(SELECT_APPOINTMENT_FOR_UPDATE);
             selectStatement.setInt(1, id);
             ResultSet resultSet = selectStatement.executeQuery();
 
@@ -529,58 +508,65 @@ public class AppointmentRepository {
 
                 appointmentStatement.executeUpdate();
                 System.out.println("\nThe appointment was updated.");
-                audit.logAction("Updated Appointment with id "+id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Updated Appointment with id "+id);
             }
 
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing appointment with this ID!");
-                audit.logAction("No appointment found for update with the given ID "+id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No appointment found for update with the given ID "+id);
             }
+        } catch (QueryTimeoutException e) {
+            UnitOfWork.markRollbackOnly(e);
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
+            UnitOfWork.markRollbackOnly(e);
             e.printStackTrace();
         }
          catch (IOException e){
              System.out.println("Error with audit: " + e);
          }
     }
+    @SuppressWarnings("try")
     public boolean appointmentExists(int id) {
-        String checkTreatmentSql = "SELECT 1 FROM APPOINTMENT WHERE id_appointment = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try {
-            PreparedStatement statement = connection.prepareStatement(checkTreatmentSql);
+        try (Deadline deadline = Deadline.start("AppointmentRepository.appointmentExists");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
+            PreparedStatement statement = connection.prepareStatement(APPOINTMENT_EXISTS);
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
             boolean exists = resultSet.next();
 
-            DatabaseConfiguration.closeDatabaseConnection();
             return exists;
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+            return false;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
     }
+    @SuppressWarnings("try")
     public void deleteAppointmentById(int id) {
         String deleteAppointmentSql = "DELETE FROM APPOINTMENT WHERE id_appointment = ?";
 
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("AppointmentRepository.deleteAppointmentById");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
             PreparedStatement statement = connection.prepareStatement(deleteAppointmentSql);
             statement.setInt(1, id);
 
             int rowsDeleted = statement.executeUpdate();
             if (rowsDeleted > 0) {
                 System.out.println("\nAppointment deleted successfully.");
-                audit.logAction("Deleted appointment with ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Deleted appointment with ID: " + id);
             } else {
                 System.out.println("\nNo appointment found with ID: " + id);
-                audit.logAction("No appointment found for deletion with the given ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No appointment found for deletion with the given ID: " + id);
             }
-
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            UnitOfWork.markRollbackOnly(e);
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
+            UnitOfWork.markRollbackOnly(e);
             e.printStackTrace();
         }
          catch (IOException e){
@@ -0,0 +1,285 @@
+package repositories;
+
+import database.Deadline;
+import models.appointment.Appointment;
+import models.payment.Payment;
+import models.person.Doctor;
+import models.person.Patient;
+import models.treatment.Treatment;
+import models.treatment.TreatmentCategory;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking facade over the five repositories: every call runs on its own thread and returns a
+// CompletableFuture, so independent lookups can run concurrently. On JDK 21+ each call gets a virtual
+// thread; on older runtimes a bounded pool of platform threads is used instead. Either way the number
+// of queries actually running at once is capped by the connection pool.
+//
+// Calls run on another thread, so they never join a UnitOfWork open on the caller's thread. A Deadline open on the
+// caller's thread is carried over to the call, and await gives up once it has passed.
+public class AsyncRepositories {
+    private static AsyncRepositories instance;
+
+    private final ExecutorService executor = createExecutor();
+    private final PatientRepository patientRepository = PatientRepository.getInstance();
+    private final DoctorRepository doctorRepository = DoctorRepository.getInstance();
+    private final TreatmentRepository treatmentRepository = TreatmentRepository.getInstance();
+    private final AppointmentRepository appointmentRepository = AppointmentRepository.getInstance();
+    private final PaymentRepository paymentRepository = PaymentRepository.getInstance();
+
+    private AsyncRepositories() { }
+
+    static {
+        try {
+            instance = new AsyncRepositories();
+        } catch (Exception e) {
+            throw new RuntimeException("Exception occurred in creating AsyncRepositories singleton instance");
+        }
+    }
+
+    public static AsyncRepositories getInstance() {
+        if (instance == null) {
+            instance = new AsyncRepositories();
+        }
+        return instance;
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Virtual threads are not available on this runtime
+            int threads = Integer.getInteger("clinicdb.async.threads", 16);
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "repository-async-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    // Waits for a result, turning a failed lookup back into the SQLException the repository threw. Under a
+    // deadline it waits no longer than the time left, then throws its QueryTimeoutException.
+    public static <T> T await(CompletableFuture<T> future) throws SQLException {
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline == null) {
+                return future.join();
+            }
+            while (true) {
+                try {
+                    return future.get(Math.max(1, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    deadline.checkExpired();
+                }
+            }
+        } catch (CompletionException | ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a repository call", e);
+        }
+    }
+
+    @SuppressWarnings("try")
+    public <T> CompletableFuture<T> supply(RepositoryCall<T> call) {
+        Deadline caller = Deadline.current();
+        return CompletableFuture.supplyAsync(() -> {
+            try (Deadline carried = Deadline.carry(caller)) {
+                return call.execute();
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @SuppressWarnings("try")
+    public CompletableFuture<Void> run(Runnable call) {
+        Deadline caller = Deadline.current();
+        return CompletableFuture.runAsync(() -> {
+            try (Deadline carried = Deadline.carry(caller)) {
+                call.run();
+            }
+        }, executor);
+    }
+
+    public interface RepositoryCall<T> {
+        T execute() throws SQLException;
+    }
+
+    //---------------------------------------------------------------PATIENTS-------------------------------------------------------------------
+    public CompletableFuture<Integer> getPatientId(Patient patient) {
+        return supply(() -> patientRepository.getPatientId(patient));
+    }
+
+    public CompletableFuture<List<Patient>> getAllPatients() {
+        return supply(patientRepository::getAllPatients);
+    }
+
+    public CompletableFuture<Patient> getPatientById(int id) {
+        return supply(() -> patientRepository.getPatientById(id));
+    }
+
+    public CompletableFuture<Boolean> patientExists(int id) {
+        return supply(() -> patientRepository.patientExists(id));
+    }
+
+    public CompletableFuture<Void> addPatient(Patient patient) {
+        return run(() -> patientRepository.addPatient(patient));
+    }
+
+    public CompletableFuture<Void> updatePatient(int id, Patient patient) {
+        return run(() -> patientRepository.updatePatient(id, patient));
+    }
+
+    public CompletableFuture<Void> deletePatientById(int id) {
+        return run(() -> patientRepository.deletePatientById(id));
+    }
+
+    //---------------------------------------------------------------DOCTORS-------------------------------------------------------------------
+    public CompletableFuture<Integer> getDoctorId(Doctor doctor) {
+        return supply(() -> doctorRepository.getDoctorId(doctor));
+    }
+
+    public CompletableFuture<List<Doctor>> getAllDoctors() {
+        return supply(doctorRepository::getAllDoctors);
+    }
+
+    public CompletableFuture<List<Doctor>> getDoctorsBySpecialization(TreatmentCategory specialization) {
+        return supply(() -> doctorRepository.getDoctorsBySpecialization(specialization));
+    }
+
+    public CompletableFuture<Doctor> getDoctorById(int id) {
+        return supply(() -> doctorRepository.getDoctorById(id));
+    }
+
+    public CompletableFuture<Boolean> doctorExists(int id) {
+        return supply(() -> doctorRepository.doctorExists(id));
+    }
+
+    public CompletableFuture<Void> addDoctor(Doctor doctor) {
+        return run(() -> doctorRepository.addDoctor(doctor));
+    }
+
+    public CompletableFuture<Void> updateDoctor(int id, Doctor doctor) {
+        return run(() -> doctorRepository.updateDoctor(id, doctor));
+    }
+
+    public CompletableFuture<Void> deleteDoctorById(int id) {
+        return run(() -> doctorRepository.deleteDoctorById(id));
+    }
+
+    //---------------------------------------------------------------TREATMENTS-------------------------------------------------------------------
+    public CompletableFuture<Integer> getTreatmentId(Treatment treatment) {
+        return supply(() -> treatmentRepository.getTreatmentId(treatment));
+    }
+
+    public CompletableFuture<List<Treatment>> getAllTreatments() {
+        return supply(treatmentRepository::getAllTreatments);
+    }
+
+    public CompletableFuture<List<Treatment>> getTreatmentsByCategory(TreatmentCategory category) {
+        return supply(() -> treatmentRepository.getTreatmentsByCategory(category));
+    }
+
+    public CompletableFuture<Treatment> getTreatmentById(int id) {
+        return supply(() -> treatmentRepository.getTreatmentById(id));
+    }
+
+    public CompletableFuture<Boolean> treatmentExists(int id) {
+        return supply(() -> treatmentRepository.treatmentExists(id));
+    }
+
+    public CompletableFuture<Void> addTreatment(Treatment treatment) {
+        return run(() -> treatmentRepository.addTreatment(treatment));
+    }
+
+    public CompletableFuture<Void> updateTreatment(int id, Treatment treatment) {
+        return run(() -> treatmentRepository.updateTreatment(id, treatment));
+    }
+
+    public CompletableFuture<Void> deleteTreatmentById(int id) {
+        return run(() -> treatmentRepository.deleteTreatmentById(id));
+    }
+
+    //---------------------------------------------------------------APPOINTMENTS-------------------------------------------------------------------
+    public CompletableFuture<List<Appointment>> getAllAppointments() {
+        return supply(appointmentRepository::getAllAppointments);
+    }
+
+    public CompletableFuture<Appointment> getAppointmentById(int id) {
+        return supply(() -> appointmentRepository.getAppointmentById(id));
+    }
+
+    public CompletableFuture<List<Appointment>> searchAppointmentsByPatient(String name) {
+        return supply(() -> appointmentRepository.searchAppointmentsByPatient(name));
+    }
+
+    public CompletableFuture<List<Appointment>> searchAppointmentsByDoctor(String name) {
+        return supply(() -> appointmentRepository.searchAppointmentsByDoctor(name));
+    }
+
+    public CompletableFuture<Boolean> appointmentExists(int id) {
+        return supply(() -> appointmentRepository.appointmentExists(id));
+    }
+
+    public CompletableFuture<Void> addAppointment(Appointment appointment) {
+        return run(() -> appointmentRepository.addAppointment(appointment));
+    }
+
+    public CompletableFuture<Void> updateAppointment(int id, Appointment appointment) {
+        return run(() -> appointmentRepository.updateAppointment(id, appointment));
+    }
+
+    public CompletableFuture<Void> deleteAppointmentById(int id) {
+        return run(() -> appointmentRepository.deleteAppointmentById(id));
+    }
+
+    //---------------------------------------------------------------PAYMENTS-------------------------------------------------------------------
+    public CompletableFuture<Payment> getPaymentById(int id) {
+        return supply(() -> paymentRepository.getPaymentById(id));
+    }
+
+    public CompletableFuture<List<Payment>> searchPaymentsByPatient(String name) {
+        return supply(() -> paymentRepository.searchPaymentsByPatient(name));
+    }
+
+    public CompletableFuture<Boolean> paymentExists(int id) {
+        return supply(() -> paymentRepository.paymentExists(id));
+    }
+
+    public CompletableFuture<Void> addPayment(Payment payment) {
+        return run(() -> paymentRepository.addPayment(payment));
+    }
+
+    public CompletableFuture<Void> updatePayment(int id, Payment payment) {
+        return run(() -> paymentRepository.updatePayment(id, payment));
+    }
+
+    public CompletableFuture<Void> deletePaymentById(int id) {
+        return run(() -> paymentRepository.deletePaymentById(id));
+    }
+}
@@ -1,24 +1,57 @@
 package repositories;
 
 import database.DatabaseConfiguration;
+import database.ChangeVersions;
+import database.Deadline;
+import database.QueryTimeoutException;
+import database.UnitOfWork;
 import models.address.Address;
 import models.person.Doctor;
 import models.treatment.TreatmentCategory;
+import repositories.cache.DoctorDirectory;
+import repositories.cache.IdentityCache;
 import services.Audit;
+import services.audit.AuditEvent;
+import services.audit.AuditOutcome;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import static models.person.Doctor.deserializeSpecializations;
 
 public class DoctorRepository {
+    // Read queries; RepositoryQueries registers them with the query plan check
+    static final String SELECT_DOCTOR_ID = "SELECT id_doctor FROM DOCTOR WHERE firstName = ? AND lastName = ? AND email = ?";
+    // Loads the directory that getAllDoctors and the searches by specialization are answered from (see DoctorDirectory)
+    static final String SELECT_ALL_DOCTORS = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.id_address=ADDRESS.id_address;";
+    static final String VIEW_DOCTORS = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.id_address=ADDRESS.id_address;";
+    static final String SEARCH_DOCTORS_BY_NAME = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.ID_ADDRESS=ADDRESS.ID_ADDRESS " +
+            "WHERE firstName LIKE ? OR lastName LIKE ?";
+    static final String SELECT_DOCTOR_FOR_UPDATE = "SELECT * FROM DOCTOR WHERE id_doctor = ?";
+    static final String SELECT_DOCTOR_BY_ID = "SELECT d.*, a.country, a.city, a.street, a.number_address FROM DOCTOR d " +
+            "INNER JOIN ADDRESS a ON d.id_address = a.id_address WHERE d.id_doctor = ?";
+    static final String DOCTOR_EXISTS = "SELECT 1 FROM DOCTOR WHERE id_doctor = ?";
+
 
     private static DoctorRepository instance;
     private static Audit audit = Audit.getInstance();
-    private DoctorRepository(){}
+    private static final String AUDIT_ENTITY = "DOCTOR";
+    // Bookings and payments resolve a doctor by name and email once per write; see IdentityCache
+    private static final int MAX_CACHED_IDS = 100_000;
+    private final IdentityCache<List<String>> ids = new IdentityCache<>("DOCTOR", MAX_CACHED_IDS);
+    private final DoctorDirectory directory = new DoctorDirectory(this::loadDirectory);
+    private DoctorRepository(){
+        // Another instance changed doctors
+        ChangeVersions.register("DOCTOR", ids::clear);
+        ChangeVersions.register("DOCTOR", directory::invalidate);
+    }
 
     static {
         try {
@@ -34,64 +67,74 @@ public class DoctorRepository {
         }
         return instance;
     }
-    public void createTable() {
-        String query1 = "CREATE TABLE IF NOT EXISTS ADDRESS (" +
-                "id_address INT AUTO_INCREMENT PRIMARY KEY, " +
-                "country VARCHAR(100), " +
-                "city VARCHAR(100), " +
-                "street VARCHAR(100), " +
-                "number_address INT);";
-
-        String query2 = "CREATE TABLE IF NOT EXISTS DOCTOR (" +
-                "id_doctor INT AUTO_INCREMENT PRIMARY KEY, " +
-                "firstName VARCHAR(100), " +
-                "lastName VARCHAR(100), " +
-                "email VARCHAR(100), " +
-                "id_address INT, " +
-                "phoneNumber VARCHAR(20), " +
-                "specializations TEXT, " + // Câmp pentru specializările doctorului, de tip text
-                "FOREIGN KEY (id_address) REFERENCES ADDRESS(id_address) ON DELETE CASCADE);";
-
+    @SuppressWarnings("try")
+    public int getDoctorId(Doctor doctor) throws SQLException {
+        List<String> key = naturalKey(doctor);
+        Integer cached = ids.get(key);
+        if (cached != null) {
+            logIdLookup(cached);
+            return cached;
+        }
+        long generation = ids.generation();
+        try (Deadline deadline = Deadline.start("DoctorRepository.getDoctorId");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_DOCTOR_ID)) {
+            statement.setString(1, doctor.getFirstName());
+            statement.setString(2, doctor.getLastName());
+            statement.setString(3, doctor.getEmail());
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                int doctorId = resultSet.getInt("id_doctor");
+                ids.found(key, doctorId, generation);
+                logIdLookup(doctorId);
+                return doctorId;
+            } else {
+                throw new SQLException("Doctor not found in the database.");
+            }
+        }
+    }
+    private static void logIdLookup(int doctorId) {
         try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query1);
-            statement.executeUpdate(query2);
-            audit.logAction("Doctor and Address tables have been crated");
-            DatabaseConfiguration.closeDatabaseConnection();
-        } catch (SQLException e) {
-            System.out.println(e);
-        }catch (IOException e){
+            audit.logEvent(AUDIT_ENTITY, doctorId, AuditOutcome.SUCCESS, "Got Doctor Id");
+        } catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
-    public int getDoctorId(Doctor doctor) throws SQLException {
-        String query = "SELECT id_doctor FROM DOCTOR WHERE firstName = ? AND lastName = ? AND email = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setString(1, doctor.getFirstName());
-        statement.setString(2, doctor.getLastName());
-        statement.setString(3, doctor.getEmail());
-        ResultSet resultSet = statement.executeQuery();
-        if (resultSet.next()) {
-            try {
-                audit.logAction("Got Doctor Id");
-            } catch (IOException e){
-                System.out.println("Error with audit: " + e);
-            }
-            return resultSet.getInt("id_doctor");
-        } else {
-            throw new SQLException("Doctor not found in the database.");
-        }
+    private static List<String> naturalKey(Doctor doctor) {
+        return Arrays.asList(doctor.getFirstName(), doctor.getLastName(), doctor.getEmail());
+    }
+    public String idCacheSummary() {
+        return ids.summary();
     }
+    @SuppressWarnings("try")
     public List<Doctor> getAllDoctors() {
-        List<Doctor> doctors = new ArrayList<>();
-
-        String selectSql = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.id_address=ADDRESS.id_address;";
-
-        try (Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        try (Deadline deadline = Deadline.start("DoctorRepository.getAllDoctors")) {
+            return directory.get().all();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
+    @SuppressWarnings("try")
+    public List<Doctor> getDoctorsBySpecialization(TreatmentCategory specialization) {
+        try (Deadline deadline = Deadline.start("DoctorRepository.getDoctorsBySpecialization")) {
+            return directory.get().with(specialization);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
+    @SuppressWarnings("try")
+    private NavigableMap<Integer, Doctor> loadDirectory() throws SQLException {
+        NavigableMap<Integer, Doctor> doctors = new TreeMap<>();
+        try (Deadline deadline = Deadline.start("DoctorRepository.loadDirectory");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
              Statement stmt = connection.createStatement();
-             ResultSet resultSet = stmt.executeQuery(selectSql)) {
+             ResultSet resultSet = stmt.executeQuery(SELECT_ALL_DOCTORS)) {
 
             while (resultSet.next()) {
                 Doctor doctor = new Doctor(
@@ -111,20 +154,22 @@ public class DoctorRepository {
                 Set<TreatmentCategory> specializations = deserializeSpecializations(resultSet.getString("specializations"));
                 doctor.setSpecializations(specializations);
 
-                doctors.add(doctor);
+                doctors.put(resultSet.getInt("id_doctor"), doctor);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-
         return doctors;
     }
+    public String directorySummary() {
+        return directory.summary();
+    }
+    @SuppressWarnings("try")
     public void addDoctor(Doctor doctor) {
         Address address = doctor.getAddress();
         String insertAddressSql = "INSERT INTO ADDRESS(country, city, street, number_address) VALUES(?, ?, ?, ?);";
 
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        try (Deadline deadline = Deadline.start("DoctorRepository.addDoctor");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
             PreparedStatement addressStatement = connection.prepareStatement(insertAddressSql, Statement.RETURN_GENERATED_KEYS);
             addressStatement.setString(1,address.getCountry());
             addressStatement.setString(2,address.getCity());
@@ -150,11 +195,17 @@ public class DoctorRepository {
 
                 int rowsInserted = doctorStatement.executeUpdate();
                 generatedKeys = doctorStatement.getGeneratedKeys();
+                long doctorId = generatedKeys.next() ? generatedKeys.getLong(1) : AuditEvent.NO_ENTITY_ID;
 
-                DatabaseConfiguration.closeDatabaseConnection();
                 if (rowsInserted > 0) {
+                    ChangeVersions.bump(connection, "DOCTOR");
+                    unitOfWork.commit();
+                    if (doctorId != AuditEvent.NO_ENTITY_ID) {
+                        ids.inserted(naturalKey(doctor), (int) doctorId);
+                        directory.changed((int) doctorId, doctor);
+                    }
                     System.out.println("\nDoctor inserted successfully.");
-                    audit.logAction("Added new Address and Doctor");
+                    audit.logEvent(AUDIT_ENTITY, doctorId, AuditOutcome.SUCCESS, "Added new Address and Doctor");
 
                 } else {
                     throw new SQLException("\nInserting doctor failed.");
@@ -162,7 +213,8 @@ public class DoctorRepository {
             }else {
                 throw new SQLException("\nInserting address failed, no ID obtained.");
             }
-
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             System.out.println(e);
         }
@@ -170,13 +222,13 @@ public class DoctorRepository {
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void viewDoctors() {
-        String selectSql = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.id_address=ADDRESS.id_address;";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try (Statement stmt = connection.createStatement()) {
+        try (Deadline deadline = Deadline.start("DoctorRepository.viewDoctors");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             Statement stmt = connection.createStatement()) {
             boolean empty = true;
-            ResultSet resultSet = stmt.executeQuery(selectSql);
+            ResultSet resultSet = stmt.executeQuery(VIEW_DOCTORS);
             while (resultSet.next()) {
                 if (empty) {
                     System.out.println("\nList of all Doctors:");
@@ -200,11 +252,12 @@ public class DoctorRepository {
                 System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
 
             }
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing Doctors!");
             }
-            audit.logAction("View All Doctors");
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "View All Doctors");
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -212,36 +265,41 @@ public class DoctorRepository {
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void searchDoctorsBySpecialization(String specialization) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.ID_ADDRESS=ADDRESS.ID_ADDRESS " +
-                "WHERE specializations LIKE ?";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
-            stmt.setString(1, "%" + specialization + "%");
-
-            ResultSet resultSet = stmt.executeQuery();
+        try (Deadline deadline = Deadline.start("DoctorRepository.searchDoctorsBySpecialization")) {
+            DoctorDirectory.Snapshot doctors = directory.get();
+
+            // Was specializations LIKE '%specialization%'; the menu passes a whole category name
+            Set<Integer> ids = new TreeSet<>();
+            for (TreatmentCategory category : TreatmentCategory.values()) {
+                if (category.name().contains(specialization.toUpperCase())) {
+                    ids.addAll(doctors.idsWith(category));
+                }
+            }
 
             boolean empty = true;
 
-            while (resultSet.next()) {
+            for (int id : ids) {
                 if (empty) {
                     System.out.println("\nDoctors with Specialization '" + specialization + "':");
                     System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
                     empty = false;
                 }
 
+                Doctor doctor = doctors.get(id);
+                Address address = doctor.getAddress();
                 StringBuilder doctorInfo = new StringBuilder();
-                doctorInfo.append("Doctor ID: ").append(resultSet.getInt("id_doctor")).append(" | ")
-                        .append("Full Name: ").append(resultSet.getString("firstName")).append(" ")
-                        .append(resultSet.getString("lastName")).append(" | ")
-                        .append("Email: ").append(resultSet.getString("email")).append(" | ")
-                        .append("Phone Number: ").append(resultSet.getString("phoneNumber")).append(" | ")
-                        .append("Specializations: ").append(resultSet.getString("specializations")).append(" | ")
-                        .append("Address: ").append(resultSet.getString("country")).append(", ")
-                        .append(resultSet.getString("city")).append(", ")
-                        .append(resultSet.getString("street")).append(" ")
-                        .append(resultSet.getInt("number_address"));
+                doctorInfo.append("Doctor ID: ").append(id).append(" | ")
+                        .append("Full Name: ").append(doctor.getFirstName()).append(" ")
+                        .append(doctor.getLastName()).append(" | ")
+                        .append("Email: ").append(doctor.getEmail()).append(" | ")
+                        .append("Phone Number: ").append(doctor.getPhoneNumber()).append(" | ")
+                        .append("Specializations: ").append(doctor.serializeSpecializations()).append(" | ")
+                        .append("Address: ").append(address.getCountry()).append(", ")
+                        .append(address.getCity()).append(", ")
+                        .append(address.getStreet()).append(" ")
+                        .append(address.getNumber());
 
                 System.out.println(doctorInfo);
                 System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
@@ -250,20 +308,20 @@ public class DoctorRepository {
             if (empty) {
                 System.out.println("\nNo doctors found with Specialization '" + specialization.toUpperCase() + "'.");
             }
-        audit.logAction("Searched doctors by specialization " + specialization.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+        audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched doctors by specialization " + specialization.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void searchDoctorsByName(String name){
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT * FROM DOCTOR INNER JOIN ADDRESS ON DOCTOR.ID_ADDRESS=ADDRESS.ID_ADDRESS " +
-                "WHERE firstName LIKE ? OR lastName LIKE ?";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
+        try (Deadline deadline = Deadline.start("DoctorRepository.searchDoctorsByName");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement stmt = connection.prepareStatement(SEARCH_DOCTORS_BY_NAME)) {
             stmt.setString(1, "%" + name + "%");
             stmt.setString(2, "%" + name + "%");
 
@@ -296,16 +354,16 @@ public class DoctorRepository {
             if (empty) {
                 System.out.println("\nNo doctors found with the name '" + name.toUpperCase() + "'.");
             }
-            audit.logAction("Searched doctors by name " + name.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched doctors by name " + name.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
-    private void updateAddress(int ID, Address a) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
+    private void updateAddress(Connection connection, int ID, Address a) {
         try {
 
             String updateAddressSql = "UPDATE ADDRESS SET country = ?, city = ?, street = ?, number_address = ? WHERE id_address = ?";
@@ -319,15 +377,17 @@ public class DoctorRepository {
             addressStatement.executeUpdate();
         }
         catch (SQLException e){
+            UnitOfWork.markRollbackOnly(e);
             System.out.println(e);
         }
     }
+    @SuppressWarnings("try")
     public void updateDoctor(int id, Doctor doctor) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("DoctorRepository.updateDoctor");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
             // Retrieve the doctor and address details
-            String selectDoctorSql = "SELECT * FROM DOCTOR WHERE id_doctor = ?";
-            PreparedStatement selectStatement = connection.prepareStatement(selectDoctorSql);
+            PreparedStatement selectStatement = connection.prepareStatement(SELECT_DOCTOR_FOR_UPDATE);
             selectStatement.setInt(1, id);
             ResultSet resultSet = selectStatement.executeQuery();
 
@@ -337,7 +397,7 @@ public class DoctorRepository {
                 int idAddress = resultSet.getInt("id_address");
 
                 // Update the address
-                updateAddress(idAddress, doctor.getAddress());
+                updateAddress(connection, idAddress, doctor.getAddress());
 
                 // Update the doctor details
                 String updateDoctorSql = "UPDATE DOCTOR SET firstName = ?, lastName = ?, email = ?, phoneNumber = ?, specializations = ? WHERE id_doctor = ?";
@@ -350,15 +410,20 @@ public class DoctorRepository {
                 doctorStatement.setInt(6, id);
 
                 doctorStatement.executeUpdate();
+                ids.updated(id, naturalKey(doctor));
+                directory.changed(id, doctor);
+                ChangeVersions.bump(connection, "DOCTOR");
+                unitOfWork.commit();
                 System.out.println("\nThe doctor and address were updated.");
-                audit.logAction("The doctor and address were updated" + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "The doctor and address were updated" + id);
             }
 
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing doctor with this ID!");
-                audit.logAction("No doctor found for update with the given ID "+id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No doctor found for update with the given ID "+id);
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -366,14 +431,13 @@ public class DoctorRepository {
              System.out.println("Error with audit: " + e);
          }
     }
+    @SuppressWarnings("try")
     public Doctor getDoctorById(int id) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
         Doctor doctor = null;
-        String selectSql = "SELECT d.*, a.country, a.city, a.street, a.number_address FROM DOCTOR d " +
-                "INNER JOIN ADDRESS a ON d.id_address = a.id_address WHERE d.id_doctor = ?";
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(selectSql);
+        try (Deadline deadline = Deadline.start("DoctorRepository.getDoctorById");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_DOCTOR_BY_ID)) {
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
@@ -398,8 +462,9 @@ public class DoctorRepository {
                 Set<TreatmentCategory> specializations = deserializeSpecializations(specializationsString);
                 doctor.setSpecializations(specializations);
             }
-            audit.logAction("Got Doctor by id "+id);
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, id, doctor == null ? AuditOutcome.NOT_FOUND : AuditOutcome.SUCCESS, "Got Doctor by id "+id);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -408,31 +473,33 @@ public class DoctorRepository {
          }
         return doctor;
     }
+    @SuppressWarnings("try")
     public boolean doctorExists(int id) {
-        String checkDoctorSql = "SELECT 1 FROM DOCTOR WHERE id_doctor = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try {
-            PreparedStatement statement = connection.prepareStatement(checkDoctorSql);
+        try (Deadline deadline = Deadline.start("DoctorRepository.doctorExists");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
+            PreparedStatement statement = connection.prepareStatement(DOCTOR_EXISTS);
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
             boolean exists = resultSet.next();
 
-            DatabaseConfiguration.closeDatabaseConnection();
             return exists;
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+            return false;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
     }
+    @SuppressWarnings("try")
     public void deleteDoctorById(int id) {
         String deleteDoctorSql = "DELETE FROM DOCTOR WHERE id_doctor = ?";
         String deleteAddressSql = "DELETE FROM ADDRESS WHERE id_address = (SELECT id_address FROM DOCTOR WHERE id_doctor = ?)";
 
-
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("DoctorRepository.deleteDoctorById");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
 
             // Delete the address associated with the patient
             PreparedStatement deleteAddressStatement = connection.prepareStatement(deleteAddressSql);
@@ -443,16 +510,24 @@ public class DoctorRepository {
             PreparedStatement deleteDoctorStatement = connection.prepareStatement(deleteDoctorSql);
             deleteDoctorStatement.setInt(1, id);
             int doctorRowsDeleted = deleteDoctorStatement.executeUpdate();
+            ids.deleted(id);
+            if (doctorRowsDeleted > 0) {
+                directory.changed(id, null);
+            }
+            if (doctorRowsDeleted > 0 || addressRowsDeleted > 0) {
+                ChangeVersions.bump(connection, "DOCTOR");
+            }
+            unitOfWork.commit();
 
             if (doctorRowsDeleted > 0 || addressRowsDeleted > 0) {
                 System.out.println("\nDoctor deleted successfully.");
-                audit.logAction("Deleted doctor with ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Deleted doctor with ID: " + id);
             } else {
                 System.out.println("\nNo doctor found with ID: " + id);
-                audit.logAction("No doctor found for deletion with the given ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No doctor found for deletion with the given ID: " + id);
             }
-
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -1,9 +1,17 @@
 package repositories;
 
 import database.DatabaseConfiguration;
+import database.ChangeVersions;
+import database.Deadline;
+import database.QueryTimeoutException;
+import database.UnitOfWork;
 import models.address.Address;
 import models.person.Patient;
+import repositories.cache.IdentityCache;
+import repositories.cache.WeightedCache;
 import services.Audit;
+import services.audit.AuditEvent;
+import services.audit.AuditOutcome;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -13,13 +21,38 @@ import java.io.IOException;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
 public class PatientRepository {
+    // Read queries; RepositoryQueries registers them with the query plan check
+    static final String SELECT_PATIENT_ID = "SELECT id_patient FROM PATIENT WHERE firstName = ? AND lastName = ? AND email = ?";
+    static final String VIEW_PATIENTS = "SELECT * FROM PATIENT INNER JOIN ADDRESS ON PATIENT.ID_ADDRESS=ADDRESS.ID_ADDRESS;";
+    static final String SEARCH_PATIENTS_BY_NAME = "SELECT * FROM PATIENT INNER JOIN ADDRESS ON PATIENT.ID_ADDRESS=ADDRESS.ID_ADDRESS " +
+            "WHERE firstName LIKE ? OR lastName LIKE ?";
+    static final String SELECT_ALL_PATIENTS = "SELECT * FROM PATIENT INNER JOIN ADDRESS ON PATIENT.id_address=ADDRESS.id_address;";
+    static final String SELECT_PATIENT_FOR_UPDATE = "SELECT * FROM PATIENT WHERE id_patient = ?";
+    static final String SELECT_PATIENT_BY_ID = "SELECT p.*, a.country, a.city, a.street, a.number_address FROM PATIENT p " +
+            "INNER JOIN ADDRESS a ON p.id_address = a.id_address WHERE p.id_patient = ?";
+    static final String PATIENT_EXISTS = "SELECT 1 FROM PATIENT WHERE id_patient = ?";
+
     private static PatientRepository instance;
     private static Audit audit = Audit.getInstance();
-    private PatientRepository(){}
+    private static final String AUDIT_ENTITY = "PATIENT";
+    // Bookings and payments resolve a patient by name and email once per write; see IdentityCache
+    private static final int MAX_CACHED_IDS = 100_000;
+    private final IdentityCache<List<String>> ids = new IdentityCache<>("PATIENT", MAX_CACHED_IDS);
+    // Patients read by id; -Dclinicdb.cache.patients.maxBytes bounds the estimated size of the ones kept
+    private static final long PATIENT_CACHE_MAX_BYTES = Long.getLong("clinicdb.cache.patients.maxBytes", 16L * 1024 * 1024);
+    private static final long TYPICAL_PATIENT_BYTES = 1024;
+    private final WeightedCache<Integer, Patient> patients = new WeightedCache<>("PATIENT", PATIENT_CACHE_MAX_BYTES,
+            TYPICAL_PATIENT_BYTES, PatientRepository::estimateSize);
+    private PatientRepository(){
+        // Another instance changed patients; a new patient contradicts nothing cached, so only updates and deletes bump
+        ChangeVersions.register("PATIENT", ids::clear);
+        ChangeVersions.register("PATIENT", patients::clear);
+    }
 
     static {
         try {
@@ -35,44 +68,15 @@ public class PatientRepository {
         }
         return instance;
     }
-    public void createTable() {
-        String query1 = "CREATE TABLE IF NOT EXISTS ADDRESS " +
-                "(id_address INT AUTO_INCREMENT PRIMARY KEY, " +
-                "country VARCHAR(100), " +
-                "city VARCHAR(100), " +
-                "street VARCHAR(100), " +
-                "number_address INT);";
-
-        String query2 = "CREATE TABLE IF NOT EXISTS PATIENT " +
-                "(id_patient INT AUTO_INCREMENT PRIMARY KEY, " +
-                "firstName VARCHAR(100), " +
-                "lastName VARCHAR(100), " +
-                "email VARCHAR(100), " +
-                "id_address INT, " +
-                "phoneNumber VARCHAR(20), " +
-                "birthDate DATETIME, " +
-                "age INT, " +
-                "gender VARCHAR(10), " +
-                "medicalHistory TEXT, " +
-                "FOREIGN KEY (id_address) REFERENCES ADDRESS(id_address) ON DELETE CASCADE);";
-
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query1);
-            statement.executeUpdate(query2);
-            audit.logAction("Patient and address tables have been crated");
-            DatabaseConfiguration.closeDatabaseConnection();
-        } catch (Exception e) {
-            System.out.println(e);
-        }
-    }
+    @SuppressWarnings("try")
     public void addPatient(Patient patient){
         Address address = patient.getAddress();
         String insertAddressSql = "INSERT INTO ADDRESS(country, city, street, number_address) VALUES(?, ?, ?, ?);";
 
-        try{
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        // The address and the patient are written in one transaction so a failed patient insert leaves no orphan address
+        try (Deadline deadline = Deadline.start("PatientRepository.addPatient");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
             PreparedStatement addressStatement = connection.prepareStatement(insertAddressSql, Statement.RETURN_GENERATED_KEYS);
             addressStatement.setString(1,address.getCountry());
             addressStatement.setString(2,address.getCity());
@@ -101,11 +105,15 @@ public class PatientRepository {
 
                 int rowsInserted = patientStatement.executeUpdate();
                 generatedKeys = patientStatement.getGeneratedKeys();
+                long patientId = generatedKeys.next() ? generatedKeys.getLong(1) : AuditEvent.NO_ENTITY_ID;
 
-                DatabaseConfiguration.closeDatabaseConnection();
                 if (rowsInserted > 0) {
+                    unitOfWork.commit();
+                    if (patientId != AuditEvent.NO_ENTITY_ID) {
+                        ids.inserted(naturalKey(patient), (int) patientId);
+                    }
                     System.out.println("\nPatient inserted successfully.");
-                    audit.logAction("Added new Address and Patient");
+                    audit.logEvent(AUDIT_ENTITY, patientId, AuditOutcome.SUCCESS, "Added new Address and Patient");
 
                 } else {
                     throw new SQLException("\nInserting patient failed.");
@@ -114,6 +122,9 @@ public class PatientRepository {
                 throw new SQLException("\nInserting address failed, no ID obtained.");
             }
         }
+        catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+        }
         catch(SQLException e){
             System.out.println(e);
         }
@@ -121,33 +132,52 @@ public class PatientRepository {
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public int getPatientId(Patient patient) throws SQLException {
-        String query = "SELECT id_patient FROM PATIENT WHERE firstName = ? AND lastName = ? AND email = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setString(1, patient.getFirstName());
-        statement.setString(2, patient.getLastName());
-        statement.setString(3, patient.getEmail());
-
-        ResultSet resultSet = statement.executeQuery();
-        if (resultSet.next()) {
-            try {
-                audit.logAction("Get Patient Id");
-            } catch (IOException e){
-                System.out.println("Error with audit: " + e);
+        List<String> key = naturalKey(patient);
+        Integer cached = ids.get(key);
+        if (cached != null) {
+            logIdLookup(cached);
+            return cached;
+        }
+        long generation = ids.generation();
+        try (Deadline deadline = Deadline.start("PatientRepository.getPatientId");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_PATIENT_ID)) {
+            statement.setString(1, patient.getFirstName());
+            statement.setString(2, patient.getLastName());
+            statement.setString(3, patient.getEmail());
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                int patientId = resultSet.getInt("id_patient");
+                ids.found(key, patientId, generation);
+                logIdLookup(patientId);
+                return patientId;
+            } else {
+                throw new SQLException("Patient not found in the database.");
             }
-            return resultSet.getInt("id_patient");
-        } else {
-            throw new SQLException("Patient not found in the database.");
         }
     }
+    private static void logIdLookup(int patientId) {
+        try {
+            audit.logEvent(AUDIT_ENTITY, patientId, AuditOutcome.SUCCESS, "Get Patient Id");
+        } catch (IOException e){
+            System.out.println("Error with audit: " + e);
+        }
+    }
+    private static List<String> naturalKey(Patient patient) {
+        return Arrays.asList(patient.getFirstName(), patient.getLastName(), patient.getEmail());
+    }
+    public String idCacheSummary() {
+        return ids.summary();
+    }
+    @SuppressWarnings("try")
     public void viewPatients() {
-        String selectSql = "SELECT * FROM PATIENT INNER JOIN ADDRESS ON PATIENT.ID_ADDRESS=ADDRESS.ID_ADDRESS;";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try (Statement stmt = connection.createStatement()) {
+        try (Deadline deadline = Deadline.start("PatientRepository.viewPatients");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             Statement stmt = connection.createStatement()) {
             boolean empty = true;
-            ResultSet resultSet = stmt.executeQuery(selectSql);
+            ResultSet resultSet = stmt.executeQuery(VIEW_PATIENTS);
             while (resultSet.next()) {
                 if (empty) {
                     System.out.println("\nList of all Patients:");
@@ -174,11 +204,12 @@ public class PatientRepository {
                 System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
 
             }
-            audit.logAction("View all Patients");
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "View all Patients");
             if (empty) {
                 System.out.println("No existing Patients!");
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -186,12 +217,11 @@ public class PatientRepository {
              System.out.println("Error with audit: " + e);
          }
     }
+    @SuppressWarnings("try")
     public void searchPatientsByName(String name){
-        String selectSql = "SELECT * FROM PATIENT INNER JOIN ADDRESS ON PATIENT.ID_ADDRESS=ADDRESS.ID_ADDRESS " +
-                "WHERE firstName LIKE ? OR lastName LIKE ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
+        try (Deadline deadline = Deadline.start("PatientRepository.searchPatientsByName");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement stmt = connection.prepareStatement(SEARCH_PATIENTS_BY_NAME)) {
             stmt.setString(1, "%" + name + "%");
             stmt.setString(2, "%" + name + "%");
 
@@ -228,21 +258,23 @@ public class PatientRepository {
             if (empty) {
                 System.out.println("\nNo patients found with the name '" + name.toUpperCase() + "'.");
             }
-            audit.logAction("Searched Patients By Name " + name.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched Patients By Name " + name.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         } catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public List<Patient> getAllPatients() {
         List<Patient> patients = new ArrayList<>();
-        String selectSql = "SELECT * FROM PATIENT INNER JOIN ADDRESS ON PATIENT.id_address=ADDRESS.id_address;";
 
-        try (Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        try (Deadline deadline = Deadline.start("PatientRepository.getAllPatients");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
              Statement stmt = connection.createStatement();
-             ResultSet resultSet = stmt.executeQuery(selectSql)) {
+             ResultSet resultSet = stmt.executeQuery(SELECT_ALL_PATIENTS)) {
 
             while (resultSet.next()) {
                 int id = resultSet.getInt("id_patient");
@@ -271,7 +303,9 @@ public class PatientRepository {
                 // Adăugare pacient în listă
                 patients.add(patient);
             }
-            audit.logAction("Get all Patients");
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Get all Patients");
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -279,8 +313,7 @@ public class PatientRepository {
         }
         return patients;
     }
-    private void updateAddress(int ID, Address a) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
+    private void updateAddress(Connection connection, int ID, Address a) {
         try {
 
             String updateAddressSql = "UPDATE ADDRESS SET country = ?, city = ?, street = ?, number_address = ? WHERE id_address = ?";
@@ -293,15 +326,17 @@ public class PatientRepository {
             addressStatement.executeUpdate();
         }
         catch (SQLException e){
+            UnitOfWork.markRollbackOnly(e);
             System.out.println(e);
         }
     }
+    @SuppressWarnings("try")
     public void updatePatient(int id, Patient patient) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("PatientRepository.updatePatient");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
             // Retrieve the patient and address details
-            String selectPatientSql = "SELECT * FROM PATIENT WHERE id_patient = ?";
-            PreparedStatement selectStatement = connection.prepareStatement(selectPatientSql);
+            PreparedStatement selectStatement = connection.prepareStatement(SELECT_PATIENT_FOR_UPDATE);
             selectStatement.setInt(1, id);
             ResultSet resultSet = selectStatement.executeQuery();
 
@@ -311,7 +346,7 @@ public class PatientRepository {
                 int idAddress = resultSet.getInt("id_address");
 
                 // Update the address
-                updateAddress(idAddress, patient.getAddress());
+                updateAddress(connection, idAddress, patient.getAddress());
 
                 // Update the patient details
                 String updatePatientSql = "UPDATE PATIENT SET firstName = ?, lastName = ?, email = ?, phoneNumber = ?, birthDate = ?, age = ?, gender = ?, medicalHistory = ? WHERE id_patient = ?";
@@ -327,15 +362,20 @@ public class PatientRepository {
                 patientStatement.setInt(9, id);
 
                 patientStatement.executeUpdate();
+                ids.updated(id, naturalKey(patient));
+                patients.invalidate(id);
+                ChangeVersions.bump(connection, "PATIENT");
+                unitOfWork.commit();
                 System.out.println("\nThe patient and address were updated.");
-                audit.logAction("The patient with id " + id +" was updated");
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "The patient with id " + id +" was updated");
             }
 
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing patient with this ID!");
-                audit.logAction("No patient found for update with the given ID " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No patient found for update with the given ID " + id);
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -343,14 +383,27 @@ public class PatientRepository {
              System.out.println("Error with audit: " + e);
          }
     }
+    @SuppressWarnings("try")
     public Patient getPatientById(int id) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
         Patient patient = null;
-        String selectSql = "SELECT p.*, a.country, a.city, a.street, a.number_address FROM PATIENT p " +
-                "INNER JOIN ADDRESS a ON p.id_address = a.id_address WHERE p.id_patient = ?";
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(selectSql);
+        try (Deadline deadline = Deadline.start("PatientRepository.getPatientById")) {
+            Patient cached = patients.get(id, this::loadPatient);
+            patient = cached == null ? null : copy(cached);
+            audit.logEvent(AUDIT_ENTITY, id, patient == null ? AuditOutcome.NOT_FOUND : AuditOutcome.SUCCESS, "Get Patient By Id " + id);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+         catch (IOException e){
+             System.out.println("Error with audit: " + e);
+         }
+        return patient;
+    }
+    private Patient loadPatient(int id) throws SQLException {
+        try (Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_PATIENT_BY_ID)) {
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
@@ -362,7 +415,7 @@ public class PatientRepository {
                         resultSet.getInt("number_address")
                 );
 
-                patient = new Patient(
+                return new Patient(
                         resultSet.getString("firstName"),
                         resultSet.getString("lastName"),
                         resultSet.getString("email"),
@@ -374,40 +427,58 @@ public class PatientRepository {
                         resultSet.getString("medicalHistory")
                 );
             }
-            audit.logAction("Get Patient By Id " + id);
-            DatabaseConfiguration.closeDatabaseConnection();
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return null;
         }
-         catch (IOException e){
-             System.out.println("Error with audit: " + e);
-         }
-        return patient;
     }
+    // Callers may change what they get, so the cached patient itself never leaves the repository
+    private static Patient copy(Patient patient) {
+        return new Patient(patient.getFirstName(), patient.getLastName(), patient.getEmail(),
+                new Address(patient.getAddress()), patient.getPhoneNumber(), patient.getBirthDate(),
+                patient.getAge(), patient.getGender(), patient.getMedicalHistory());
+    }
+    // Object headers and fields, plus each string at two bytes a character; medicalHistory is what varies
+    private static long estimateSize(Patient patient) {
+        return 256 + sizeOf(patient.getFirstName()) + sizeOf(patient.getLastName()) + sizeOf(patient.getEmail())
+                + sizeOf(patient.getPhoneNumber()) + sizeOf(patient.getGender()) + sizeOf(patient.getMedicalHistory())
+                + sizeOf(patient.getAddress().getCountry()) + sizeOf(patient.getAddress().getCity())
+                + sizeOf(patient.getAddress().getStreet());
+    }
+    private static long sizeOf(String text) {
+        return text == null ? 0 : 40 + 2L * text.length();
+    }
+    public String patientCacheSummary() {
+        return patients.summary();
+    }
+    @SuppressWarnings("try")
     public boolean patientExists(int id) {
-        String checkPatientSql = "SELECT 1 FROM PATIENT WHERE id_patient = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try {
-            PreparedStatement statement = connection.prepareStatement(checkPatientSql);
+        if (patients.contains(id)) {
+            return true;
+        }
+        try (Deadline deadline = Deadline.start("PatientRepository.patientExists");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
+            PreparedStatement statement = connection.prepareStatement(PATIENT_EXISTS);
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
             boolean exists = resultSet.next();
 
-            DatabaseConfiguration.closeDatabaseConnection();
             return exists;
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+            return false;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
     }
+    @SuppressWarnings("try")
     public void deletePatientById(int id) {
         String deletePatientSql = "DELETE FROM PATIENT WHERE id_patient = ?";
         String deleteAddressSql = "DELETE FROM ADDRESS WHERE id_address = (SELECT id_address FROM PATIENT WHERE id_patient = ?)";
 
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("PatientRepository.deletePatientById");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
             // Delete the address associated with the patient
             PreparedStatement deleteAddressStatement = connection.prepareStatement(deleteAddressSql);
             deleteAddressStatement.setInt(1, id);
@@ -417,19 +488,23 @@ public class PatientRepository {
             PreparedStatement deletePatientStatement = connection.prepareStatement(deletePatientSql);
             deletePatientStatement.setInt(1, id);
             int patientRowsDeleted = deletePatientStatement.executeUpdate();
-
+            ids.deleted(id);
+            patients.invalidate(id);
+            if (patientRowsDeleted > 0 || addressRowsDeleted > 0) {
+                ChangeVersions.bump(connection, "PATIENT");
+            }
+            unitOfWork.commit();
 
             // Check if both patient and address were deleted successfully
             if (patientRowsDeleted > 0 || addressRowsDeleted > 0) {
                 System.out.println("\nPatient deleted successfully.");
-                audit.logAction("Deleted patient with ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Deleted patient with ID: " + id);
             } else {
                 System.out.println("\nNo patient found with ID: " + id);
-                audit.logAction("No patient found for deletion with the given ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No patient found for deletion with the given ID: " + id);
             }
-
-            // Close the database connection
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
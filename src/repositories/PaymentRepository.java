@@ -1,12 +1,17 @@
 package repositories;
 
 import database.DatabaseConfiguration;
+import database.Deadline;
+import database.QueryTimeoutException;
+import database.UnitOfWork;
 import models.address.Address;
 import models.payment.Payment;
 import models.person.Patient;
 import models.treatment.Treatment;
 import models.treatment.TreatmentCategory;
 import services.Audit;
+import services.audit.AuditEvent;
+import services.audit.AuditOutcome;
 
 import java.io.IOException;
 import java.sql.*;
@@ -15,8 +20,34 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class PaymentRepository {
+    // Read queries; RepositoryQueries registers them with the query plan check
+    static final String VIEW_PAYMENTS = "SELECT p.id_payment, p.totalAmount, " +
+            "pa.firstName AS patientFirstName, pa.lastName AS patientLastName, " +
+            "t.name AS treatmentName " +
+            "FROM PAYMENT p " +
+            "JOIN PATIENT pa ON p.id_patient = pa.id_patient " +
+            "LEFT JOIN PAYMENT_TREATMENT pt ON p.id_payment = pt.id_payment " +
+            "LEFT JOIN TREATMENT t ON pt.id_treatment = t.id_treatment " +
+            "ORDER BY p.id_payment;";
+    private static final String PAYMENT_DETAILS = "SELECT p.id_payment, p.paymentDate, p.totalAmount, " +
+            "pa.id_patient, pa.firstName AS patientFirstName, pa.lastName AS patientLastName, " +
+            "pa.email AS patientEmail, pa.phoneNumber AS patientPhoneNumber, pa.birthDate AS patientBirthDate, " +
+            "pa.age AS patientAge, pa.gender AS patientGender, pa.medicalHistory AS patientMedicalHistory, " +
+            "adr.country AS patientCountry, adr.city AS patientCity, adr.street AS patientStreet, adr.number_address AS patientNumberAddress, " +
+            "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice " +
+            "FROM PAYMENT p " +
+            "JOIN PATIENT pa ON p.id_patient = pa.id_patient " +
+            "JOIN ADDRESS adr ON pa.id_address = adr.id_address " +
+            "LEFT JOIN PAYMENT_TREATMENT pt ON p.id_payment = pt.id_payment " +
+            "LEFT JOIN TREATMENT t ON pt.id_treatment = t.id_treatment";
+    static final String SEARCH_PAYMENTS_BY_PATIENT = PAYMENT_DETAILS + " WHERE pa.firstName LIKE ? OR pa.lastName LIKE ?;";
+    static final String SELECT_PAYMENT_BY_ID = PAYMENT_DETAILS + " WHERE p.id_payment = ?;";
+    static final String SELECT_PAYMENT_FOR_UPDATE = "SELECT * FROM PAYMENT WHERE id_payment = ?";
+    static final String PAYMENT_EXISTS = "SELECT 1 FROM PAYMENT WHERE id_payment = ?";
+
     private static PaymentRepository instance;
     private static Audit audit = Audit.getInstance();
+    private static final String AUDIT_ENTITY = "PAYMENT";
     private PatientRepository patientRepository;
     private TreatmentRepository treatmentRepository;
     private PaymentRepository(){
@@ -38,66 +69,13 @@ public class PaymentRepository {
         }
         return instance;
     }
-    public void createTables() {
-        createPaymentTable();
-        createPaymentTreatmentTable();
-    }
-    private void createPaymentTable() {
-        String query = "CREATE TABLE IF NOT EXISTS PAYMENT (" +
-                "id_payment INT AUTO_INCREMENT PRIMARY KEY, " +
-                "paymentDate TIMESTAMP, " +
-                "totalAmount DOUBLE, " +
-                "id_patient INT, " +
-                "FOREIGN KEY (id_patient) REFERENCES PATIENT(id_patient));";
-
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query);
-            DatabaseConfiguration.closeDatabaseConnection();
-            audit.logAction("Payment table has been crated");
-        } catch (SQLException e) {
-            System.out.println(e);
-        } catch (IOException e){
-            System.out.println("Error with audit: " + e);
-        }
-    }
-    private void createPaymentTreatmentTable() {
-        String query = "CREATE TABLE IF NOT EXISTS PAYMENT_TREATMENT (" +
-                "id_payment INT, " +
-                "id_treatment INT, " +
-                "PRIMARY KEY (id_payment, id_treatment), " +
-                "FOREIGN KEY (id_payment) REFERENCES PAYMENT(id_payment), " +
-                "FOREIGN KEY (id_treatment) REFERENCES TREATMENT(id_treatment));";
-
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query);
-            DatabaseConfiguration.closeDatabaseConnection();
-            audit.logAction("Payment_Treatment table has been crated");
-
-        } catch (SQLException e) {
-            System.out.println(e);
-        } catch (IOException e){
-            System.out.println("Error with audit: " + e);
-        }
-    }
+    @SuppressWarnings("try")
     public void viewPayments() {
-        String selectSql = "SELECT p.id_payment, p.totalAmount, " +
-                "pa.firstName AS patientFirstName, pa.lastName AS patientLastName, " +
-                "t.name AS treatmentName " +
-                "FROM PAYMENT p " +
-                "JOIN PATIENT pa ON p.id_patient = pa.id_patient " +
-                "LEFT JOIN PAYMENT_TREATMENT pt ON p.id_payment = pt.id_payment " +
-                "LEFT JOIN TREATMENT t ON pt.id_treatment = t.id_treatment " +
-                "ORDER BY p.id_payment;";
-
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try (Statement stmt = connection.createStatement()) {
+        try (Deadline deadline = Deadline.start("PaymentRepository.viewPayments");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             Statement stmt = connection.createStatement()) {
             boolean empty = true;
-            ResultSet resultSet = stmt.executeQuery(selectSql);
+            ResultSet resultSet = stmt.executeQuery(VIEW_PAYMENTS);
 
             int currentPaymentId = -1;
             StringBuilder paymentInfo = new StringBuilder();
@@ -135,25 +113,26 @@ public class PaymentRepository {
                 System.out.println("----------------------------------------------------------------------------------------------------------------------------------------------------------------------");
             }
 
-            DatabaseConfiguration.closeDatabaseConnection();
-
             if (empty) {
                 System.out.println("\nNo existing Payments!");
             }
-            audit.logAction("View all payments");
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "View all payments");
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void addPayment(Payment payment) {
         String insertPaymentSql = "INSERT INTO PAYMENT(paymentDate, totalAmount, id_patient) VALUES(?, ?, ?);";
         String insertPaymentTreatmentSql = "INSERT INTO PAYMENT_TREATMENT(id_payment, id_treatment) VALUES(?, ?);";
 
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            connection.setAutoCommit(false); // Start transaction
+        try (Deadline deadline = Deadline.start("PaymentRepository.addPayment");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
 
             // Insert into PAYMENT table
             PreparedStatement paymentStatement = connection.prepareStatement(insertPaymentSql, Statement.RETURN_GENERATED_KEYS);
@@ -178,41 +157,31 @@ public class PaymentRepository {
                     }
                     paymentTreatmentStatement.executeBatch();
 
-                    connection.commit(); // Commit transaction
+                    unitOfWork.commit();
                     System.out.println("\nPayment inserted successfully.");
-                    audit.logAction("Added new Payment");
+                    audit.logEvent(AUDIT_ENTITY, paymentId, AuditOutcome.SUCCESS, "Added new Payment");
                 } else {
                     throw new SQLException("\nInserting payment failed, no ID obtained.");
                 }
             } else {
-                audit.logAction("Adding new Payment failed");
+                audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.FAILURE, "Adding new Payment failed");
                 throw new SQLException("\nInserting payment failed.");
             }
-
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public List<Payment> searchPaymentsByPatient(String name) {
         List<Payment> payments = new ArrayList<>();
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT p.id_payment, p.paymentDate, p.totalAmount, " +
-                "pa.id_patient, pa.firstName AS patientFirstName, pa.lastName AS patientLastName, " +
-                "pa.email AS patientEmail, pa.phoneNumber AS patientPhoneNumber, pa.birthDate AS patientBirthDate, " +
-                "pa.age AS patientAge, pa.gender AS patientGender, pa.medicalHistory AS patientMedicalHistory, " +
-                "adr.country AS patientCountry, adr.city AS patientCity, adr.street AS patientStreet, adr.number_address AS patientNumberAddress, " +
-                "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice " +
-                "FROM PAYMENT p " +
-                "JOIN PATIENT pa ON p.id_patient = pa.id_patient " +
-                "JOIN ADDRESS adr ON pa.id_address = adr.id_address " +
-                "LEFT JOIN PAYMENT_TREATMENT pt ON p.id_payment = pt.id_payment " +
-                "LEFT JOIN TREATMENT t ON pt.id_treatment = t.id_treatment " +
-                "WHERE pa.firstName LIKE ? OR pa.lastName LIKE ?;";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
+
+        try (Deadline deadline = Deadline.start("PaymentRepository.searchPaymentsByPatient");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement stmt = connection.prepareStatement(SEARCH_PAYMENTS_BY_PATIENT)) {
             stmt.setString(1, "%" + name + "%");
             stmt.setString(2, "%" + name + "%");
 
@@ -266,8 +235,9 @@ public class PaymentRepository {
                 payments.add(payment);
 
             }
-            audit.logAction("Searched payment by patient name: "+name.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched payment by patient name: "+name.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -275,24 +245,13 @@ public class PaymentRepository {
         }
         return payments;
     }
+    @SuppressWarnings("try")
     public Payment getPaymentById(int id) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
         Payment payment = null;
-        String selectSql = "SELECT p.id_payment, p.paymentDate, p.totalAmount, " +
-                "pa.id_patient, pa.firstName AS patientFirstName, pa.lastName AS patientLastName, " +
-                "pa.email AS patientEmail, pa.phoneNumber AS patientPhoneNumber, pa.birthDate AS patientBirthDate, " +
-                "pa.age AS patientAge, pa.gender AS patientGender, pa.medicalHistory AS patientMedicalHistory, " +
-                "adr.country AS patientCountry, adr.city AS patientCity, adr.street AS patientStreet, adr.number_address AS patientNumberAddress, " +
-                "t.id_treatment, t.name AS treatmentName, t.category AS treatmentCategory, t.price AS treatmentPrice " +
-                "FROM PAYMENT p " +
-                "JOIN PATIENT pa ON p.id_patient = pa.id_patient " +
-                "JOIN ADDRESS adr ON pa.id_address = adr.id_address " +
-                "LEFT JOIN PAYMENT_TREATMENT pt ON p.id_payment = pt.id_payment " +
-                "LEFT JOIN TREATMENT t ON pt.id_treatment = t.id_treatment " +
-                "WHERE p.id_payment = ?;";
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(selectSql);
+        try (Deadline deadline = Deadline.start("PaymentRepository.getPaymentById");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_PAYMENT_BY_ID)) {
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
@@ -340,8 +299,9 @@ public class PaymentRepository {
                 payment = new Payment(paymentDate, totalAmount, patient);
                 payment.setTreatments(treatments);
             }
-            audit.logAction("Got payment by Id "+id);
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, id, payment == null ? AuditOutcome.NOT_FOUND : AuditOutcome.SUCCESS, "Got payment by Id "+id);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -349,12 +309,13 @@ public class PaymentRepository {
         }
         return payment;
     }
+    @SuppressWarnings("try")
     public void updatePayment(int id, Payment payment) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("PaymentRepository.updatePayment");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
             // Retrieve the payment details
-            String selectPaymentSql = "SELECT * FROM PAYMENT WHERE id_payment = ?";
-            PreparedStatement selectStatement = connection.prepareStatement(selectPaymentSql);
+            PreparedStatement selectStatement = connection.prepareStatement(SELECT_PAYMENT_FOR_UPDATE);
             selectStatement.setInt(1, id);
             ResultSet resultSet = selectStatement.executeQuery();
 
@@ -376,16 +337,18 @@ public class PaymentRepository {
                 paymentStatement.setInt(4, id);
 
                 paymentStatement.executeUpdate();
-                System.out.println("\nThe payment was updated.");
-                audit.logAction("Updated payment with id "+id);
                 // Update the payment_treatment table
                 updatePaymentTreatments(connection, id, payment.getTreatments());
+                unitOfWork.commit();
+                System.out.println("\nThe payment was updated.");
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Updated payment with id "+id);
             }
 
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing payment with this ID!");
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -405,32 +368,36 @@ public class PaymentRepository {
         for (Treatment treatment : treatments) {
             insertStatement.setInt(1, paymentId);
             insertStatement.setInt(2, treatmentRepository.getTreatmentId(treatment)); // Assuming treatment has an ID
-            insertStatement.executeUpdate();
+            insertStatement.addBatch();
         }
+        insertStatement.executeBatch();
     }
+    @SuppressWarnings("try")
     public boolean paymentExists(int id) {
-        String checkPaymentSql = "SELECT 1 FROM PAYMENT WHERE id_payment = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try {
-            PreparedStatement statement = connection.prepareStatement(checkPaymentSql);
+        try (Deadline deadline = Deadline.start("PaymentRepository.paymentExists");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
+            PreparedStatement statement = connection.prepareStatement(PAYMENT_EXISTS);
             statement.setInt(1, id);
             ResultSet resultSet = statement.executeQuery();
 
             boolean exists = resultSet.next();
 
-            DatabaseConfiguration.closeDatabaseConnection();
             return exists;
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+            return false;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
     }
+    @SuppressWarnings("try")
     public void deletePaymentById(int id) {
         String deletePaymentSql = "DELETE FROM PAYMENT WHERE id_payment = ?";
         String deletePaymentTreatmentSql = "DELETE FROM PAYMENT_TREATMENT WHERE id_payment = (SELECT id_payment FROM PAYMENT WHERE id_payment = ?)";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("PaymentRepository.deletePaymentById");
+             UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
 
             //Delete Payment_Treatment first
             PreparedStatement deletePaymentTreatmentStatement = connection.prepareStatement(deletePaymentTreatmentSql);
@@ -441,16 +408,17 @@ public class PaymentRepository {
             PreparedStatement deletePaymentStatement = connection.prepareStatement(deletePaymentSql);
             deletePaymentStatement.setInt(1, id);
             int paymentRowsDeleted = deletePaymentStatement.executeUpdate();
+            unitOfWork.commit();
 
             if (paymentRowsDeleted > 0 || paymentTreatmentRowsDeleted > 0) {
                 System.out.println("\nPayment deleted successfully.");
-                audit.logAction("Deleted payment with ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Deleted payment with ID: " + id);
             } else {
                 System.out.println("\nNo payment found with ID: " + id);
-                audit.logAction("No payment found for deletion with the given ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No payment found for deletion with the given ID: " + id);
             }
-
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,90 @@
+package repositories;
+
+import database.DatabaseConfiguration;
+import database.QueryPlanChecker;
+import database.SchemaMigrator;
+
+import java.sql.SQLException;
+
+// Every read query the repositories run, registered with the query plan check under the operation name its
+// repository method uses. Listings read every row anyway, and LIKE '%name%' searches cannot use an index,
+// so those declare their scans; every other lookup has to be served by a primary key or a declared index.
+//
+//     java -Dclinicdb.backend=embedded repositories.RepositoryQueries
+//
+// migrates the schema, explains every query and exits with status 1 when a plan has an unexpected full scan.
+public final class RepositoryQueries {
+    private RepositoryQueries() { }
+
+    public static QueryPlanChecker checker() {
+        QueryPlanChecker checker = new QueryPlanChecker(SchemaMigrator.getIndexes());
+
+        checker.register("PatientRepository.getPatientId", PatientRepository.SELECT_PATIENT_ID, "Ana", "Pop", "ana.pop@example.com");
+        checker.register("PatientRepository.viewPatients", PatientRepository.VIEW_PATIENTS)
+                .expectFullScan("PATIENT", "ADDRESS");
+        checker.register("PatientRepository.searchPatientsByName", PatientRepository.SEARCH_PATIENTS_BY_NAME, "%pop%", "%pop%")
+                .expectFullScan("PATIENT");
+        checker.register("PatientRepository.getAllPatients", PatientRepository.SELECT_ALL_PATIENTS)
+                .expectFullScan("PATIENT", "ADDRESS");
+        checker.register("PatientRepository.updatePatient", PatientRepository.SELECT_PATIENT_FOR_UPDATE, 1);
+        checker.register("PatientRepository.getPatientById", PatientRepository.SELECT_PATIENT_BY_ID, 1);
+        checker.register("PatientRepository.patientExists", PatientRepository.PATIENT_EXISTS, 1);
+
+        checker.register("DoctorRepository.getDoctorId", DoctorRepository.SELECT_DOCTOR_ID, "Ion", "Popescu", "ion.popescu@example.com");
+        // getAllDoctors and the searches by specialization are answered from the directory this loads
+        checker.register("DoctorRepository.loadDirectory", DoctorRepository.SELECT_ALL_DOCTORS)
+                .expectFullScan("DOCTOR", "ADDRESS");
+        checker.register("DoctorRepository.viewDoctors", DoctorRepository.VIEW_DOCTORS)
+                .expectFullScan("DOCTOR", "ADDRESS");
+        checker.register("DoctorRepository.searchDoctorsByName", DoctorRepository.SEARCH_DOCTORS_BY_NAME, "%pop%", "%pop%")
+                .expectFullScan("DOCTOR");
+        checker.register("DoctorRepository.updateDoctor", DoctorRepository.SELECT_DOCTOR_FOR_UPDATE, 1);
+        checker.register("DoctorRepository.getDoctorById", DoctorRepository.SELECT_DOCTOR_BY_ID, 1);
+        checker.register("DoctorRepository.doctorExists", DoctorRepository.DOCTOR_EXISTS, 1);
+
+        checker.register("TreatmentRepository.getTreatmentId", TreatmentRepository.SELECT_TREATMENT_ID, "Massage");
+        // Listings, searches and lookups by id are answered from the catalog this loads
+        checker.register("TreatmentRepository.loadCatalog", TreatmentRepository.SELECT_ALL_TREATMENTS)
+                .expectFullScan("TREATMENT");
+        checker.register("TreatmentRepository.updateTreatment", TreatmentRepository.SELECT_TREATMENT_BY_ID, 1);
+
+        // A listing scans only its outer table; a search by name may be driven from the side it filters on
+        // instead. Every other join must go through a key, so a scan of any other table fails the check.
+        checker.register("AppointmentRepository.viewAppointments", AppointmentRepository.VIEW_APPOINTMENTS)
+                .expectFullScan("a");
+        checker.register("AppointmentRepository.getAllAppointments", AppointmentRepository.SELECT_ALL_APPOINTMENTS)
+                .expectFullScan("a");
+        checker.register("AppointmentRepository.getAppointmentById", AppointmentRepository.SELECT_APPOINTMENT_BY_ID, 1);
+        checker.register("AppointmentRepository.searchAppointmentsByPatient", AppointmentRepository.SEARCH_APPOINTMENTS_BY_PATIENT, "%pop%", "%pop%")
+                .expectFullScan("a", "p");
+        checker.register("AppointmentRepository.searchAppointmentsByDoctor", AppointmentRepository.SEARCH_APPOINTMENTS_BY_DOCTOR, "%pop%", "%pop%")
+                .expectFullScan("a", "d");
+        checker.register("AppointmentRepository.updateAppointment", AppointmentRepository.SELECT_APPOINTMENT_FOR_UPDATE, 1);
+        checker.register("AppointmentRepository.appointmentExists", AppointmentRepository.APPOINTMENT_EXISTS, 1);
+
+        checker.register("PaymentRepository.viewPayments", PaymentRepository.VIEW_PAYMENTS)
+                .expectFullScan("p");
+        checker.register("PaymentRepository.searchPaymentsByPatient", PaymentRepository.SEARCH_PAYMENTS_BY_PATIENT, "%pop%", "%pop%")
+                .expectFullScan("p", "pa");
+        checker.register("PaymentRepository.getPaymentById", PaymentRepository.SELECT_PAYMENT_BY_ID, 1);
+        checker.register("PaymentRepository.updatePayment", PaymentRepository.SELECT_PAYMENT_FOR_UPDATE, 1);
+        checker.register("PaymentRepository.paymentExists", PaymentRepository.PAYMENT_EXISTS, 1);
+        return checker;
+    }
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            SchemaMigrator.migrate();
+            QueryPlanChecker.Report report = checker().check();
+            System.out.print(report);
+            status = report.getProblemCount() == 0 ? 0 : 1;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            status = 2;
+        } finally {
+            DatabaseConfiguration.closeDatabaseConnection();
+        }
+        System.exit(status);
+    }
+}
@@ -1,19 +1,39 @@
 package repositories;
 
 import database.DatabaseConfiguration;
+import database.ChangeVersions;
+import database.Deadline;
+import database.QueryTimeoutException;
+import database.UnitOfWork;
 import models.treatment.Treatment;
 import models.treatment.TreatmentCategory;
+import repositories.cache.TreatmentCatalog;
 import services.Audit;
+import services.audit.AuditEvent;
+import services.audit.AuditOutcome;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.sql.*;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 public class TreatmentRepository {
+    // Read queries; RepositoryQueries registers them with the query plan check
+    static final String SELECT_TREATMENT_ID = "SELECT id_treatment FROM TREATMENT WHERE name = ?";
+    // Loads the catalog; listings, searches and lookups by id are answered from it (see TreatmentCatalog)
+    static final String SELECT_ALL_TREATMENTS = "SELECT * FROM TREATMENT";
+    static final String SELECT_TREATMENT_BY_ID = "SELECT * FROM TREATMENT WHERE id_treatment = ?";
+
     private static TreatmentRepository instance;
     private static Audit audit = Audit.getInstance();
-    private TreatmentRepository(){}
+    private static final String AUDIT_ENTITY = "TREATMENT";
+    private final TreatmentCatalog catalog = new TreatmentCatalog(this::loadCatalog);
+    private TreatmentRepository(){
+        // Another instance changed treatments
+        ChangeVersions.register("TREATMENT", catalog::invalidate);
+    }
 
     static {
         try {
@@ -29,78 +49,93 @@ public class TreatmentRepository {
         }
         return instance;
     }
-    public void createTable() {
-        String query = "CREATE TABLE IF NOT EXISTS TREATMENT (" +
-                "id_treatment INT AUTO_INCREMENT PRIMARY KEY, " +
-                "category VARCHAR(50), " +
-                "name VARCHAR(100), " +
-                "price DOUBLE);";
-
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query);
-            audit.logAction("Treatment table has been created");
-            DatabaseConfiguration.closeDatabaseConnection();
-        } catch (SQLException e) {
-            System.out.println(e);
-        }catch (IOException e){
-            System.out.println("Error with audit: " + e);
-        }
-    }
+    @SuppressWarnings("try")
     public int getTreatmentId(Treatment treatment) throws SQLException {
-        String query = "SELECT id_treatment FROM TREATMENT WHERE name = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setString(1, treatment.getName());
-        ResultSet resultSet = statement.executeQuery();
-
-        if (resultSet.next()) {
+        // Inside a unit of work the catalog is only used when already loaded: a load there would not be kept
+        TreatmentCatalog.Snapshot treatments;
+        try (Deadline deadline = Deadline.start("TreatmentRepository.getTreatmentId")) {
+            treatments = UnitOfWork.isActive() ? catalog.cached() : catalog.get();
+        }
+        Integer cached = treatments == null ? null : treatments.idOf(treatment.getName());
+        if (cached != null) {
             try {
-                audit.logAction("Got treatment id");
+                audit.logEvent(AUDIT_ENTITY, cached, AuditOutcome.SUCCESS, "Got treatment id");
             } catch (IOException e){
                 System.out.println("Error with audit: " + e);
             }
-            return resultSet.getInt("id_treatment");
-        } else {
-            try {
-                audit.logAction("Didn't get treatment id");
-            } catch (IOException e){
-                System.out.println("Error with audit: " + e);
+            return cached;
+        }
+        try (Deadline deadline = Deadline.start("TreatmentRepository.getTreatmentId");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_TREATMENT_ID)) {
+            statement.setString(1, treatment.getName());
+            ResultSet resultSet = statement.executeQuery();
+
+            if (resultSet.next()) {
+                int treatmentId = resultSet.getInt("id_treatment");
+                try {
+                    audit.logEvent(AUDIT_ENTITY, treatmentId, AuditOutcome.SUCCESS, "Got treatment id");
+                } catch (IOException e){
+                    System.out.println("Error with audit: " + e);
+                }
+                return treatmentId;
+            } else {
+                try {
+                    audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.NOT_FOUND, "Didn't get treatment id");
+                } catch (IOException e){
+                    System.out.println("Error with audit: " + e);
+                }
+                throw new SQLException("Treatment not found in the database.");
             }
-            throw new SQLException("Treatment not found in the database.");
         }
     }
+    @SuppressWarnings("try")
     public List<Treatment> getAllTreatments() {
-        List<Treatment> treatments = new ArrayList<>();
-
-        String selectSql = "SELECT * FROM TREATMENT";
-
-        try (Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        try (Deadline deadline = Deadline.start("TreatmentRepository.getAllTreatments")) {
+            return catalog.get().all();
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
+    @SuppressWarnings("try")
+    public List<Treatment> getTreatmentsByCategory(TreatmentCategory category) {
+        try (Deadline deadline = Deadline.start("TreatmentRepository.getTreatmentsByCategory")) {
+            return catalog.get().in(category);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
+    @SuppressWarnings("try")
+    private NavigableMap<Integer, Treatment> loadCatalog() throws SQLException {
+        NavigableMap<Integer, Treatment> treatments = new TreeMap<>();
+        try (Deadline deadline = Deadline.start("TreatmentRepository.loadCatalog");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection();
              Statement stmt = connection.createStatement();
-             ResultSet resultSet = stmt.executeQuery(selectSql)) {
+             ResultSet resultSet = stmt.executeQuery(SELECT_ALL_TREATMENTS)) {
 
             while (resultSet.next()) {
-                String categoryString = resultSet.getString("category");
-                TreatmentCategory category = TreatmentCategory.valueOf(categoryString); // Convertim String-ul la enum
-                Treatment treatment = new Treatment(
-                        category,
-                        resultSet.getString("name"),
-                        resultSet.getDouble("price")
-                );
-                treatments.add(treatment);
+                TreatmentCategory category = TreatmentCategory.valueOf(resultSet.getString("category"));
+                treatments.put(resultSet.getInt("id_treatment"),
+                        new Treatment(category, resultSet.getString("name"), resultSet.getDouble("price")));
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-
         return treatments;
     }
+    public String catalogSummary() {
+        return catalog.summary();
+    }
+    @SuppressWarnings("try")
     public void addTreatment(Treatment treatment) {
         String insertTreatmentSql = "INSERT INTO TREATMENT(category, name, price) VALUES (?, ?, ?);";
 
-        try {
-            Connection connection = DatabaseConfiguration.getDatabaseConnection();
+        try (Deadline deadline = Deadline.start("TreatmentRepository.addTreatment");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
             PreparedStatement treatmentStatement = connection.prepareStatement(insertTreatmentSql, Statement.RETURN_GENERATED_KEYS);
             treatmentStatement.setString(1, treatment.getCategory().toString());
             treatmentStatement.setString(2, treatment.getName());
@@ -110,83 +145,86 @@ public class TreatmentRepository {
             if (rowsInserted == 0) {
                 throw new SQLException("\nInserting treatment failed, no rows affected!");
             }
+            // Outside a unit of work the bump commits right after the change rather than with it
+            ChangeVersions.bump(connection, "TREATMENT");
+            catalog.invalidate();
+            ResultSet generatedKeys = treatmentStatement.getGeneratedKeys();
+            long treatmentId = generatedKeys.next() ? generatedKeys.getLong(1) : AuditEvent.NO_ENTITY_ID;
 
-            DatabaseConfiguration.closeDatabaseConnection();
             System.out.println("\nTreatment inserted successfully.");
             // Optional: log the action
-            audit.logAction("Added new Treatment: " + treatment.getName());
+            audit.logEvent(AUDIT_ENTITY, treatmentId, AuditOutcome.SUCCESS, "Added new Treatment: " + treatment.getName());
+        } catch (QueryTimeoutException e) {
+            UnitOfWork.markRollbackOnly(e);
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
+            UnitOfWork.markRollbackOnly(e);
             System.out.println(e);
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void viewTreatments() {
-        String selectSql = "SELECT * FROM TREATMENT;";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try (Statement stmt = connection.createStatement()) {
+        try (Deadline deadline = Deadline.start("TreatmentRepository.viewTreatments")) {
+            TreatmentCatalog.Snapshot treatments = catalog.get();
             boolean empty = true;
-            ResultSet resultSet = stmt.executeQuery(selectSql);
-            while (resultSet.next()) {
+            for (int id : treatments.ids()) {
                 if (empty) {
                     System.out.println("\nList of all Treatments:");
                     System.out.println("----------------------------------------------------------------------------------------------------------------------------");
                     empty = false;
                 }
-                StringBuilder treatmentInfo = new StringBuilder();
-                treatmentInfo.append("Treatment ID: ").append(resultSet.getInt("id_treatment")).append(" | ")
-                                .append("Category: ").append(resultSet.getString("category")).append(" | ")
-                                .append("Name: ").append(resultSet.getString("name")).append(" | ")
-                                .append("Price: ").append(resultSet.getString("price"));
-                System.out.println(treatmentInfo);
+                System.out.println(treatmentInfo(id, treatments.get(id)));
                 System.out.println("----------------------------------------------------------------------------------------------------------------------------");
 
             }
-            audit.logAction("View All Treatments");
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "View All Treatments");
             if (empty) {
                 System.out.println("\nNo existing Treatments!");
             }
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    private static String treatmentInfo(int id, Treatment treatment) {
+        return "Treatment ID: " + id + " | " +
+                "Category: " + treatment.getCategory() + " | " +
+                "Name: " + treatment.getName() + " | " +
+                "Price: " + treatment.getPrice();
+    }
+    @SuppressWarnings("try")
     public void searchTreatmentsByCategory(String category){
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT * FROM TREATMENT  " +
-                "WHERE category LIKE ?";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
-            stmt.setString(1, "%" + category + "%");
-
-            ResultSet resultSet = stmt.executeQuery();
-
+        try (Deadline deadline = Deadline.start("TreatmentRepository.searchTreatmentsByCategory")) {
+            TreatmentCatalog.Snapshot treatments = catalog.get();
             boolean empty = true;
 
-            while (resultSet.next()) {
-                if (empty) {
-                    System.out.println("\nTreatments from Category '" + category.toUpperCase() + "':");
+            // Was category LIKE '%category%'; the menu passes a whole category name
+            for (TreatmentCategory candidate : TreatmentCategory.values()) {
+                if (!candidate.name().contains(category.toUpperCase())) {
+                    continue;
+                }
+                for (int id : treatments.idsIn(candidate)) {
+                    if (empty) {
+                        System.out.println("\nTreatments from Category '" + category.toUpperCase() + "':");
+                        System.out.println("----------------------------------------------------------------------------------------------------------------------------");
+                        empty = false;
+                    }
+                    System.out.println(treatmentInfo(id, treatments.get(id)));
                     System.out.println("----------------------------------------------------------------------------------------------------------------------------");
-                    empty = false;
                 }
-
-                StringBuilder treatmentInfo = new StringBuilder();
-                treatmentInfo.append("Treatment ID: ").append(resultSet.getInt("id_treatment")).append(" | ")
-                        .append("Category: ").append(resultSet.getString("category")).append(" | ")
-                        .append("Name: ").append(resultSet.getString("name")).append(" | ")
-                        .append("Price: ").append(resultSet.getString("price"));
-                System.out.println(treatmentInfo);
-                System.out.println("----------------------------------------------------------------------------------------------------------------------------");
             }
 
             if (empty) {
                 System.out.println("\nNo treatments found from Category '" + category + "'.");
             }
-            audit.logAction("Searched Treatments from category "+category.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched Treatments from category "+category.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
@@ -194,51 +232,45 @@ public class TreatmentRepository {
         }
 
     }
+    @SuppressWarnings("try")
     public void searchTreatmentsByName(String name){
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        String selectSql = "SELECT * FROM TREATMENT  " +
-                "WHERE name LIKE ?";
-
-        try (PreparedStatement stmt = connection.prepareStatement(selectSql)) {
-            stmt.setString(1, "%" + name + "%");
-
-            ResultSet resultSet = stmt.executeQuery();
-
+        try (Deadline deadline = Deadline.start("TreatmentRepository.searchTreatmentsByName")) {
+            TreatmentCatalog.Snapshot treatments = catalog.get();
             boolean empty = true;
 
-            while (resultSet.next()) {
+            for (int id : treatments.ids()) {
+                Treatment treatment = treatments.get(id);
+                // Was name LIKE '%name%', which ignores case under the default collation
+                if (!treatment.getName().toUpperCase().contains(name.toUpperCase())) {
+                    continue;
+                }
                 if (empty) {
                     System.out.println("\nSearch results for treatments with names containing '" + name.toUpperCase() + "':");
                     System.out.println("----------------------------------------------------------------------------------------------------------------------------");
                     empty = false;
                 }
-
-                StringBuilder treatmentInfo = new StringBuilder();
-                treatmentInfo.append("Treatment ID: ").append(resultSet.getInt("id_treatment")).append(" | ")
-                        .append("Category: ").append(resultSet.getString("category")).append(" | ")
-                        .append("Name: ").append(resultSet.getString("name")).append(" | ")
-                        .append("Price: ").append(resultSet.getString("price"));
-                System.out.println(treatmentInfo);
+                System.out.println(treatmentInfo(id, treatment));
                 System.out.println("----------------------------------------------------------------------------------------------------------------------------");
             }
 
             if (empty) {
                 System.out.println("\nNo treatments found with the name '" + name.toUpperCase() + "'.");
             }
-            audit.logAction("Searched treatments by name: " + name.toUpperCase());
-            DatabaseConfiguration.closeDatabaseConnection();
+            audit.logEvent(AUDIT_ENTITY, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, "Searched treatments by name: " + name.toUpperCase());
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }catch (IOException e){
             System.out.println("Error with audit: " + e);
         }
     }
+    @SuppressWarnings("try")
     public void updateTreatment(int id, Treatment treatment) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("TreatmentRepository.updateTreatment");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
             // Retrieve the treatment details
-            String selectTreatmentSql = "SELECT * FROM TREATMENT WHERE id_treatment = ?";
-            PreparedStatement selectStatement = connection.prepareStatement(selectTreatmentSql);
+            PreparedStatement selectStatement = connection.prepareStatement(SELECT_TREATMENT_BY_ID);
             selectStatement.setInt(1, id);
             ResultSet resultSet = selectStatement.executeQuery();
 
@@ -255,40 +287,35 @@ public class TreatmentRepository {
                 treatmentStatement.setInt(4, id);
 
                 treatmentStatement.executeUpdate();
+                ChangeVersions.bump(connection, "TREATMENT");
+                catalog.invalidate();
                 System.out.println("\nThe treatment was updated.");
-                audit.logAction("Updated treatment with id "+id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Updated treatment with id "+id);
             }
 
-            DatabaseConfiguration.closeDatabaseConnection();
             if (empty) {
                 System.out.println("\nNo existing treatment with this ID!");
-                audit.logAction("No treatment found for update with the given ID "+id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No treatment found for update with the given ID "+id);
             }
+        } catch (QueryTimeoutException e) {
+            UnitOfWork.markRollbackOnly(e);
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
+            UnitOfWork.markRollbackOnly(e);
             e.printStackTrace();
         }
          catch (IOException e){
              System.out.println("Error with audit: " + e);
          }
     }
+    @SuppressWarnings("try")
     public Treatment getTreatmentById(int id) {
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
         Treatment treatment = null;
-        String selectSql = "SELECT * FROM TREATMENT WHERE id_treatment = ?";
-        try {
-            PreparedStatement statement = connection.prepareStatement(selectSql);
-            statement.setInt(1, id);
-            ResultSet resultSet = statement.executeQuery();
-
-            if (resultSet.next()) {
-                TreatmentCategory category = TreatmentCategory.valueOf(resultSet.getString("category"));
-                String name = resultSet.getString("name");
-                double price = resultSet.getDouble("price");
-
-                treatment = new Treatment(category, name, price);
-            }
-            audit.logAction("Got treatment with id "+id);
-            DatabaseConfiguration.closeDatabaseConnection();
+        try (Deadline deadline = Deadline.start("TreatmentRepository.getTreatmentById")) {
+            treatment = catalog.get().get(id);
+            audit.logEvent(AUDIT_ENTITY, id, treatment == null ? AuditOutcome.NOT_FOUND : AuditOutcome.SUCCESS, "Got treatment with id "+id);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -297,43 +324,42 @@ public class TreatmentRepository {
          }
         return treatment;
     }
+    @SuppressWarnings("try")
     public boolean treatmentExists(int id) {
-        String checkTreatmentSql = "SELECT 1 FROM TREATMENT WHERE id_treatment = ?";
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-
-        try {
-            PreparedStatement statement = connection.prepareStatement(checkTreatmentSql);
-            statement.setInt(1, id);
-            ResultSet resultSet = statement.executeQuery();
-
-            boolean exists = resultSet.next();
-
-            DatabaseConfiguration.closeDatabaseConnection();
-            return exists;
+        try (Deadline deadline = Deadline.start("TreatmentRepository.treatmentExists")) {
+            return catalog.get().contains(id);
+        } catch (QueryTimeoutException e) {
+            System.out.println("\n" + e.getMessage());
+            return false;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
     }
+    @SuppressWarnings("try")
     public void deleteTreatmentById(int id) {
         String deleteTreatmentSql = "DELETE FROM TREATMENT WHERE id_treatment = ?";
 
-        Connection connection = DatabaseConfiguration.getDatabaseConnection();
-        try {
+        try (Deadline deadline = Deadline.start("TreatmentRepository.deleteTreatmentById");
+             Connection connection = DatabaseConfiguration.getDatabaseConnection()) {
             PreparedStatement statement = connection.prepareStatement(deleteTreatmentSql);
             statement.setInt(1, id);
 
             int rowsDeleted = statement.executeUpdate();
             if (rowsDeleted > 0) {
+                ChangeVersions.bump(connection, "TREATMENT");
+                catalog.invalidate();
                 System.out.println("\nTreatment deleted successfully.");
-                audit.logAction("Deleted treatment with ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.SUCCESS, "Deleted treatment with ID: " + id);
             } else {
                 System.out.println("\nNo treatment found with ID: " + id);
-                audit.logAction("No treatment found for deletion with the given ID: " + id);
+                audit.logEvent(AUDIT_ENTITY, id, AuditOutcome.NOT_FOUND, "No treatment found for deletion with the given ID: " + id);
             }
-
-            DatabaseConfiguration.closeDatabaseConnection();
+        } catch (QueryTimeoutException e) {
+            UnitOfWork.markRollbackOnly(e);
+            System.out.println("\n" + e.getMessage());
         } catch (SQLException e) {
+            UnitOfWork.markRollbackOnly(e);
             e.printStackTrace();
         }
          catch (IOException e){
@@ -0,0 +1,155 @@
+package repositories.cache;
+
+import database.ChangeVersions;
+import database.UnitOfWork;
+import models.address.Address;
+import models.person.Doctor;
+import models.treatment.TreatmentCategory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Every doctor with their address, held in memory and indexed by specialization, so booking and the search menu
+// find the doctors of a TreatmentCategory without reading the DOCTOR table. It is read through once, like
+// TreatmentCatalog, and then kept up to date by the repository's writes instead of being reloaded: each write hands
+// over the row it left behind, which is applied to a copy of the snapshot once its transaction commits (a rolled
+// back write changed nothing). A transaction does not see its own doctor writes here before it commits. A load
+// that a write overtook is not kept, nor one read on a transaction's connection. Doctors are mutable, so callers
+// always get copies.
+public class DoctorDirectory {
+    private final Loader loader;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private long generation;
+    private volatile Snapshot snapshot;
+
+    public interface Loader {
+        // Every doctor by id, in id order
+        NavigableMap<Integer, Doctor> load() throws SQLException;
+    }
+
+    public DoctorDirectory(Loader loader) {
+        this.loader = loader;
+    }
+
+    public Snapshot get() throws SQLException {
+        ChangeVersions.check();
+        Snapshot current = snapshot;
+        if (current != null) {
+            hits.increment();
+            return current;
+        }
+        long seen;
+        synchronized (this) {
+            seen = generation;
+        }
+        Snapshot loaded = new Snapshot(loader.load());
+        loads.increment();
+        if (!UnitOfWork.isActive()) {
+            synchronized (this) {
+                if (generation == seen) {
+                    snapshot = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    // The doctor now stored under id, or null once it is deleted
+    public void changed(int id, Doctor doctor) {
+        Doctor stored = doctor == null ? null : copy(doctor);
+        UnitOfWork.afterCommit(() -> apply(id, stored));
+    }
+
+    // Reloaded on the next read, for changes this instance was not told about
+    public synchronized void invalidate() {
+        generation++;
+        snapshot = null;
+    }
+
+    private synchronized void apply(int id, Doctor doctor) {
+        generation++;
+        updates.increment();
+        if (snapshot == null) {
+            return;
+        }
+        NavigableMap<Integer, Doctor> byId = new TreeMap<>(snapshot.byId);
+        if (doctor == null) {
+            byId.remove(id);
+        } else {
+            byId.put(id, doctor);
+        }
+        snapshot = new Snapshot(byId);
+    }
+
+    public String summary() {
+        Snapshot current = snapshot;
+        return "Doctor directory: " + (current == null ? "not loaded" : current.size() + " doctors cached")
+                + ", hits=" + hits.sum() + ", loads=" + loads.sum() + ", updates=" + updates.sum() + "\n";
+    }
+
+    private static Doctor copy(Doctor doctor) {
+        Doctor copy = new Doctor(doctor.getFirstName(), doctor.getLastName(), doctor.getEmail(),
+                new Address(doctor.getAddress()), doctor.getPhoneNumber());
+        copy.setSpecializations(new HashSet<>(doctor.getSpecializations()));
+        return copy;
+    }
+
+    public static final class Snapshot {
+        private final NavigableMap<Integer, Doctor> byId;
+        private final EnumMap<TreatmentCategory, List<Integer>> idsBySpecialization = new EnumMap<>(TreatmentCategory.class);
+
+        private Snapshot(NavigableMap<Integer, Doctor> byId) {
+            this.byId = byId;
+            for (TreatmentCategory category : TreatmentCategory.values()) {
+                idsBySpecialization.put(category, new ArrayList<>());
+            }
+            for (Map.Entry<Integer, Doctor> entry : byId.entrySet()) {
+                for (TreatmentCategory specialization : entry.getValue().getSpecializations()) {
+                    idsBySpecialization.get(specialization).add(entry.getKey());
+                }
+            }
+        }
+
+        public int size() {
+            return byId.size();
+        }
+
+        // Null when there is none
+        public Doctor get(int id) {
+            Doctor doctor = byId.get(id);
+            return doctor == null ? null : copy(doctor);
+        }
+
+        public List<Doctor> all() {
+            List<Doctor> doctors = new ArrayList<>(byId.size());
+            for (Doctor doctor : byId.values()) {
+                doctors.add(copy(doctor));
+            }
+            return doctors;
+        }
+
+        // In id order
+        public List<Integer> idsWith(TreatmentCategory specialization) {
+            return Collections.unmodifiableList(idsBySpecialization.get(specialization));
+        }
+
+        public List<Doctor> with(TreatmentCategory specialization) {
+            List<Integer> ids = idsBySpecialization.get(specialization);
+            List<Doctor> doctors = new ArrayList<>(ids.size());
+            for (int id : ids) {
+                doctors.add(copy(byId.get(id)));
+            }
+            return doctors;
+        }
+    }
+}
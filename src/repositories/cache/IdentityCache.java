@@ -0,0 +1,120 @@
+package repositories.cache;
+
+import database.ChangeVersions;
+import database.UnitOfWork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Natural key to database id, so bookings and payments do not run a SELECT for every foreign key they write.
+// Entries come from the generated keys of inserts and from lookups that had to go to the database; updates and
+// deletes drop every key cached for their id. Like TreatmentCatalog, nothing a transaction did is cached before it
+// commits: its writes drop entries at once and again when it ends, and what it inserted or looked up is only put
+// in once it has committed. A lookup that a drop overtook is not kept. Keys are matched exactly, so a key the
+// database would match under its collation ("ana" for "Ana") is simply a miss. The least recently used entries
+// go once the cache holds maxEntries.
+public class IdentityCache<K> {
+    private final String name;
+    private final int maxEntries;
+    private final LinkedHashMap<K, Integer> ids;
+    private final Map<Integer, List<K>> keysById = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long generation;
+
+    public IdentityCache(String name, int maxEntries) {
+        this.name = name;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ids = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    // Null when the key has to be looked up
+    public Integer get(K key) {
+        ChangeVersions.check();
+        synchronized (this) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+            return id;
+        }
+    }
+
+    // Taken before a lookup and handed to found, which then ignores the result if anything was dropped meanwhile
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public void found(K key, int id, long generation) {
+        UnitOfWork.afterCommit(() -> put(key, id, generation));
+    }
+
+    public void inserted(K key, int id) {
+        UnitOfWork.afterCommit(() -> put(key, id, -1));
+    }
+
+    public void updated(int id, K key) {
+        deleted(id);
+        inserted(key, id);
+    }
+
+    public void deleted(int id) {
+        forget(id);
+        if (UnitOfWork.isActive()) {
+            UnitOfWork.afterCompletion(() -> forget(id));
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        ids.clear();
+        keysById.clear();
+    }
+
+    public synchronized String summary() {
+        return "Identity cache " + name + ": " + ids.size() + " keys, hits=" + hits.sum() + ", misses=" + misses.sum() + "\n";
+    }
+
+    // A generation of -1 always puts: the key comes from the write itself
+    private synchronized void put(K key, int id, long seen) {
+        if (seen != -1 && seen != generation) {
+            return;
+        }
+        Integer previous = ids.put(key, id);
+        if (previous != null) {
+            unlink(key, previous);
+        }
+        keysById.computeIfAbsent(id, k -> new ArrayList<>(1)).add(key);
+        if (ids.size() > maxEntries) {
+            Map.Entry<K, Integer> eldest = ids.entrySet().iterator().next();
+            ids.remove(eldest.getKey());
+            unlink(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private synchronized void forget(int id) {
+        generation++;
+        List<K> keys = keysById.remove(id);
+        if (keys != null) {
+            for (K key : keys) {
+                ids.remove(key);
+            }
+        }
+    }
+
+    private void unlink(K key, int id) {
+        List<K> keys = keysById.get(id);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysById.remove(id);
+            }
+        }
+    }
+}
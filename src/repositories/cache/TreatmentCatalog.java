@@ -0,0 +1,157 @@
+package repositories.cache;
+
+import database.ChangeVersions;
+import database.UnitOfWork;
+import models.treatment.Treatment;
+import models.treatment.TreatmentCategory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// The whole TREATMENT table held in memory, read through on first use and indexed by id, by name and by
+// category. The catalog changes rarely and is small, so it is loaded whole with one SELECT and dropped whole by
+// every write to the table; the next read loads it again. Writes invalidate after their statement, and again when
+// the transaction they ran in ends, so a rolled-back change does not stay cached. A load that an invalidation
+// overtook is not kept, and neither is one read on a transaction's connection, which may see uncommitted rows.
+// Treatments are mutable, so callers always get copies.
+public class TreatmentCatalog {
+    private final Loader loader;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private volatile Snapshot snapshot;
+
+    public interface Loader {
+        // Every treatment by id, in id order
+        NavigableMap<Integer, Treatment> load() throws SQLException;
+    }
+
+    public TreatmentCatalog(Loader loader) {
+        this.loader = loader;
+    }
+
+    public Snapshot get() throws SQLException {
+        ChangeVersions.check();
+        Snapshot current = snapshot;
+        if (current != null) {
+            hits.increment();
+            return current;
+        }
+        long seen = generation.get();
+        Snapshot loaded = new Snapshot(loader.load());
+        loads.increment();
+        if (!UnitOfWork.isActive()) {
+            synchronized (this) {
+                if (generation.get() == seen) {
+                    snapshot = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    // The loaded snapshot, or null rather than loading one
+    public Snapshot cached() {
+        ChangeVersions.check();
+        Snapshot current = snapshot;
+        if (current != null) {
+            hits.increment();
+        }
+        return current;
+    }
+
+    public void invalidate() {
+        drop();
+        if (UnitOfWork.isActive()) {
+            UnitOfWork.afterCompletion(this::drop);
+        }
+    }
+
+    private synchronized void drop() {
+        generation.incrementAndGet();
+        snapshot = null;
+        invalidations.increment();
+    }
+
+    public String summary() {
+        Snapshot current = snapshot;
+        return "Treatment catalog: " + (current == null ? "not loaded" : current.size() + " treatments cached")
+                + ", hits=" + hits.sum() + ", loads=" + loads.sum() + ", invalidations=" + invalidations.sum() + "\n";
+    }
+
+    public static final class Snapshot {
+        private final NavigableMap<Integer, Treatment> byId;
+        private final Map<String, Integer> idsByName = new HashMap<>();
+        private final EnumMap<TreatmentCategory, List<Integer>> idsByCategory = new EnumMap<>(TreatmentCategory.class);
+
+        private Snapshot(NavigableMap<Integer, Treatment> byId) {
+            this.byId = byId;
+            for (TreatmentCategory category : TreatmentCategory.values()) {
+                idsByCategory.put(category, new ArrayList<>());
+            }
+            for (Map.Entry<Integer, Treatment> entry : byId.entrySet()) {
+                // Names are meant to be unique; should two rows share one, the first keeps it
+                idsByName.putIfAbsent(entry.getValue().getName(), entry.getKey());
+                idsByCategory.get(entry.getValue().getCategory()).add(entry.getKey());
+            }
+        }
+
+        public int size() {
+            return byId.size();
+        }
+
+        public boolean contains(int id) {
+            return byId.containsKey(id);
+        }
+
+        // Null when there is none
+        public Treatment get(int id) {
+            Treatment treatment = byId.get(id);
+            return treatment == null ? null : copy(treatment);
+        }
+
+        // Null when there is none
+        public Integer idOf(String name) {
+            return idsByName.get(name);
+        }
+
+        // In id order
+        public List<Integer> ids() {
+            return Collections.unmodifiableList(new ArrayList<>(byId.keySet()));
+        }
+
+        public List<Integer> idsIn(TreatmentCategory category) {
+            return Collections.unmodifiableList(idsByCategory.get(category));
+        }
+
+        public List<Treatment> all() {
+            List<Treatment> treatments = new ArrayList<>(byId.size());
+            for (Treatment treatment : byId.values()) {
+                treatments.add(copy(treatment));
+            }
+            return treatments;
+        }
+
+        public List<Treatment> in(TreatmentCategory category) {
+            List<Integer> ids = idsByCategory.get(category);
+            List<Treatment> treatments = new ArrayList<>(ids.size());
+            for (int id : ids) {
+                treatments.add(copy(byId.get(id)));
+            }
+            return treatments;
+        }
+
+        private static Treatment copy(Treatment treatment) {
+            return new Treatment(treatment.getCategory(), treatment.getName(), treatment.getPrice());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package repositories.cache;
+
+import database.ChangeVersions;
+import database.UnitOfWork;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// A read-through cache bounded by the total estimated size of its values rather than by their number, for rows
+// like PATIENT whose TEXT columns make one entry cost a few hundred bytes or a few megabytes. Entries are kept in
+// least recently used order, but eviction is decided by how often keys are asked for (TinyLFU): every lookup,
+// hit or miss, is counted in a small count-min sketch, and a newly loaded value only gets in if it is wanted more
+// often than every entry it would push out. A burst of one-time lookups (a listing walked once, a report) is then
+// turned away instead of flushing the entries that are read all day. The counts are halved every few lookups per
+// counter, so a key that used to be hot fades. Values larger than the whole budget are never cached.
+// Invalidation and loads follow TreatmentCatalog: an invalidated key is dropped at once and again when the
+// transaction ends, a load an invalidation overtook is not kept, and neither is one read inside a transaction.
+public class WeightedCache<K, V> {
+    private final String name;
+    private final long maxWeight;
+    private final Weigher<V> weigher;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private long weight;
+    private long generation;
+
+    public interface Weigher<V> {
+        // Estimated bytes the value keeps alive
+        long weigh(V value);
+    }
+
+    public interface Loader<K, V> {
+        // Null when there is no such value; nulls are not cached
+        V load(K key) throws SQLException;
+    }
+
+    // typicalWeight only sizes the frequency sketch
+    public WeightedCache(String name, long maxWeight, long typicalWeight, Weigher<V> weigher) {
+        this.name = name;
+        this.maxWeight = Math.max(1, maxWeight);
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(this.maxWeight / Math.max(1, typicalWeight));
+    }
+
+    public V get(K key, Loader<K, V> loader) throws SQLException {
+        ChangeVersions.check();
+        long seen;
+        synchronized (this) {
+            sketch.increment(key);
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                hits.increment();
+                return entry.value;
+            }
+            misses.increment();
+            seen = generation;
+        }
+        V value = loader.load(key);
+        if (value != null && !UnitOfWork.isActive()) {
+            put(key, value, seen);
+        }
+        return value;
+    }
+
+    public boolean contains(K key) {
+        ChangeVersions.check();
+        synchronized (this) {
+            return entries.containsKey(key);
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    public void invalidate(K key) {
+        remove(key);
+        if (UnitOfWork.isActive()) {
+            UnitOfWork.afterCompletion(() -> remove(key));
+        }
+    }
+
+    public synchronized String summary() {
+        return "Cache " + name + ": " + entries.size() + " entries, " + weight / 1024 + " of " + maxWeight / 1024 + " KB"
+                + ", hits=" + hits.sum() + ", misses=" + misses.sum() + ", evictions=" + evictions.sum()
+                + ", rejected=" + rejections.sum() + "\n";
+    }
+
+    private synchronized void put(K key, V value, long seen) {
+        if (seen != generation) {
+            return;
+        }
+        long valueWeight = weigher.weigh(value);
+        Entry<V> previous = entries.remove(key);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        if (valueWeight > maxWeight) {
+            rejections.increment();
+            return;
+        }
+        // The least recently used entries that would have to go, which all have to be wanted less than the newcomer
+        List<K> victims = new ArrayList<>();
+        long freed = 0;
+        int frequency = sketch.frequency(key);
+        Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (weight - freed + valueWeight > maxWeight) {
+            Map.Entry<K, Entry<V>> victim = eldest.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                rejections.increment();
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().weight;
+        }
+        for (K victim : victims) {
+            weight -= entries.remove(victim).weight;
+            evictions.increment();
+        }
+        entries.put(key, new Entry<>(value, valueWeight));
+        weight += valueWeight;
+    }
+
+    private synchronized void remove(K key) {
+        generation++;
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        private Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    // Four rows of 4-bit counters packed into longs; a key's frequency is the smallest of its four counters
+    private static final class FrequencySketch {
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(long expectedEntries) {
+            // Four to eight counters a row per entry the cache can hold, so few keys share all four
+            int counters = Integer.highestOneBit((int) Math.min(1 << 22, Math.max(1024, expectedEntries * 8)));
+            table = new long[counters / 16 * 4];
+            mask = counters / 16 - 1;
+            sampleSize = counters * 10;
+        }
+
+        private int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, counter(row, hash));
+            }
+            return frequency;
+        }
+
+        private void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int index = index(row, hash);
+                int shift = offset(row, hash);
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                halve();
+            }
+        }
+
+        private void halve() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+
+        private int counter(int row, int hash) {
+            return (int) ((table[index(row, hash)] >>> offset(row, hash)) & 15);
+        }
+
+        // Each row has its own slice of the table and its own hash
+        private int index(int row, int hash) {
+            int rowHash = (hash + row * 0x9e3779b9) * 0x85ebca6b;
+            return row * (mask + 1) + ((rowHash >>> 8) & mask);
+        }
+
+        private int offset(int row, int hash) {
+            int rowHash = (hash + row * 0x9e3779b9) * 0x85ebca6b;
+            return (rowHash >>> 28) << 2;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45d9f3b;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
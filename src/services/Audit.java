@@ -1,29 +1,118 @@
 package services;
 
-import java.io.FileWriter;
+import database.Deadline;
+import services.audit.AuditBinaryLog;
+import services.audit.AuditChainLog;
+import services.audit.AuditChainVerifier;
+import services.audit.AuditCoalescer;
+import services.audit.AuditEvent;
+import services.audit.AuditExporter;
+import services.audit.AuditFile;
+import services.audit.AuditSink;
+import services.audit.AuditOutcome;
+import services.audit.AuditPipeline;
+import services.audit.AuditStore;
+import services.audit.AuditSubscription;
+import services.audit.AuditSubscriptions;
+import services.audit.BackpressurePolicy;
+import services.audit.DatabaseAuditSink;
+import services.audit.DurabilityMode;
+import services.audit.FanOutAuditSink;
+
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class Audit
 {
+    private static final String AUDIT_FILE = "src/Files/audit.csv";
+    // csv writes audit.csv as it goes; binary appends fixed-size records to memory-mapped segments instead,
+    // and AuditExporter turns them into the same CSV on demand
+    private static final String FORMAT = System.getProperty("clinicdb.audit.format", "csv").trim();
+    private static final boolean BINARY = FORMAT.equalsIgnoreCase("binary");
+    private static final long BINARY_SEGMENT_BYTES = Long.getLong("clinicdb.audit.binarySegmentBytes", 64L * 1024 * 1024);
+    // The same events with their entity, operation and outcome, indexed by time and by entity for queries.
+    // It formats every event as text, so with the binary format it is off unless -Dclinicdb.audit.store=true.
+    private static final boolean EVENT_STORE = Boolean.parseBoolean(System.getProperty("clinicdb.audit.store", String.valueOf(!BINARY)));
+    private static final String EVENT_STORE_FILE = "src/Files/audit-events.tsv";
+    // Events wait in a ring buffer of this many slots (a power of two) for the writer thread; see AuditPipeline
+    private static final int BUFFER_SIZE = Integer.getInteger("clinicdb.audit.bufferSize", 8192);
+    private static final int BATCH_SIZE = Integer.getInteger("clinicdb.audit.batchSize", 512);
+    private static final long FLUSH_INTERVAL_MILLIS = Long.getLong("clinicdb.audit.flushIntervalMillis", 200L);
+    // none, flush (every flush interval) or fsync (logAction waits until the event is on disk); see DurabilityMode
+    private static final DurabilityMode DURABILITY = DurabilityMode.fromName(System.getProperty("clinicdb.audit.durability", "flush"));
+    private static final BackpressurePolicy BACKPRESSURE = BackpressurePolicy.fromName(System.getProperty("clinicdb.audit.backpressure", "block"));
+    private static final int SAMPLE_RATE = Integer.getInteger("clinicdb.audit.sampleRate", 10);
+    // The log is appended to across restarts and rolled into compressed segments by size and by time; the event
+    // store and the hash chain roll and are pruned on the same settings, but keep their segments uncompressed
+    private static final long MAX_SEGMENT_BYTES = Long.getLong("clinicdb.audit.maxSegmentBytes", 64L * 1024 * 1024);
+    private static final long SEGMENT_MINUTES = Long.getLong("clinicdb.audit.segmentMinutes", 24 * 60L);
+    private static final boolean COMPRESS_SEGMENTS = Boolean.parseBoolean(System.getProperty("clinicdb.audit.compress", "true"));
+    private static final int RETENTION_DAYS = Integer.getInteger("clinicdb.audit.retentionDays", 365);
+    private static final int MAX_SEGMENTS = Integer.getInteger("clinicdb.audit.maxSegments", 0);
+    // Repeats of one action by one thread within this window follow its first record as one record with a count;
+    // 0 turns it off
+    private static final long COALESCE_WINDOW_MILLIS = Long.getLong("clinicdb.audit.coalesceWindowMillis", 1000L);
+    // Also copies every event into the AUDIT table, in JDBC batches of up to this many rows
+    private static final boolean DATABASE_SINK = Boolean.getBoolean("clinicdb.audit.database");
+    private static final int DATABASE_BATCH_SIZE = Integer.getInteger("clinicdb.audit.database.batchSize", 500);
+    private static final int DATABASE_MAX_PENDING = Integer.getInteger("clinicdb.audit.database.maxPending", 50_000);
+
+    // A hash-chained, tamper-evident copy of every event, checked with AuditChainVerifier; with a key file its
+    // checkpoints are signed, so a rewritten chain shows as well as an edited record. Like the event store it is
+    // text, and off by default with the binary format.
+    private static final boolean HASH_CHAIN = Boolean.parseBoolean(System.getProperty("clinicdb.audit.chain", String.valueOf(!BINARY)));
+    private static final int CHAIN_CHECKPOINT_INTERVAL = Integer.getInteger("clinicdb.audit.chain.checkpointInterval", 10_000);
+    private static final String CHAIN_KEY_FILE = System.getProperty("clinicdb.audit.chain.keyFile");
+    // Events a subscriber's queue holds before it starts dropping them for that subscriber
+    private static final int SUBSCRIBER_QUEUE_SIZE = Integer.getInteger("clinicdb.audit.subscriberQueueSize", 10_000);
+
     private static Audit instance;
-    FileWriter writer;
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private AuditPipeline pipeline;
+    private AuditCoalescer coalescer;
+    private AuditStore store;
+    private final AuditSubscriptions subscriptions = new AuditSubscriptions();
 
     private Audit()
     {
         try
         {
-            this.writer = new FileWriter("src/Files/audit.csv");
-            String[] columns = {"Log", "Date-time"};
-            for (int i = 0; i < columns.length; i++) {
-                writer.append(columns[i]);
-                if (i != columns.length - 1) {
-                    writer.append(",");
-                }
+            List<AuditSink> sinks = new ArrayList<>();
+            if (BINARY) {
+                sinks.add(new AuditBinaryLog(Paths.get(AuditExporter.DEFAULT_DIRECTORY), BINARY_SEGMENT_BYTES));
+            } else if (FORMAT.equalsIgnoreCase("csv")) {
+                sinks.add(new AuditFile(Paths.get(AUDIT_FILE), MAX_SEGMENT_BYTES, SEGMENT_MINUTES,
+                        COMPRESS_SEGMENTS, RETENTION_DAYS, MAX_SEGMENTS));
+            } else {
+                throw new IllegalArgumentException("Unknown audit format '" + FORMAT + "', expected csv or binary");
+            }
+            if (EVENT_STORE) {
+                this.store = new AuditStore(Paths.get(EVENT_STORE_FILE), MAX_SEGMENT_BYTES, SEGMENT_MINUTES, RETENTION_DAYS,
+                        MAX_SEGMENTS);
+                sinks.add(store);
+            }
+            if (HASH_CHAIN) {
+                byte[] key = CHAIN_KEY_FILE == null ? null : Files.readAllBytes(Paths.get(CHAIN_KEY_FILE));
+                sinks.add(new AuditChainLog(Paths.get(AuditChainVerifier.DEFAULT_FILE), CHAIN_CHECKPOINT_INTERVAL, key,
+                        MAX_SEGMENT_BYTES, SEGMENT_MINUTES, RETENTION_DAYS, MAX_SEGMENTS));
             }
-            writer.append("\n");
+            if (DATABASE_SINK) {
+                sinks.add(new DatabaseAuditSink(DATABASE_BATCH_SIZE, DATABASE_MAX_PENDING));
+            }
+            // Not one of the sinks: a subscriber never fails a write, so it would hide a batch every sink lost.
+            // The pipeline delivers to subscribers once the sinks have the batch
+            this.pipeline = new AuditPipeline(new FanOutAuditSink(sinks), subscriptions, BUFFER_SIZE, BATCH_SIZE,
+                    FLUSH_INTERVAL_MILLIS, DURABILITY, BACKPRESSURE, SAMPLE_RATE);
+            // A folded event is only written once its run ends, which would keep fsync callers waiting
+            if (COALESCE_WINDOW_MILLIS > 0 && DURABILITY != DurabilityMode.FSYNC) {
+                this.coalescer = new AuditCoalescer(COALESCE_WINDOW_MILLIS, pipeline);
+            }
+            // The writer is a daemon thread, so whatever is still buffered is written out on the way down
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "audit-shutdown"));
         }
         catch (IOException e)
         {
@@ -46,12 +135,76 @@ public class Audit
         return instance;
     }
 
+    // Returns as soon as the event is buffered, or with fsync durability once it is on disk; the audit writer
+    // thread puts it in the file
     public void logAction(String action) throws IOException
     {
-        writer.append(action);
-        writer.append(",");
-        writer.append(formatter.format(LocalDateTime.now()));
-        writer.append("\n");
-        writer.flush();
+        logEvent(null, AuditEvent.NO_ENTITY_ID, AuditOutcome.SUCCESS, action);
+    }
+
+    // An action on one entity, or on a whole table when entityId is NO_ENTITY_ID. The operation and its latency
+    // so far are taken from the Deadline the caller runs under.
+    public void logEvent(String entityType, long entityId, AuditOutcome outcome, String action) throws IOException
+    {
+        if (pipeline == null) {
+            throw new IOException("Audit log (" + FORMAT + ") could not be opened");
+        }
+        Deadline deadline = Deadline.current();
+        AuditEvent event = new AuditEvent(action, System.currentTimeMillis(), entityType, entityId,
+                deadline == null ? null : deadline.getOperation(), outcome, deadline == null ? 0 : deadline.elapsedMillis());
+        if (coalescer != null) {
+            coalescer.log(event);
+        } else if (!pipeline.publish(event) && DURABILITY == DurabilityMode.FSYNC) {
+            throw new IOException("Audit event could not be made durable: " + action);
+        }
+    }
+
+    // Queries see the events the audit writer has taken from the buffer; a coalesced run shows up once it ends
+    public List<AuditEvent> findByEntity(String entityType, long entityId, long fromMillis, long toMillis) throws IOException
+    {
+        return openStore().findByEntity(entityType, entityId, fromMillis, toMillis);
+    }
+
+    public List<AuditEvent> findBetween(long fromMillis, long toMillis) throws IOException
+    {
+        return openStore().findBetween(fromMillis, toMillis);
+    }
+
+    // Live events the filter accepts, handed to the listener on a thread of the subscription's own; a listener
+    // that falls behind loses events from its own queue and slows down nothing else. Close it to unsubscribe.
+    public AuditSubscription subscribe(String name, Predicate<AuditEvent> filter, Consumer<AuditEvent> listener)
+    {
+        return subscribe(name, filter, SUBSCRIBER_QUEUE_SIZE, listener);
+    }
+
+    public AuditSubscription subscribe(String name, Predicate<AuditEvent> filter, int queueCapacity, Consumer<AuditEvent> listener)
+    {
+        return subscriptions.subscribe(name, filter, queueCapacity, listener);
+    }
+
+    private AuditStore openStore() throws IOException {
+        if (!EVENT_STORE) {
+            throw new IOException("Audit event store is off; start with -Dclinicdb.audit.store=true to query events");
+        }
+        if (store == null) {
+            throw new IOException("Audit event store " + EVENT_STORE_FILE + " could not be opened");
+        }
+        return store;
+    }
+
+    public String summary() {
+        if (pipeline == null) {
+            return "Audit log unavailable\n";
+        }
+        return pipeline.summary() + (coalescer == null ? "" : "Audit events folded into repeats: " + coalescer.getFoldedCount() + "\n");
+    }
+
+    public void close() {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
     }
 }
@@ -37,6 +37,8 @@ public class Menu {
         System.out.println("    3. TREATMENTS MENU");
         System.out.println("    4. APPOINTMENTS MENU");
         System.out.println("    5. PAYMENTS MENU");
+        System.out.println("    6. DATABASE DIAGNOSTICS");
+        System.out.println("    7. AUDIT HISTORY");
         System.out.println("    0. Exit.");
     }
     private void patientsMenu(){
@@ -298,6 +300,12 @@ public class Menu {
                         }
                     }while(subOption5 != 0);
                     break;
+                case 6:
+                    service.viewDatabaseDiagnostics();
+                    break;
+                case 7:
+                    service.viewAuditHistory();
+                    break;
                 default:
                     System.out.println("Invalid option. Please try again.");
                     break;
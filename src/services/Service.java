@@ -1,6 +1,11 @@
 package services;
 
+import database.ChangeVersions;
+import database.ConnectionPool;
 import database.DatabaseConfiguration;
+import database.Deadline;
+import database.SchemaMigrator;
+import database.UnitOfWork;
 import models.address.Address;
 import models.appointment.Appointment;
 import models.appointment.AppointmentStatus;
@@ -10,12 +15,15 @@ import models.person.Patient;
 import models.treatment.Treatment;
 import models.treatment.TreatmentCategory;
 import repositories.*;
+import services.audit.AuditEvent;
 
 import java.io.IOException;
+import java.sql.SQLException;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class Service {
     private static Service instance;
@@ -46,13 +54,14 @@ public class Service {
     TreatmentRepository treatmentRepository = TreatmentRepository.getInstance();
     AppointmentRepository appointmentRepository = AppointmentRepository.getInstance();
     PaymentRepository paymentRepository = PaymentRepository.getInstance();
+    AsyncRepositories asyncRepositories = AsyncRepositories.getInstance();
     Audit audit = Audit.getInstance();
     public void configureTables() {
-        patientRepository.createTable();
-        doctorRepository.createTable();
-        treatmentRepository.createTable();
-        appointmentRepository.createTable();
-        paymentRepository.createTables();
+        try {
+            SchemaMigrator.migrate();
+        } catch (SQLException e) {
+            System.out.println("\nCould not prepare the database schema: " + e.getMessage());
+        }
     }
 
     //---------------------------------------------------------------PATIENT MENU RELATED FUNCTIONS-------------------------------------------------------------------
@@ -880,8 +889,10 @@ public class Service {
                     break;
                 case 4:
                     TreatmentCategory category = chooseTreatmentCategory();
-                    Treatment treatment = chooseTreatment(category);
-                    Doctor newdoctor = chooseDoctor(category);
+                    CompletableFuture<List<Treatment>> treatmentsLoad = asyncRepositories.getTreatmentsByCategory(category);
+                    CompletableFuture<List<Doctor>> doctorsLoad = asyncRepositories.getDoctorsBySpecialization(category);
+                    Treatment treatment = chooseTreatment(category, treatmentsLoad.join());
+                    Doctor newdoctor = chooseDoctor(category, doctorsLoad.join());
                     LocalDateTime newdate1 = chooseAppointmentDate(newdoctor);
                     appointment.setTreatment(treatment);
                     appointment.setDoctor(newdoctor);
@@ -961,15 +972,36 @@ public class Service {
     public void addAppointment(){
         Scanner reader = new Scanner(System.in);
         System.out.println("\nPlease provide the following information for the new appointment:");
-        Patient patient = choosePatient();
+        List<Patient> newPatients = new ArrayList<>();
+        Patient patient = choosePatient(newPatients);
         TreatmentCategory category = chooseTreatmentCategory();
-        Treatment treatment = chooseTreatment(category);
-        Doctor doctor = chooseDoctor(category);
+        // Both lists are loaded at once, and the doctors keep loading while the treatment is chosen
+        CompletableFuture<List<Treatment>> treatmentsLoad = asyncRepositories.getTreatmentsByCategory(category);
+        CompletableFuture<List<Doctor>> doctorsLoad = asyncRepositories.getDoctorsBySpecialization(category);
+        Treatment treatment = chooseTreatment(category, treatmentsLoad.join());
+        Doctor doctor = chooseDoctor(category, doctorsLoad.join());
         LocalDateTime date = chooseAppointmentDate(doctor);
         Appointment appointment = new Appointment(date,patient,treatment,doctor, AppointmentStatus.SCHEDULED);
-        appointmentRepository.addAppointment(appointment);
+        if (newPatients.isEmpty()) {
+            appointmentRepository.addAppointment(appointment);
+            return;
+        }
+        // A new patient is registered together with their first appointment, or not at all
+        try {
+            UnitOfWork.run(() -> {
+                patientRepository.addPatient(patient);
+                appointmentRepository.addAppointment(appointment);
+            });
+            patients.add(patient);
+        } catch (SQLException e) {
+            System.out.println("\nThe patient and the appointment were not saved: " + e.getMessage());
+        }
     }
     public Patient choosePatient(){
+        return choosePatient(null);
+    }
+    // When newPatients is given, a newly entered patient is collected there instead of being saved right away
+    private Patient choosePatient(List<Patient> newPatients){
         Scanner reader = new Scanner(System.in);
         Patient patient;
         System.out.print("Is the patient registered? (yes/no): ");
@@ -1037,8 +1069,12 @@ public class Service {
                 String medicalHistory = reader.nextLine();
 
                 patient = new Patient(firstName, lastName, email, address, phoneNumber, birthDate, age, gender, medicalHistory);
-                patientRepository.addPatient(patient);
-                patients.add(patient);
+                if (newPatients != null) {
+                    newPatients.add(patient);
+                } else {
+                    patientRepository.addPatient(patient);
+                    patients.add(patient);
+                }
 
 //        try
 //        {
@@ -1051,12 +1087,14 @@ public class Service {
                 break;
             default:
                 System.out.println("Invalid response.");
-                return choosePatient();
+                return choosePatient(newPatients);
         }
         return patient;
     }
     public Treatment chooseTreatment(TreatmentCategory category) {
-        List<Treatment> treatments = treatmentRepository.getAllTreatments();
+        return chooseTreatment(category, treatmentRepository.getTreatmentsByCategory(category));
+    }
+    public Treatment chooseTreatment(TreatmentCategory category, List<Treatment> treatments) {
         List<Treatment> categoryTreatments = new ArrayList<>();
 
         // Iterate through treatments and add those with the specified category to a new list
@@ -1097,7 +1135,9 @@ public class Service {
         return categoryTreatments.get(choice - 1);
     }
     public Doctor chooseDoctor(TreatmentCategory category) {
-        List<Doctor> doctors = doctorRepository.getAllDoctors();
+        return chooseDoctor(category, doctorRepository.getDoctorsBySpecialization(category));
+    }
+    public Doctor chooseDoctor(TreatmentCategory category, List<Doctor> doctors) {
         List<Doctor> categoryDoctors = new ArrayList<>();
 
         // Iterate through doctors and add those with the specified category to a new list
@@ -1428,6 +1468,74 @@ public class Service {
 
         return chosenDateTime;
     }
+    public void viewDatabaseDiagnostics() {
+        ConnectionPool pool = DatabaseConfiguration.getConnectionPool();
+        System.out.println("\nDatabase diagnostics:");
+        System.out.println(pool);
+        System.out.println(pool.getStatementCacheStatistics());
+        System.out.print(pool.getLeakDetector().summary());
+        System.out.print(Deadline.summary());
+        System.out.print(pool.getSlowQueryLog().summary());
+        System.out.print(audit.summary());
+        System.out.print(patientRepository.idCacheSummary());
+        System.out.print(patientRepository.patientCacheSummary());
+        System.out.print(doctorRepository.idCacheSummary());
+        System.out.print(doctorRepository.directorySummary());
+        System.out.print(treatmentRepository.catalogSummary());
+        System.out.print(ChangeVersions.summary());
+        try {
+            System.out.print(RepositoryQueries.checker().check());
+        } catch (SQLException e) {
+            System.out.println("Query plans could not be checked: " + e.getMessage());
+        }
+    }
+    // Audit history of one entity, or of everything, over the last few days; read through the event store's indexes
+    public void viewAuditHistory() {
+        Scanner reader = new Scanner(System.in);
+        System.out.print("\nEntity (PATIENT, DOCTOR, TREATMENT, APPOINTMENT, PAYMENT; empty for all): ");
+        String entityType = reader.nextLine().trim().toUpperCase();
+        long entityId = -1;
+        while (!entityType.isEmpty()) {
+            System.out.print("ID: ");
+            try {
+                entityId = Long.parseLong(reader.nextLine().trim());
+                break;
+            } catch (NumberFormatException e) {
+                System.out.println("\nExpecting an integer value. Try again!");
+            }
+        }
+        int days;
+        while (true) {
+            System.out.print("Days back: ");
+            try {
+                days = Integer.parseInt(reader.nextLine().trim());
+                break;
+            } catch (NumberFormatException e) {
+                System.out.println("\nExpecting an integer value. Try again!");
+            }
+        }
+
+        long to = System.currentTimeMillis();
+        long from = to - Duration.ofDays(days).toMillis();
+        try {
+            List<AuditEvent> events = entityType.isEmpty()
+                    ? audit.findBetween(from, to)
+                    : audit.findByEntity(entityType, entityId, from, to);
+            if (events.isEmpty()) {
+                System.out.println("\nNo audit events found.");
+            }
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            for (AuditEvent event : events) {
+                String time = formatter.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(event.getTimestampMillis()), ZoneId.systemDefault()));
+                System.out.println(time + "  " + event.getOutcome()
+                        + (event.hasEntity() ? "  " + event.getEntityType() + " " + event.getEntityId() : "")
+                        + (event.getOperation() == null ? "" : "  " + event.getOperation() + " (" + event.getLatencyMillis() + " ms)")
+                        + "  " + event.describe());
+            }
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+        }
+    }
     public void closeConnection()
     {
         DatabaseConfiguration.closeDatabaseConnection();
@@ -0,0 +1,647 @@
+package services.audit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+// Usage and latency statistics from the audit logs, to decide what to cache and index:
+//
+//     java services.audit.AuditAnalyzer [--top N] [--threads N] [file or directory ...]
+//
+// A directory stands for the CSV log in it and every segment rolled from it (audit*.csv and audit*.csv.gz), which
+// is what it reads by default from src/Files. Files are read in parallel: a plain file is cut into chunks of
+// CHUNK_BYTES that are memory-mapped and counted on their own, a compressed segment is streamed through by one
+// task. Actions are grouped by what was done, with the ids and names they carry replaced by "*"
+// ("Get Patient By Id 7" and "Get Patient By Id 12" are both "Get Patient By Id *"), and counted by hour of the day
+// in local time. The CSV log has no operations or latencies; give the event store (audit-events.tsv) to get those
+// too, but not together with the CSV log of the same period, or every event is counted twice. Only complete lines
+// are read, so it is safe to run while the application is writing.
+public final class AuditAnalyzer {
+    public static final String DEFAULT_DIRECTORY = "src/Files";
+    private static final long CHUNK_BYTES = 32L * 1024 * 1024;
+    // How far past its end a chunk maps, for the line that runs over it
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+    private static final int DEFAULT_TOP = 15;
+    private static final int BLOCK_BYTES = 1024 * 1024;
+    private static final int NORMALIZED_CACHE_SIZE = 100_000;
+    private static final String SPARK = " .:-=+*#%@";
+
+    private AuditAnalyzer() { }
+
+    public static Report analyze(List<Path> inputs, int threads) throws IOException {
+        long startedAt = System.nanoTime();
+        List<Path> files = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                files.addAll(logFiles(input));
+            } else {
+                files.add(input);
+            }
+        }
+        Report report = new Report();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "audit-analyzer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The kind of each action as written, shared by the tasks
+        Map<String, String> kinds = new ConcurrentHashMap<>();
+        try {
+            List<Future<Tally>> tallies = new ArrayList<>();
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean events = name.endsWith(".tsv");
+                report.bytes += Files.size(file);
+                if (name.endsWith(".gz")) {
+                    tallies.add(pool.submit(() -> readCompressed(file, kinds)));
+                    continue;
+                }
+                long size = Files.size(file);
+                for (long start = 0; start < size; start += CHUNK_BYTES) {
+                    long from = start;
+                    tallies.add(pool.submit(() -> readChunk(file, from, Math.min(size, from + CHUNK_BYTES), events, kinds)));
+                }
+            }
+            for (Future<Tally> tally : tallies) {
+                report.total.add(tally.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Audit analysis interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Audit analysis failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        report.files = files.size();
+        report.threads = threads;
+        report.elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        return report;
+    }
+
+    // The lines that start between from and to; the one running into from was the previous chunk's
+    private static Tally readChunk(Path file, long from, long to, boolean events, Map<String, String> kinds) throws IOException {
+        Tally tally = new Tally(kinds);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long mapFrom = from == 0 ? 0 : from - 1;
+            long mapTo = Math.min(channel.size(), to + MAX_LINE_BYTES);
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, mapFrom, mapTo - mapFrom);
+            // Copied out a block at a time, which is a memory copy, and split where the JIT can see the array
+            countLines((bytes, offset, length) -> {
+                int n = Math.min(length, mapped.remaining());
+                mapped.get(bytes, offset, n);
+                return n;
+            }, from > 0, to - mapFrom, tally, events);
+        }
+        return tally;
+    }
+
+    private static Tally readCompressed(Path file, Map<String, String> kinds) throws IOException {
+        Tally tally = new Tally(kinds);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+            countLines(in::read, false, Long.MAX_VALUE, tally, file.getFileName().toString().endsWith(".tsv.gz"));
+        }
+        return tally;
+    }
+
+    private interface Source {
+        // Like InputStream.read: more than 0 bytes until there are none left
+        int read(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    // Counts the complete lines that start before stopAt (bytes into the source), skipping the first one if asked
+    private static void countLines(Source source, boolean skipFirst, long stopAt, Tally tally, boolean events) throws IOException {
+        byte[] block = new byte[BLOCK_BYTES];
+        int filled = 0;
+        long blockOffset = 0;
+        boolean skip = skipFirst;
+        int read;
+        while ((read = source.read(block, filled, block.length - filled)) > 0) {
+            filled += read;
+            int lineStart = 0;
+            for (int i = 0; i < filled; i++) {
+                if (block[i] != '\n') {
+                    continue;
+                }
+                if (blockOffset + lineStart >= stopAt) {
+                    return;
+                }
+                if (skip) {
+                    skip = false;
+                } else {
+                    tally.line(block, lineStart, i - lineStart, events);
+                }
+                lineStart = i + 1;
+            }
+            // The unfinished line moves to the front; a block too small for it doubles
+            System.arraycopy(block, lineStart, block, 0, filled - lineStart);
+            filled -= lineStart;
+            blockOffset += lineStart;
+            if (filled == block.length) {
+                block = Arrays.copyOf(block, block.length * 2);
+            }
+        }
+    }
+
+    // The CSV log and the segments rolled from it, oldest first
+    private static List<Path> logFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "audit*.{csv,csv.gz}")) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+        files.sort(Comparator.naturalOrder());
+        return files;
+    }
+
+    // "Get Patient By Id 12" becomes "Get Patient By Id *", "Searched Patients By Name JOHN" becomes
+    // "Searched Patients By Name *" and "Deleted patient with ID: 4" becomes "Deleted patient with ID: *"
+    static String normalize(String action) {
+        StringBuilder result = new StringBuilder(action.length());
+        int colon = action.indexOf(": ");
+        String text = colon >= 0 ? action.substring(0, colon + 2) + "*" : action;
+        boolean inNumber = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isDigit(c)) {
+                if (!inNumber) {
+                    result.append('*');
+                }
+                inNumber = true;
+            } else {
+                result.append(c);
+                inNumber = false;
+            }
+        }
+        // The names the searches log are upper-cased; a word or more of them at the end is the search term
+        String[] words = result.toString().split(" ");
+        int kept = words.length;
+        while (kept > 3 && isUpperCaseWord(words[kept - 1])) {
+            kept--;
+        }
+        if (kept == words.length) {
+            return result.toString();
+        }
+        return String.join(" ", Arrays.asList(words).subList(0, kept)) + " *";
+    }
+
+    private static boolean isUpperCaseWord(String word) {
+        boolean letters = false;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (Character.isLowerCase(c) || c == '*') {
+                return false;
+            }
+            letters |= Character.isLetter(c);
+        }
+        // "ID" is part of the message, not a name
+        return letters && !word.equals("ID");
+    }
+
+    // What one chunk or file counted; merged into the report's total
+    private static final class Tally {
+        private final Map<String, ActionTally> actions = new HashMap<>();
+        private final Map<String, OperationTally> operations = new HashMap<>();
+        private final Map<String, String> kinds;
+        private final long[] hours = new long[24];
+        private long events;
+        private long records;
+        private long skipped;
+        private long firstLocalSecond = Long.MAX_VALUE;
+        private long lastLocalSecond = Long.MIN_VALUE;
+
+        // The date of the last CSV line, which is nearly always the date of the next one
+        private final byte[] cachedDate = new byte[10];
+        private long cachedEpochDay = Long.MIN_VALUE;
+        private long cachedOffsetHour = Long.MIN_VALUE;
+        private int cachedOffsetSeconds;
+
+        // The actions seen so far as they were written, so a line only becomes a String the first time
+        private final RawActions raw = new RawActions();
+
+        private Tally(Map<String, String> kinds) {
+            this.kinds = kinds;
+        }
+
+        private void line(byte[] line, int from, int length, boolean events) {
+            if (events) {
+                eventLine(new String(line, from, length, StandardCharsets.UTF_8));
+            } else {
+                csvLine(line, from, length);
+            }
+        }
+
+        // action,yyyy-MM-dd HH:mm:ss where the action may have commas of its own
+        private void csvLine(byte[] line, int from, int length) {
+            int comma = from + length - 20;
+            if (comma < from || line[comma] != ',' || line[comma + 5] != '-' || line[comma + 14] != ':') {
+                // The header line, or not one of ours
+                skipped++;
+                return;
+            }
+            int at = comma + 1;
+            long epochDay = cachedEpochDay;
+            if (epochDay == Long.MIN_VALUE || !sameBytes(line, at, cachedDate)) {
+                try {
+                    epochDay = LocalDate.of(digits(line, at, 4), digits(line, at + 5, 2), digits(line, at + 8, 2)).toEpochDay();
+                } catch (RuntimeException e) {
+                    skipped++;
+                    return;
+                }
+                System.arraycopy(line, at, cachedDate, 0, cachedDate.length);
+                cachedEpochDay = epochDay;
+            }
+            int hour = digits(line, at + 11, 2);
+            if (hour < 0 || hour > 23) {
+                skipped++;
+                return;
+            }
+            long localSecond = epochDay * 86_400 + hour * 3600L + digits(line, at + 14, 2) * 60L + digits(line, at + 17, 2);
+
+            ActionTally known = raw.get(line, from, comma);
+            if (known != null) {
+                count(known, hour, localSecond, 1);
+                return;
+            }
+            String action = new String(line, from, comma - from, StandardCharsets.UTF_8);
+            // A coalesced run, action [xN over M ms]; its count changes from line to line, so it is not remembered
+            int repeat = action.lastIndexOf(" [x");
+            if (repeat > 0 && action.endsWith(" ms]")) {
+                try {
+                    int count = Integer.parseInt(action.substring(repeat + 3, action.indexOf(" over ", repeat)));
+                    count(tallyOf(action.substring(0, repeat)), hour, localSecond, count);
+                    return;
+                } catch (RuntimeException e) {
+                    // Counted as it stands
+                }
+            }
+            ActionTally tally = tallyOf(action);
+            raw.put(Arrays.copyOfRange(line, from, comma), tally);
+            count(tally, hour, localSecond, 1);
+        }
+
+        private void eventLine(String line) {
+            AuditEvent event = AuditStore.parse(line);
+            if (event == null) {
+                skipped++;
+                return;
+            }
+            long millis = event.getTimestampMillis();
+            long utcHour = Math.floorDiv(millis, 3_600_000L);
+            if (utcHour != cachedOffsetHour) {
+                cachedOffsetHour = utcHour;
+                cachedOffsetSeconds = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+            }
+            long localSecond = Math.floorDiv(millis, 1000L) + cachedOffsetSeconds;
+            int hour = (int) Math.floorMod(localSecond, 86_400L) / 3600;
+            count(tallyOf(event.getAction()), hour, localSecond, event.getCount());
+            if (event.getOperation() != null) {
+                operations.computeIfAbsent(event.getOperation(), key -> new OperationTally())
+                        .add(event.getCount(), event.getLatencyMillis());
+            }
+        }
+
+        private ActionTally tallyOf(String action) {
+            String kind = kinds.get(action);
+            if (kind == null) {
+                kind = normalize(action);
+                // Every id an action names makes another one; past this many they are worked out each time
+                if (kinds.size() < NORMALIZED_CACHE_SIZE) {
+                    kinds.put(action, kind);
+                }
+            }
+            return actions.computeIfAbsent(kind, key -> new ActionTally());
+        }
+
+        private void count(ActionTally tally, int hour, long localSecond, int count) {
+            tally.events += count;
+            tally.hours[hour] += count;
+            hours[hour] += count;
+            events += count;
+            records++;
+            firstLocalSecond = Math.min(firstLocalSecond, localSecond);
+            lastLocalSecond = Math.max(lastLocalSecond, localSecond);
+        }
+
+        private void add(Tally other) {
+            other.actions.forEach((kind, tally) -> actions.computeIfAbsent(kind, key -> new ActionTally()).add(tally));
+            other.operations.forEach((name, tally) -> operations.computeIfAbsent(name, key -> new OperationTally()).add(tally));
+            for (int h = 0; h < 24; h++) {
+                hours[h] += other.hours[h];
+            }
+            events += other.events;
+            records += other.records;
+            skipped += other.skipped;
+            firstLocalSecond = Math.min(firstLocalSecond, other.firstLocalSecond);
+            lastLocalSecond = Math.max(lastLocalSecond, other.lastLocalSecond);
+        }
+
+        private static boolean sameBytes(byte[] line, int at, byte[] expected) {
+            for (int i = 0; i < expected.length; i++) {
+                if (line[at + i] != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // -1 unless they are all digits
+        private static int digits(byte[] line, int at, int count) {
+            int value = 0;
+            for (int i = at; i < at + count; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+    }
+
+    // Open addressing from the bytes of an action as written to the tally of its kind; starts over once it holds
+    // NORMALIZED_CACHE_SIZE actions, since every id an action names makes another one
+    private static final class RawActions {
+        private byte[][] keys = new byte[1024][];
+        private ActionTally[] values = new ActionTally[1024];
+        private int size;
+
+        private ActionTally get(byte[] bytes, int from, int to) {
+            int mask = keys.length - 1;
+            for (int slot = hash(bytes, from, to) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                byte[] key = keys[slot];
+                if (Arrays.equals(key, 0, key.length, bytes, from, to)) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        private void put(byte[] key, ActionTally value) {
+            if (size >= NORMALIZED_CACHE_SIZE) {
+                keys = new byte[1024][];
+                values = new ActionTally[1024];
+                size = 0;
+            } else if (size * 2 >= keys.length) {
+                byte[][] oldKeys = keys;
+                ActionTally[] oldValues = values;
+                keys = new byte[oldKeys.length * 2][];
+                values = new ActionTally[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) {
+                        put(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key, 0, key.length) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        private static int hash(byte[] bytes, int from, int to) {
+            int hash = 1;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            // Actions that differ only in the id at their end hash to neighbours; spread them out
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private static final class ActionTally {
+        private final long[] hours = new long[24];
+        private long events;
+
+        private void add(ActionTally other) {
+            events += other.events;
+            for (int h = 0; h < 24; h++) {
+                hours[h] += other.hours[h];
+            }
+        }
+
+        private int busiestHour() {
+            int busiest = 0;
+            for (int h = 1; h < 24; h++) {
+                if (hours[h] > hours[busiest]) {
+                    busiest = h;
+                }
+            }
+            return busiest;
+        }
+    }
+
+    // Latencies in powers of two of milliseconds; a coalesced record counts its events but one latency, the
+    // longest of its run
+    private static final class OperationTally {
+        private final long[] latencyBuckets = new long[64];
+        private long events;
+        private long records;
+        private long totalLatencyMillis;
+        private long maxLatencyMillis;
+
+        private void add(int count, long latencyMillis) {
+            events += count;
+            records++;
+            totalLatencyMillis += latencyMillis;
+            maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+            latencyBuckets[64 - Long.numberOfLeadingZeros(Math.max(0, latencyMillis))]++;
+        }
+
+        private void add(OperationTally other) {
+            events += other.events;
+            records += other.records;
+            totalLatencyMillis += other.totalLatencyMillis;
+            maxLatencyMillis = Math.max(maxLatencyMillis, other.maxLatencyMillis);
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                latencyBuckets[i] += other.latencyBuckets[i];
+            }
+        }
+
+        // At most this many milliseconds
+        private long percentile(double fraction) {
+            long wanted = (long) Math.ceil(records * fraction);
+            long seen = 0;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                seen += latencyBuckets[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, maxLatencyMillis);
+                }
+            }
+            return maxLatencyMillis;
+        }
+    }
+
+    public static final class Report {
+        private final Tally total = new Tally(new HashMap<>());
+        private int files;
+        private long bytes;
+        private int threads;
+        private long elapsedMillis;
+
+        public long getEvents() {
+            return total.events;
+        }
+
+        public long getCount(String action) {
+            ActionTally tally = total.actions.get(normalize(action));
+            return tally == null ? 0 : tally.events;
+        }
+
+        public String format(int top) {
+            DateTimeFormatter minutes = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+            double hoursSpanned = total.events == 0 ? 0 : Math.max(1, total.lastLocalSecond - total.firstLocalSecond + 1) / 3600.0;
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("Audit log analysis: %,d files, %,d MB, %,d events in %,d records", files, bytes >> 20,
+                    total.events, total.records));
+            if (total.events > 0) {
+                report.append(" from ").append(minutes.format(LocalDateTime.ofEpochSecond(total.firstLocalSecond, 0, ZoneOffset.UTC)))
+                        .append(" to ").append(minutes.format(LocalDateTime.ofEpochSecond(total.lastLocalSecond, 0, ZoneOffset.UTC)))
+                        .append(String.format(" (%.1f days)", hoursSpanned / 24));
+            }
+            report.append(String.format(", read in %,d ms with %d threads", elapsedMillis, threads));
+            if (total.skipped > 0) {
+                report.append(String.format(", %,d lines skipped", total.skipped));
+            }
+            report.append("\n");
+            if (total.events == 0) {
+                return report.toString();
+            }
+
+            List<Map.Entry<String, ActionTally>> actions = new ArrayList<>(total.actions.entrySet());
+            actions.sort((a, b) -> Long.compare(b.getValue().events, a.getValue().events));
+            List<Map.Entry<String, ActionTally>> topActions = actions.subList(0, Math.min(top, actions.size()));
+            int width = 20;
+            for (Map.Entry<String, ActionTally> action : topActions) {
+                width = Math.max(width, Math.min(60, action.getKey().length()));
+            }
+
+            report.append(String.format("%nTop %d of %d actions%n", topActions.size(), actions.size()));
+            report.append(String.format("  %-" + width + "s %14s %7s %10s  %-24s  %s%n", "action", "events", "share", "per hour",
+                    "by hour of day 0-23", "busiest"));
+            for (Map.Entry<String, ActionTally> entry : topActions) {
+                ActionTally action = entry.getValue();
+                int busiest = action.busiestHour();
+                report.append(String.format("  %-" + width + "s %,14d %6.1f%% %,10.1f  %s  %02d:00%n", clip(entry.getKey(), width),
+                        action.events, 100.0 * action.events / total.events, action.events / hoursSpanned,
+                        sparkline(action.hours), busiest));
+            }
+
+            report.append("\nEvents by hour of day\n");
+            long busiestHour = 1;
+            for (long count : total.hours) {
+                busiestHour = Math.max(busiestHour, count);
+            }
+            for (int h = 0; h < 24; h++) {
+                int bar = (int) Math.round(50.0 * total.hours[h] / busiestHour);
+                report.append(String.format("  %02d:00  %-50s %,14d%n", h, "#".repeat(bar), total.hours[h]));
+            }
+
+            if (!total.operations.isEmpty()) {
+                List<Map.Entry<String, OperationTally>> operations = new ArrayList<>(total.operations.entrySet());
+                operations.sort((a, b) -> Long.compare(b.getValue().events, a.getValue().events));
+                appendOperations(report, "Top operations by events", operations, top);
+                operations.sort((a, b) -> Long.compare(b.getValue().totalLatencyMillis, a.getValue().totalLatencyMillis));
+                appendOperations(report, "Top operations by time spent", operations, top);
+            }
+            return report.toString();
+        }
+
+        private static void appendOperations(StringBuilder report, String title, List<Map.Entry<String, OperationTally>> operations, int top) {
+            int width = 20;
+            for (Map.Entry<String, OperationTally> operation : operations.subList(0, Math.min(top, operations.size()))) {
+                width = Math.max(width, Math.min(60, operation.getKey().length()));
+            }
+            report.append(String.format("%n%s%n", title));
+            report.append(String.format("  %-" + width + "s %14s %14s %9s %9s %9s %9s%n", "operation", "events", "total ms",
+                    "mean ms", "p50 ms", "p99 ms", "max ms"));
+            for (Map.Entry<String, OperationTally> entry : operations.subList(0, Math.min(top, operations.size()))) {
+                OperationTally operation = entry.getValue();
+                report.append(String.format("  %-" + width + "s %,14d %,14d %9.1f %9s %9s %,9d%n", clip(entry.getKey(), width),
+                        operation.events, operation.totalLatencyMillis, (double) operation.totalLatencyMillis / operation.records,
+                        "<=" + operation.percentile(0.50), "<=" + operation.percentile(0.99), operation.maxLatencyMillis));
+            }
+        }
+
+        private static String clip(String text, int width) {
+            return text.length() <= width ? text : text.substring(0, width - 3) + "...";
+        }
+
+        // One character per hour, scaled to the action's own busiest hour
+        private static String sparkline(long[] hours) {
+            long max = 1;
+            for (long count : hours) {
+                max = Math.max(max, count);
+            }
+            StringBuilder line = new StringBuilder(24);
+            for (long count : hours) {
+                int level = count == 0 ? 0 : 1 + (int) ((SPARK.length() - 2) * count / max);
+                line.append(SPARK.charAt(level));
+            }
+            return line.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        int top = DEFAULT_TOP;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--top") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            inputs.add(Paths.get(DEFAULT_DIRECTORY));
+        }
+        try {
+            Report report = analyze(inputs, threads);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            out.print(report.format(top));
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package services.audit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+// Measures what each durability mode costs the callers of logAction on this machine, with the same sinks the
+// application writes to by default (the CSV log and the event store):
+//
+//     java services.audit.AuditBenchmark [threads] [seconds per mode] [directory]
+//
+// For every mode it prints the events per second all threads together got through and the latency of a single
+// publish. The files go to a temporary directory (or the one given) and are deleted afterwards; point it at the
+// disk the audit log lives on, since fsync numbers depend on little else.
+public final class AuditBenchmark {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    private AuditBenchmark() { }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Path root = args.length > 2 ? Files.createDirectories(Paths.get(args[2])) : Files.createTempDirectory("audit-benchmark");
+
+        System.out.println("Audit durability benchmark: " + threads + " threads, " + seconds + " s per mode, in " + root);
+        // Unreported, so the first mode measured does not pay for the JIT
+        Path warmUp = Files.createDirectories(root.resolve("warm-up"));
+        try {
+            run(DurabilityMode.FLUSH, threads, Math.max(1, seconds / 2), warmUp);
+        } finally {
+            delete(warmUp);
+        }
+        for (DurabilityMode mode : DurabilityMode.values()) {
+            Path directory = Files.createDirectories(root.resolve(mode.name().toLowerCase()));
+            try {
+                System.out.println(run(mode, threads, seconds, directory));
+            } finally {
+                delete(directory);
+            }
+        }
+    }
+
+    private static String run(DurabilityMode mode, int threads, int seconds, Path directory) throws Exception {
+        List<AuditSink> sinks = new ArrayList<>();
+        sinks.add(new AuditFile(directory.resolve("audit.csv"), Long.MAX_VALUE, 365L * 24 * 60, false, 0, 0));
+        sinks.add(new AuditStore(directory.resolve("audit-events.tsv"), Long.MAX_VALUE, 365L * 24 * 60, 0, 0));
+        AuditPipeline pipeline = new AuditPipeline(new FanOutAuditSink(sinks), BUFFER_SIZE, BATCH_SIZE,
+                FLUSH_INTERVAL_MILLIS, mode, BackpressurePolicy.BLOCK, 1);
+
+        Histogram[] histograms = new Histogram[threads];
+        long[] counts = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        long[] endsAt = new long[1];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            histograms[t] = new Histogram();
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long n = 0;
+                while (System.nanoTime() < endsAt[0]) {
+                    long before = System.nanoTime();
+                    pipeline.publish(new AuditEvent("Get Patient By Id " + (n % 100), System.currentTimeMillis(),
+                            "PATIENT", n % 100, "PatientRepository.getPatientById", AuditOutcome.SUCCESS, 1));
+                    histograms[index].record(System.nanoTime() - before);
+                    n++;
+                }
+                counts[index] = n;
+            }, "audit-benchmark-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long startedAt = System.nanoTime();
+        endsAt[0] = startedAt + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - startedAt;
+        pipeline.close();
+
+        Histogram all = new Histogram();
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            all.add(histograms[t]);
+            total += counts[t];
+        }
+        return String.format("    %-6s %,12.0f events/s   latency p50 %s  p99 %s  p99.9 %s  max %s",
+                mode.name().toLowerCase(), total / (elapsed / 1e9),
+                micros(all.percentile(0.50)), micros(all.percentile(0.99)), micros(all.percentile(0.999)), micros(all.max));
+    }
+
+    private static String micros(long nanos) {
+        return nanos < 10_000 ? String.format("%.1f us", nanos / 1e3) : String.format("%,d us", nanos / 1000);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Log-linear buckets: 16 per power of two, so a percentile is within about 6% of the true value
+    private static final class Histogram {
+        private final long[] buckets = new long[64 * 16];
+        private long count;
+        private long max;
+
+        private void record(long nanos) {
+            buckets[bucket(Math.max(0, nanos))]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        private void add(Histogram other) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        private long percentile(double fraction) {
+            long wanted = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(value(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < 16) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return (exponent - 3) * 16 + (int) ((nanos >>> (exponent - 4)) & 15);
+        }
+
+        // The upper end of the bucket
+        private static long value(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int exponent = bucket / 16 + 3;
+            return ((16L | (bucket % 16)) + 1) << (exponent - 4);
+        }
+    }
+}
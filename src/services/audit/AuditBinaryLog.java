@@ -0,0 +1,225 @@
+package services.audit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The audit log as fixed-size binary records appended to memory-mapped segment files, for when formatting every
+// event as text costs too much. A record keeps the epoch-millis timestamp as is and numbers in place of its
+// strings: every distinct string (actions, entity types, operations) is written once to a dictionary file and
+// referred to by its position there. Once the dictionary knows an action, writing it is a handful of puts into
+// the mapped segment, with no encoding and no allocation. AuditExporter turns the segments back into the
+// "Log,Date-time" CSV.
+//
+//     segment     header of HEADER_BYTES: magic, version, record size, then the record count (long at COUNT_OFFSET)
+//                 records of RECORD_BYTES: timestamp (long), action (int), entity type (int), entity id (long),
+//                 operation (int), latency millis (int), count (int), duration millis (int), outcome (byte)
+//     dictionary  entries of (length int, UTF-8 bytes); an entry's number is its position in the file
+//
+// Segments are preallocated at segmentBytes and named audit-000001.bin, audit-000002.bin, ... in the order they
+// were started. The count in the header is only raised once a batch is complete and the strings it uses are in
+// the dictionary, so readers trust nothing beyond it and a batch cut short by a crash is written over.
+public class AuditBinaryLog implements AuditSink {
+    static final int MAGIC = 0x43415544;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 48;
+    static final int COUNT_OFFSET = 16;
+    static final int NONE = -1;
+    static final String DICTIONARY_FILE = "strings.dict";
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final FileChannel dictionary;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final ByteArrayOutputStream newStrings = new ByteArrayOutputStream();
+
+    private int segmentNumber;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private long capacity;
+    private long recordCount;
+
+    public AuditBinaryLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory.toAbsolutePath();
+        // A mapped buffer is indexed by int
+        this.segmentBytes = Math.max(HEADER_BYTES + RECORD_BYTES, Math.min(segmentBytes, Integer.MAX_VALUE));
+        Files.createDirectories(this.directory);
+
+        this.dictionary = FileChannel.open(this.directory.resolve(DICTIONARY_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        List<String> strings = new ArrayList<>();
+        long dictionaryEnd = readDictionary(dictionary, strings);
+        // Cuts off an entry the previous run did not finish writing
+        dictionary.truncate(dictionaryEnd);
+        dictionary.position(dictionaryEnd);
+        for (int i = 0; i < strings.size(); i++) {
+            ids.put(strings.get(i), i);
+        }
+
+        List<Path> existing = segments(this.directory);
+        openSegment(existing.isEmpty() ? 1 : segmentNumber(existing.get(existing.size() - 1)));
+        if (recordCount == capacity) {
+            openSegment(segmentNumber + 1);
+        }
+    }
+
+    @Override
+    public void write(List<AuditEvent> batch) throws IOException {
+        for (AuditEvent event : batch) {
+            if (recordCount == capacity) {
+                commit();
+                openSegment(segmentNumber + 1);
+            }
+            int position = HEADER_BYTES + (int) recordCount * RECORD_BYTES;
+            segment.putLong(position, event.getTimestampMillis());
+            segment.putInt(position + 8, id(event.getAction()));
+            segment.putInt(position + 12, id(event.getEntityType()));
+            segment.putLong(position + 16, event.getEntityId());
+            segment.putInt(position + 24, id(event.getOperation()));
+            segment.putInt(position + 28, (int) Math.min(event.getLatencyMillis(), Integer.MAX_VALUE));
+            segment.putInt(position + 32, event.getCount());
+            segment.putInt(position + 36, (int) Math.min(event.getDurationMillis(), Integer.MAX_VALUE));
+            segment.put(position + 40, (byte) event.getOutcome().ordinal());
+            recordCount++;
+        }
+        commit();
+    }
+
+    // The records are in the page cache as soon as they are put; there is no buffer of our own to empty
+    @Override
+    public void flush() {
+    }
+
+    // The dictionary first: a record on disk must never refer to a string that is not
+    @Override
+    public void sync() throws IOException {
+        dictionary.force(false);
+        segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        segment.force();
+        segmentChannel.close();
+        dictionary.close();
+    }
+
+    private int id(String text) {
+        if (text == null) {
+            return NONE;
+        }
+        Integer id = ids.get(text);
+        if (id == null) {
+            id = ids.size();
+            ids.put(text, id);
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            newStrings.write(bytes.length >>> 24);
+            newStrings.write(bytes.length >>> 16);
+            newStrings.write(bytes.length >>> 8);
+            newStrings.write(bytes.length);
+            newStrings.write(bytes, 0, bytes.length);
+        }
+        return id;
+    }
+
+    // Publishes the records written so far: their strings go to the dictionary first, then the count is raised
+    private void commit() throws IOException {
+        if (newStrings.size() > 0) {
+            ByteBuffer strings = ByteBuffer.wrap(newStrings.toByteArray());
+            while (strings.hasRemaining()) {
+                dictionary.write(strings);
+            }
+            newStrings.reset();
+        }
+        segment.putLong(COUNT_OFFSET, recordCount);
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (segmentChannel != null) {
+            segment.force();
+            segmentChannel.close();
+        }
+        Path path = directory.resolve(segmentName(number));
+        segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // An existing segment keeps the size it was made with
+        long size = segmentChannel.size() >= HEADER_BYTES + RECORD_BYTES ? Math.min(segmentChannel.size(), Integer.MAX_VALUE) : segmentBytes;
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentNumber = number;
+        capacity = (size - HEADER_BYTES) / RECORD_BYTES;
+        if (segment.getInt(0) == 0) {
+            segment.putInt(0, MAGIC);
+            segment.putInt(4, VERSION);
+            segment.putInt(8, RECORD_BYTES);
+            segment.putLong(COUNT_OFFSET, 0);
+        } else if (segment.getInt(0) != MAGIC || segment.getInt(8) != RECORD_BYTES) {
+            throw new IOException(path + " is not an audit segment this version can append to");
+        }
+        recordCount = Math.min(Math.max(0, segment.getLong(COUNT_OFFSET)), capacity);
+    }
+
+    // Reads the complete entries into strings and returns where they end
+    static long readDictionary(FileChannel channel, List<String> strings) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return buffer.position();
+    }
+
+    // Oldest first
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path entry : entries) {
+                if (segmentNumber(entry) > 0) {
+                    segments.add(entry);
+                }
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package services.audit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// A tamper-evident copy of the audit trail. Every event is one line chained to the one before it by SHA-256, and
+// every checkpointInterval records (and on close) a checkpoint line seals the chain so far:
+//
+//     R  sequence  <the AuditStore record>  hash         hash = SHA-256(previous hash || the line up to its hash)
+//     C  sequence  timestamp  hash  mac                  hash = the chain after record <sequence>
+//
+// Editing, inserting or deleting a record changes every hash after it, so anything short of rewriting the rest of
+// the chain shows. A rewritten chain only shows with a key: each checkpoint then carries an HMAC-SHA256 of itself
+// under that key (otherwise "-"), which nobody without the key can recompute. Keep the key away from the log's own
+// directory; the records after the last checkpoint are only covered by the hashes until the next one is written.
+// Checkpoints are also where AuditChainVerifier splits the file to check it in parallel. The log is appended to
+// across restarts: a torn last line is cut off and the chain carries on from the last complete one.
+//
+// Like the CSV log the file is rolled, between batches, once it reaches maxSegmentBytes or its time period ends:
+// it is sealed with a checkpoint and renamed to audit-chain-<sequence>.log, after the record it continues from,
+// and the new file opens with a copy of that checkpoint. A segment can so be checked on its own from its first
+// line, and the chain across segments by matching each one's first line to the last line of the one before. The
+// oldest segments are deleted under the same retention settings as the CSV log; the chain that is left starts
+// from the opening checkpoint of the oldest one, which only a keyed MAC vouches for.
+public class AuditChainLog implements AuditSink {
+    static final int HASH_BYTES = 32;
+    static final int HASH_HEX_LENGTH = HASH_BYTES * 2;
+    static final byte[] GENESIS = new byte[HASH_BYTES];
+    static final String NO_MAC = "-";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int SEQUENCE_DIGITS = 20;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Path path;
+    private final String baseName;
+    private final String extension;
+    private final long maxSegmentBytes;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final int maxSegments;
+    private final int checkpointInterval;
+    private final MessageDigest digest;
+    private final Mac mac;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+
+    // Only the writer thread changes them; volatile for summary
+    private volatile long sequence;
+    private volatile byte[] head = GENESIS;
+    private volatile long checkpoints;
+    private long sinceCheckpoint;
+    private FileChannel channel;
+    private long end;
+    // The checkpoint the file ends with, or null when records follow the last one
+    private String sealedBy;
+    // The record the active segment continues from, 0 for the start of the chain
+    private long segmentStart;
+    private long segmentEndsAt;
+
+    // A null or empty key writes unkeyed checkpoints. segmentMinutes of 0 never rolls by time; retentionDays and
+    // maxSegments of 0 keep rolled segments forever.
+    public AuditChainLog(Path path, int checkpointInterval, byte[] key, long maxSegmentBytes, long segmentMinutes,
+                         int retentionDays, int maxSegments) throws IOException {
+        if (segmentMinutes < 0) {
+            throw new IllegalArgumentException("Audit segment minutes must not be negative: " + segmentMinutes);
+        }
+        this.path = path.toAbsolutePath();
+        String fileName = this.path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        this.baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        this.extension = dot > 0 ? fileName.substring(dot) : "";
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.segmentMillis = TimeUnit.MINUTES.toMillis(segmentMinutes);
+        this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        this.maxSegments = maxSegments;
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+        this.digest = sha256();
+        this.mac = key == null || key.length == 0 ? null : hmac(key);
+        Files.createDirectories(this.path.getParent());
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        resume();
+        segmentEndsAt = AuditFile.periodEnd(System.currentTimeMillis(), segmentMillis, zone);
+        deleteExpiredSegments();
+    }
+
+    @Override
+    public void write(List<AuditEvent> batch) throws IOException {
+        if (!batch.isEmpty() && sequence > segmentStart
+                && (end >= maxSegmentBytes || batch.get(0).getTimestampMillis() >= segmentEndsAt)) {
+            roll(batch.get(0).getTimestampMillis());
+        }
+        for (AuditEvent event : batch) {
+            String record = AuditStore.format(event);
+            // The store's record ends with a newline of its own
+            append("R\t" + (sequence + 1) + "\t" + record.substring(0, record.length() - 1));
+            sequence++;
+            if (++sinceCheckpoint >= checkpointInterval) {
+                checkpoint(event.getTimestampMillis());
+            }
+        }
+        writePending();
+    }
+
+    // Every batch goes straight to the file
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (sinceCheckpoint > 0) {
+                checkpoint(System.currentTimeMillis());
+                writePending();
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String summary() {
+        return "Audit hash chain " + path.getFileName() + ": " + sequence + " records, head " + hex(head).substring(0, 16)
+                + ", " + checkpoints + " checkpoints written" + (mac == null ? " (unkeyed)" : "") + "\n";
+    }
+
+    private void checkpoint(long timestampMillis) {
+        String body = "C\t" + sequence + "\t" + timestampMillis + "\t" + hex(head);
+        byte[] seal = mac == null ? null : mac.doFinal(body.getBytes(StandardCharsets.UTF_8));
+        sealedBy = body + "\t" + (seal == null ? NO_MAC : hex(seal));
+        byte[] line = (sealedBy + "\n").getBytes(StandardCharsets.UTF_8);
+        pending.write(line, 0, line.length);
+        sinceCheckpoint = 0;
+        checkpoints++;
+    }
+
+    // The segment is sealed and complete on disk before it is renamed
+    private void roll(long now) throws IOException {
+        if (sealedBy == null) {
+            checkpoint(now);
+            writePending();
+        }
+        channel.force(false);
+        channel.close();
+        Files.move(path, path.resolveSibling(segmentName(segmentStart)));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = 0;
+        openWith(sealedBy);
+        segmentEndsAt = AuditFile.periodEnd(now, segmentMillis, zone);
+        deleteExpiredSegments();
+    }
+
+    // Starts the active segment with the checkpoint the one before it ended with
+    private void openWith(String checkpoint) throws IOException {
+        byte[] line = (checkpoint + "\n").getBytes(StandardCharsets.UTF_8);
+        pending.write(line, 0, line.length);
+        writePending();
+        segmentStart = sequence;
+    }
+
+    // Oldest first, as long as retention no longer keeps them
+    private void deleteExpiredSegments() {
+        List<Path> rolled = rolledSegments(path);
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (int i = 0; i < rolled.size(); i++) {
+            Path segment = rolled.get(i);
+            boolean tooMany = maxSegments > 0 && rolled.size() - i > maxSegments;
+            boolean tooOld = retentionMillis > 0 && lastModified(segment) < cutoff;
+            if (!tooMany && !tooOld) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                System.out.println("Error with audit: could not delete " + segment + ": " + e);
+                return;
+            }
+        }
+    }
+
+    private String segmentName(long start) {
+        return baseName + "-" + String.format("%0" + SEQUENCE_DIGITS + "d", start) + extension;
+    }
+
+    // The rolled segments of the log at path, oldest first
+    static List<Path> rolledSegments(Path path) {
+        String fileName = path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(path.toAbsolutePath().getParent(),
+                baseName + "-*" + extension)) {
+            for (Path segment : directory) {
+                String name = segment.getFileName().toString();
+                String digits = name.substring(baseName.length() + 1, name.length() - extension.length());
+                if (digits.length() == SEQUENCE_DIGITS && digits.chars().allMatch(Character::isDigit)) {
+                    segments.add(segment);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+        }
+        segments.sort(Comparator.comparing(segment -> segment.getFileName().toString()));
+        return segments;
+    }
+
+    private static long lastModified(Path segment) {
+        try {
+            return Files.getLastModifiedTime(segment).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void append(String unhashed) {
+        byte[] bytes = unhashed.getBytes(StandardCharsets.UTF_8);
+        digest.update(head);
+        digest.update(bytes);
+        head = digest.digest();
+        pending.write(bytes, 0, bytes.length);
+        pending.write('\t');
+        byte[] hash = hex(head).getBytes(StandardCharsets.US_ASCII);
+        pending.write(hash, 0, hash.length);
+        pending.write('\n');
+        sealedBy = null;
+    }
+
+    private void writePending() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        long start = end;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+        end = start + buffer.limit();
+    }
+
+    // Cuts off a line the previous run did not finish and takes the sequence and hash from the last complete one;
+    // an empty file after rolled segments opens with the checkpoint the newest one ends with
+    private void resume() throws IOException {
+        long[] lineEnd = new long[1];
+        String line = lastLine(channel, lineEnd);
+        end = lineEnd[0];
+        if (end < channel.size()) {
+            channel.truncate(end);
+        }
+        if (line == null) {
+            List<Path> rolled = rolledSegments(path);
+            if (rolled.isEmpty()) {
+                return;
+            }
+            Path newest = rolled.get(rolled.size() - 1);
+            try (FileChannel segment = FileChannel.open(newest, StandardOpenOption.READ)) {
+                line = lastLine(segment, lineEnd);
+            }
+            if (line == null || !line.startsWith("C\t")) {
+                throw new IOException(newest + " does not end in an audit chain checkpoint");
+            }
+            adopt(line);
+            openWith(line);
+            return;
+        }
+        adopt(line);
+        segmentStart = firstCheckpointSequence();
+    }
+
+    private void adopt(String line) throws IOException {
+        String[] fields = line.split("\t");
+        try {
+            sequence = Long.parseLong(fields[1]);
+            head = unhex(line.startsWith("C\t") ? fields[3] : fields[fields.length - 1]);
+        } catch (RuntimeException e) {
+            throw new IOException(path + " does not end in an audit chain line: " + line);
+        }
+        sealedBy = line.startsWith("C\t") ? line : null;
+        sinceCheckpoint = sealedBy == null ? 1 : 0;
+    }
+
+    // The sequence of the checkpoint the active file opens with, or 0 when it starts the chain
+    private long firstCheckpointSequence() throws IOException {
+        ByteBuffer start = ByteBuffer.allocate((int) Math.min(256, end));
+        while (start.hasRemaining() && channel.read(start, start.position()) > 0) {
+            // keep reading
+        }
+        String first = new String(start.array(), 0, start.position(), StandardCharsets.UTF_8);
+        if (!first.startsWith("C\t")) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(first.split("\t", 3)[1]);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // The last complete line, with where it ends in lineEnd[0]; null (and 0) when there is none
+    static String lastLine(FileChannel channel, long[] lineEnd) throws IOException {
+        long size = channel.size();
+        int window = 4096;
+        while (size > 0) {
+            long from = Math.max(0, size - window);
+            ByteBuffer tail = ByteBuffer.allocate((int) (size - from));
+            while (tail.hasRemaining() && channel.read(tail, from + tail.position()) > 0) {
+                // keep reading
+            }
+            int lastNewline = lastIndexOf(tail, '\n', tail.position() - 1);
+            int lineStart = lastNewline < 0 ? -1 : lastIndexOf(tail, '\n', lastNewline - 1) + 1;
+            if (lastNewline >= 0 && (lineStart > 0 || from == 0)) {
+                lineEnd[0] = from + lastNewline + 1;
+                return new String(tail.array(), lineStart, lastNewline - lineStart, StandardCharsets.UTF_8);
+            }
+            if (lastNewline < 0 && from == 0) {
+                // Not one complete line yet
+                break;
+            }
+            window *= 2;
+        }
+        lineEnd[0] = 0;
+        return null;
+    }
+
+    private static int lastIndexOf(ByteBuffer buffer, char c, int from) {
+        for (int i = from; i >= 0; i--) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static Mac hmac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 15];
+            chars[i * 2 + 1] = HEX[bytes[i] & 15];
+        }
+        return new String(chars);
+    }
+
+    // A hash written by hex
+    static byte[] unhex(String text) {
+        if (text.length() != HASH_HEX_LENGTH) {
+            throw new IllegalArgumentException("Not a hash: " + text);
+        }
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text, i * 2, i * 2 + 2, 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,433 @@
+package services.audit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.crypto.Mac;
+
+// Checks a hash-chained audit log (see AuditChainLog) end to end:
+//
+//     java services.audit.AuditChainVerifier [log file] [threads] [key file]
+//
+// The file is cut into ranges, several per thread, and each range is checked on its own: it starts from the first
+// checkpoint in it, whose hash stands in for everything before, and runs on past its end up to and including the
+// next checkpoint, which the range after it starts from. Every record's hash and sequence number and every
+// checkpoint's hash and MAC is checked once, and the chunks together cover the whole chain, so the work spreads
+// over all cores and a multi-gigabyte log is read about once. Only the complete lines present when it starts are
+// checked, so it is safe to run while the application is writing; a segment rolled or deleted during the run
+// makes it fail, and it can simply be run again. The rolled segments are checked one after the other, oldest
+// first, and each must open with the checkpoint the one before it ends with; the oldest one left starts from its
+// opening checkpoint. Exits with 1 if the chain is broken.
+public final class AuditChainVerifier {
+    public static final String DEFAULT_FILE = "src/Files/audit-chain.log";
+    private static final int RANGES_PER_THREAD = 4;
+    private static final long MIN_RANGE_BYTES = 1024 * 1024;
+    private static final int READ_BUFFER_BYTES = 1024 * 1024;
+
+    private AuditChainVerifier() { }
+
+    public static final class Result {
+        private long records;
+        private long checkpoints;
+        private long unsealed;
+        private long brokenAtOffset = -1;
+        private long brokenAtSequence;
+        private String problem;
+        private long elapsedMillis;
+        private long bytes;
+        private int files;
+        private Path brokenIn;
+
+        public boolean isIntact() {
+            return problem == null;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getCheckpoints() {
+            return checkpoints;
+        }
+
+        // Records after the last checkpoint: chained, but not yet sealed
+        public long getUnsealed() {
+            return unsealed;
+        }
+
+        public long getBrokenAtOffset() {
+            return brokenAtOffset;
+        }
+
+        // The segment the break is in, or null when the chain is intact
+        public Path getBrokenIn() {
+            return brokenIn;
+        }
+
+        public String getProblem() {
+            return problem;
+        }
+
+        private void fail(long offset, long sequence, String problem) {
+            if (this.problem == null || offset < brokenAtOffset) {
+                this.brokenAtOffset = offset;
+                this.brokenAtSequence = sequence;
+                this.problem = problem;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String counts = records + " records, " + checkpoints + " checkpoints, " + unsealed + " unsealed at the end; "
+                    + String.format("%,d MB in %d files in %,d ms", bytes >> 20, files, elapsedMillis);
+            return isIntact()
+                    ? "Audit chain intact: " + counts
+                    : "Audit chain BROKEN in " + brokenIn.getFileName() + " at byte " + brokenAtOffset
+                    + " (record " + brokenAtSequence + "): " + problem + "; " + counts;
+        }
+    }
+
+    // A null or empty key checks the hashes but not the checkpoints' MACs
+    public static Result verify(Path path, byte[] key, int threads) throws IOException {
+        long startedAt = System.nanoTime();
+        List<Path> files = AuditChainLog.rolledSegments(path);
+        // Missing only between a roll's rename and the new file, when the newest segment is the end of the chain
+        if (files.isEmpty() || Files.exists(path)) {
+            files.add(path);
+        }
+        Result result = new Result();
+        String previousLast = null;
+        for (Path file : files) {
+            String first = null;
+            String last;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long[] lineEnd = new long[1];
+                last = AuditChainLog.lastLine(channel, lineEnd);
+                if (previousLast != null) {
+                    ByteBuffer start = ByteBuffer.allocate((int) Math.min(previousLast.length() * 4L + 1, lineEnd[0]));
+                    while (start.hasRemaining() && channel.read(start, start.position()) > 0) {
+                        // keep reading
+                    }
+                    String head = new String(start.array(), 0, start.position(), StandardCharsets.UTF_8);
+                    first = head.indexOf('\n') < 0 ? head : head.substring(0, head.indexOf('\n'));
+                }
+            }
+            Result segment = previousLast != null && !previousLast.equals(first) ? null : verifyFile(file, key, threads);
+            result.files++;
+            if (segment == null) {
+                result.fail(0, 0, "does not open with the checkpoint the segment before it ends with");
+                result.brokenIn = file;
+                break;
+            }
+            result.records += segment.records;
+            result.checkpoints += segment.checkpoints;
+            result.unsealed = segment.unsealed;
+            result.bytes += segment.bytes;
+            if (!segment.isIntact()) {
+                result.fail(segment.brokenAtOffset, segment.brokenAtSequence, segment.problem);
+                result.brokenIn = file;
+                break;
+            }
+            previousLast = last;
+        }
+        result.elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        return result;
+    }
+
+    private static Result verifyFile(Path path, byte[] key, int threads) throws IOException {
+        Result result = new Result();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int ranges = (int) Math.max(1, Math.min((long) threads * RANGES_PER_THREAD, size / MIN_RANGE_BYTES));
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges)), runnable -> {
+                Thread thread = new Thread(runnable, "audit-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<Result>> chunks = new ArrayList<>();
+                for (int i = 0; i < ranges; i++) {
+                    long start = size * i / ranges;
+                    long end = size * (i + 1) / ranges;
+                    chunks.add(pool.submit(() -> verifyRange(channel, start, end, size, key)));
+                }
+                for (Future<Result> future : chunks) {
+                    Result chunk = future.get();
+                    result.records += chunk.records;
+                    result.checkpoints += chunk.checkpoints;
+                    // Only the range that reaches the end of the file has any
+                    result.unsealed += chunk.unsealed;
+                    if (!chunk.isIntact()) {
+                        result.fail(chunk.brokenAtOffset, chunk.brokenAtSequence, chunk.problem);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Audit chain verification interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Audit chain verification failed: " + e.getCause(), e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            result.bytes = size;
+        }
+        return result;
+    }
+
+    private static Result verifyRange(FileChannel channel, long start, long end, long size, byte[] key) throws IOException {
+        Result chunk = new Result();
+        MessageDigest digest = AuditChainLog.sha256();
+        Mac mac = key == null || key.length == 0 ? null : AuditChainLog.hmac(key);
+        Lines lines = new Lines(channel, start == 0 ? 0 : start - 1, size);
+        byte[] head = AuditChainLog.GENESIS;
+        long sequence = 0;
+        boolean haveLine = false;
+        if (start == 0 && lines.next()) {
+            haveLine = true;
+            // A rolled segment's successor opens with the checkpoint it ended with, and carries on from there
+            if (lines.isCheckpoint()) {
+                String[] checkpoint = lines.checkpoint();
+                String problem = checkpoint == null ? "malformed checkpoint" : checkSeal(checkpoint, mac);
+                if (problem != null) {
+                    chunk.fail(lines.offset, 1, problem);
+                    return chunk;
+                }
+                try {
+                    sequence = Long.parseLong(checkpoint[1]);
+                    head = AuditChainLog.unhex(checkpoint[3]);
+                } catch (IllegalArgumentException e) {
+                    chunk.fail(lines.offset, 1, "unreadable checkpoint");
+                    return chunk;
+                }
+                haveLine = false;
+            }
+        } else if (start > 0) {
+            // Lines belong to the range they start in; the one running into it was the previous range's
+            if (!lines.next()) {
+                return chunk;
+            }
+            String[] checkpoint = null;
+            while (checkpoint == null && lines.next() && lines.offset < end) {
+                checkpoint = lines.isCheckpoint() ? lines.checkpoint() : null;
+            }
+            if (checkpoint == null || lines.offset >= end) {
+                // The previous range runs on to that checkpoint, or to the end of the file
+                return chunk;
+            }
+            try {
+                sequence = Long.parseLong(checkpoint[1]);
+                head = AuditChainLog.unhex(checkpoint[3]);
+            } catch (IllegalArgumentException e) {
+                chunk.fail(lines.offset, sequence + 1, "unreadable checkpoint");
+                return chunk;
+            }
+        }
+
+        byte[] computed = new byte[AuditChainLog.HASH_BYTES];
+        long sinceCheckpoint = 0;
+        while (haveLine || lines.next()) {
+            haveLine = false;
+            byte[] buffer = lines.buffer;
+            int from = lines.start;
+            int length = lines.end - from;
+            if (lines.isRecord()) {
+                int hashAt = lines.end - AuditChainLog.HASH_HEX_LENGTH;
+                if (length < AuditChainLog.HASH_HEX_LENGTH + 4 || buffer[hashAt - 1] != '\t') {
+                    chunk.fail(lines.offset, sequence + 1, "malformed record");
+                    return chunk;
+                }
+                if (lines.sequence() != sequence + 1) {
+                    chunk.fail(lines.offset, sequence + 1, "expected record " + (sequence + 1) + ", found " + lines.sequence());
+                    return chunk;
+                }
+                digest.update(head);
+                digest.update(buffer, from, hashAt - 1 - from);
+                try {
+                    digest.digest(computed, 0, computed.length);
+                } catch (DigestException e) {
+                    throw new IOException(e);
+                }
+                if (!matchesHex(computed, buffer, hashAt)) {
+                    chunk.fail(lines.offset, sequence + 1, "hash does not match the record or the chain before it");
+                    return chunk;
+                }
+                head = computed.clone();
+                sequence++;
+                sinceCheckpoint++;
+                chunk.records++;
+            } else if (lines.isCheckpoint()) {
+                String[] checkpoint = lines.checkpoint();
+                String problem = checkCheckpoint(checkpoint, sequence, head, mac);
+                if (problem != null) {
+                    chunk.fail(lines.offset, sequence + 1, problem);
+                    return chunk;
+                }
+                sinceCheckpoint = 0;
+                chunk.checkpoints++;
+                if (lines.offset >= end) {
+                    return chunk;
+                }
+            } else {
+                chunk.fail(lines.offset, sequence + 1, "not an audit chain line");
+                return chunk;
+            }
+        }
+        chunk.unsealed = sinceCheckpoint;
+        return chunk;
+    }
+
+    private static String checkCheckpoint(String[] fields, long sequence, byte[] head, Mac mac) {
+        if (fields == null) {
+            return "malformed checkpoint";
+        }
+        if (!fields[1].equals(Long.toString(sequence))) {
+            return "checkpoint for record " + fields[1] + " follows record " + sequence;
+        }
+        if (!fields[3].equals(AuditChainLog.hex(head))) {
+            return "checkpoint hash does not match the chain";
+        }
+        return checkSeal(fields, mac);
+    }
+
+    private static String checkSeal(String[] fields, Mac mac) {
+        if (mac != null) {
+            byte[] expected = mac.doFinal((fields[0] + "\t" + fields[1] + "\t" + fields[2] + "\t" + fields[3]).getBytes(StandardCharsets.UTF_8));
+            if (!AuditChainLog.hex(expected).equals(fields[4])) {
+                return AuditChainLog.NO_MAC.equals(fields[4]) ? "checkpoint is not signed" : "checkpoint signature does not match the key";
+            }
+        }
+        return null;
+    }
+
+    private static boolean matchesHex(byte[] hash, byte[] buffer, int at) {
+        for (int i = 0; i < hash.length; i++) {
+            if (buffer[at + i * 2] != hexDigit((hash[i] >> 4) & 15) || buffer[at + i * 2 + 1] != hexDigit(hash[i] & 15)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte hexDigit(int value) {
+        return (byte) (value < 10 ? '0' + value : 'a' + value - 10);
+    }
+
+    // The complete lines from a position to a limit, read a buffer at a time; a line is buffer[start, end) and
+    // begins at offset in the file
+    private static final class Lines {
+        private final FileChannel channel;
+        private final long limit;
+        private byte[] buffer = new byte[READ_BUFFER_BYTES];
+        private int filled;
+        private int next;
+        private long bufferOffset;
+        private int start;
+        private int end;
+        private long offset;
+
+        private Lines(FileChannel channel, long from, long limit) {
+            this.channel = channel;
+            this.limit = limit;
+            this.bufferOffset = from;
+        }
+
+        private boolean next() throws IOException {
+            while (true) {
+                for (int i = next; i < filled; i++) {
+                    if (buffer[i] == '\n') {
+                        start = next;
+                        end = i;
+                        offset = bufferOffset + start;
+                        next = i + 1;
+                        return true;
+                    }
+                }
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        // Moves the unfinished line to the front and reads more after it; grows for a line longer than the buffer
+        private boolean fill() throws IOException {
+            long position = bufferOffset + filled;
+            if (position >= limit) {
+                return false;
+            }
+            int kept = filled - next;
+            if (next == 0 && filled == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else {
+                System.arraycopy(buffer, next, buffer, 0, kept);
+                bufferOffset += next;
+                next = 0;
+                filled = kept;
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer, filled, (int) Math.min(buffer.length - filled, limit - position));
+            int read = channel.read(target, position);
+            if (read <= 0) {
+                return false;
+            }
+            filled += read;
+            return true;
+        }
+
+        private boolean isRecord() {
+            return end - start > 2 && buffer[start] == 'R' && buffer[start + 1] == '\t';
+        }
+
+        private boolean isCheckpoint() {
+            return end - start > 2 && buffer[start] == 'C' && buffer[start + 1] == '\t';
+        }
+
+        // -1 when it is not a number
+        private long sequence() {
+            long value = 0;
+            int i = start + 2;
+            for (; i < end && buffer[i] != '\t'; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9 || i - start > 20) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return i == start + 2 ? -1 : value;
+        }
+
+        // C, sequence, timestamp, hash, mac; null if it does not have those
+        private String[] checkpoint() {
+            String[] fields = new String(buffer, start, end - start, StandardCharsets.UTF_8).split("\t");
+            return fields.length == 5 && fields[3].length() == AuditChainLog.HASH_HEX_LENGTH ? fields : null;
+        }
+    }
+
+    public static void main(String[] args) {
+        Path path = Paths.get(args.length > 0 ? args[0] : DEFAULT_FILE);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        try {
+            byte[] key = args.length > 2 ? Files.readAllBytes(Paths.get(args[2])) : null;
+            Result result = verify(path, key, threads);
+            System.out.println(result + (key == null ? " (no key given: checkpoint signatures not checked)" : ""));
+            if (!result.isIntact()) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+            System.exit(1);
+        }
+    }
+}
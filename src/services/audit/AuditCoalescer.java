@@ -0,0 +1,116 @@
+package services.audit;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Folds runs of the same kind of event (see AuditEvent.sameKindAs) logged by the same thread into one event carrying the count and the time the
+// run took, so a loop that audits every row it reads produces two records instead of one per row: the first
+// event, which goes to the pipeline at once like any other, and one event for the repeats that followed it. A run
+// of repeats ends when its thread logs something else, or once it is windowMillis old; a sweeper hands over the
+// runs of threads that went quiet. Only repeats therefore wait, at most a window and a half; a lone event never
+// does. Each thread's events go to the pipeline under its own slot's lock, whether the thread or the sweeper
+// publishes them, so they reach it in the order the thread logged them.
+public class AuditCoalescer {
+    private final long windowMillis;
+    private final AuditPipeline pipeline;
+    private final ThreadLocal<Slot> slots = ThreadLocal.withInitial(Slot::new);
+    // The slots holding a run, for the sweeper
+    private final Set<Slot> open = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService sweeper;
+    private final LongAdder folded = new LongAdder();
+
+    public AuditCoalescer(long windowMillis, AuditPipeline pipeline) {
+        this.windowMillis = windowMillis;
+        this.pipeline = pipeline;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "audit-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, windowMillis / 2);
+        sweeper.scheduleWithFixedDelay(() -> sweep(false), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void log(AuditEvent event) {
+        long now = event.getTimestampMillis();
+        Slot slot = slots.get();
+        synchronized (slot) {
+            Run run = slot.run;
+            if (run != null) {
+                if (run.first.sameKindAs(event) && now - run.startedAt < windowMillis) {
+                    run.count++;
+                    run.lastAt = now;
+                    run.maxLatencyMillis = Math.max(run.maxLatencyMillis, event.getLatencyMillis());
+                    folded.increment();
+                    return;
+                }
+                slot.run = null;
+                pipeline.publish(run.toEvent());
+            }
+            AuditEvent previous = slot.previous;
+            if (previous != null && previous.sameKindAs(event) && now - previous.getTimestampMillis() < windowMillis) {
+                slot.run = new Run(event);
+                open.add(slot);
+                return;
+            }
+            slot.previous = event;
+            pipeline.publish(event);
+        }
+    }
+
+    // Hands every open run to the pipeline and stops the sweeper
+    public void close() {
+        sweeper.shutdown();
+        sweep(true);
+    }
+
+    public long getFoldedCount() {
+        return folded.sum();
+    }
+
+    private void sweep(boolean all) {
+        long now = System.currentTimeMillis();
+        for (Slot slot : open) {
+            synchronized (slot) {
+                Run run = slot.run;
+                if (run != null && (all || now - run.startedAt >= windowMillis)) {
+                    slot.run = null;
+                    pipeline.publish(run.toEvent());
+                }
+                if (slot.run == null) {
+                    open.remove(slot);
+                }
+            }
+        }
+    }
+
+    // One thread's state: the last event it published on its own, and the run of repeats that followed it
+    private static final class Slot {
+        private AuditEvent previous;
+        private Run run;
+    }
+
+    private static final class Run {
+        private final AuditEvent first;
+        private final long startedAt;
+        private long lastAt;
+        private long maxLatencyMillis;
+        private int count = 1;
+        private boolean ended;
+
+        private Run(AuditEvent first) {
+            this.first = first;
+            this.startedAt = first.getTimestampMillis();
+            this.lastAt = startedAt;
+            this.maxLatencyMillis = first.getLatencyMillis();
+        }
+
+        private AuditEvent toEvent() {
+            return count == 1 ? first : first.coalesced(count, lastAt - startedAt, maxLatencyMillis);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package services.audit;
+
+import java.util.Objects;
+
+// One audited action, stamped when the caller logged it rather than when the writer got to it. Besides the
+// free-form action text it says which entity it touched (entityType and entityId, null and -1 when it touched none
+// in particular), which repository operation did it, how that ended and how long the operation had taken by then.
+// A coalesced event stands for count identical actions logged over durationMillis starting at its timestamp, and
+// carries the longest latency among them.
+public final class AuditEvent {
+    public static final long NO_ENTITY_ID = -1;
+
+    private final String action;
+    private final long timestampMillis;
+    private final String entityType;
+    private final long entityId;
+    private final String operation;
+    private final AuditOutcome outcome;
+    private final long latencyMillis;
+    private final int count;
+    private final long durationMillis;
+
+    public AuditEvent(String action, long timestampMillis) {
+        this(action, timestampMillis, null, NO_ENTITY_ID, null, AuditOutcome.SUCCESS, 0, 1, 0);
+    }
+
+    public AuditEvent(String action, long timestampMillis, String entityType, long entityId,
+                      String operation, AuditOutcome outcome, long latencyMillis) {
+        this(action, timestampMillis, entityType, entityId, operation, outcome, latencyMillis, 1, 0);
+    }
+
+    public AuditEvent(String action, long timestampMillis, String entityType, long entityId, String operation,
+                      AuditOutcome outcome, long latencyMillis, int count, long durationMillis) {
+        this.action = action;
+        this.timestampMillis = timestampMillis;
+        this.entityType = entityType;
+        this.entityId = entityId;
+        this.operation = operation;
+        this.outcome = outcome;
+        this.latencyMillis = latencyMillis;
+        this.count = count;
+        this.durationMillis = durationMillis;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public long getEntityId() {
+        return entityId;
+    }
+
+    public boolean hasEntity() {
+        return entityType != null && entityId != NO_ENTITY_ID;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public AuditOutcome getOutcome() {
+        return outcome;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    // Repeats of the same kind of event are what the coalescer folds together
+    public boolean sameKindAs(AuditEvent other) {
+        return action.equals(other.action)
+                && entityId == other.entityId
+                && outcome == other.outcome
+                && Objects.equals(entityType, other.entityType)
+                && Objects.equals(operation, other.operation);
+    }
+
+    public AuditEvent coalesced(int count, long durationMillis, long latencyMillis) {
+        return new AuditEvent(action, timestampMillis, entityType, entityId, operation, outcome, latencyMillis,
+                count, durationMillis);
+    }
+
+    // The text of the Log column
+    public String describe() {
+        return count == 1 ? action : action + " [x" + count + " over " + durationMillis + " ms]";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder().append(outcome);
+        if (entityType != null) {
+            text.append(' ').append(entityType);
+            if (entityId != NO_ENTITY_ID) {
+                text.append('#').append(entityId);
+            }
+        }
+        if (operation != null) {
+            text.append(' ').append(operation).append(" (").append(latencyMillis).append(" ms)");
+        }
+        return text.append(": ").append(describe()).append(" @").append(timestampMillis).toString();
+    }
+}
@@ -0,0 +1,101 @@
+package services.audit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+// Regenerates the "Log,Date-time" CSV view from the binary audit segments (see AuditBinaryLog), one mapped
+// segment at a time, so a log of any size is exported in constant memory:
+//
+//     java services.audit.AuditExporter [segment directory] [output file]
+//
+// Without an output file the CSV goes to standard output. Only records a segment's header counts are exported,
+// so it is safe to run while the application is still writing.
+public final class AuditExporter {
+    public static final String DEFAULT_DIRECTORY = "src/Files/audit-bin";
+    private static final String HEADER = "Log,Date-time";
+
+    private AuditExporter() { }
+
+    // Returns the number of records exported
+    public static long exportCsv(Path directory, Writer out) throws IOException {
+        List<String> strings = new ArrayList<>();
+        try (FileChannel dictionary = FileChannel.open(directory.resolve(AuditBinaryLog.DICTIONARY_FILE), StandardOpenOption.READ)) {
+            AuditBinaryLog.readDictionary(dictionary, strings);
+        }
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        ZoneId zone = ZoneId.systemDefault();
+        StringBuilder line = new StringBuilder(128);
+        // The date-time column only changes once a second
+        long cachedSecond = Long.MIN_VALUE;
+        String cachedTime = null;
+        long exported = 0;
+
+        out.write(HEADER + "\n");
+        for (Path segmentPath : AuditBinaryLog.segments(directory)) {
+            try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+                if (channel.size() < AuditBinaryLog.HEADER_BYTES) {
+                    continue;
+                }
+                ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+                if (segment.getInt(0) != AuditBinaryLog.MAGIC) {
+                    throw new IOException(segmentPath + " is not an audit segment");
+                }
+                int recordBytes = segment.getInt(8);
+                long count = Math.min(segment.getLong(AuditBinaryLog.COUNT_OFFSET),
+                        (segment.capacity() - AuditBinaryLog.HEADER_BYTES) / recordBytes);
+                for (int i = 0; i < count; i++) {
+                    int position = AuditBinaryLog.HEADER_BYTES + i * recordBytes;
+                    long timestamp = segment.getLong(position);
+                    int action = segment.getInt(position + 8);
+                    int repeats = segment.getInt(position + 32);
+
+                    long second = Math.floorDiv(timestamp, 1000);
+                    if (second != cachedSecond) {
+                        cachedSecond = second;
+                        cachedTime = formatter.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone));
+                    }
+                    line.setLength(0);
+                    line.append(action >= 0 && action < strings.size() ? strings.get(action) : "?");
+                    if (repeats != 1) {
+                        line.append(" [x").append(repeats).append(" over ").append(segment.getInt(position + 36)).append(" ms]");
+                    }
+                    line.append(',').append(cachedTime).append('\n');
+                    out.append(line);
+                    exported++;
+                }
+            }
+        }
+        out.flush();
+        return exported;
+    }
+
+    public static void main(String[] args) {
+        Path directory = Paths.get(args.length > 0 ? args[0] : DEFAULT_DIRECTORY);
+        try (Writer out = args.length > 1
+                ? Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            long exported = exportCsv(directory, out);
+            if (args.length > 1) {
+                System.out.println("Exported " + exported + " audit records to " + args[1]);
+            }
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+            System.exit(1);
+        }
+    }
+}
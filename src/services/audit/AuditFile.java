@@ -0,0 +1,275 @@
+package services.audit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// The "Log,Date-time" CSV audit log, kept as a series of segments. The active segment (audit.csv) is appended to
+// across restarts and rolled over once it reaches maxSegmentBytes or its time period ends: it is renamed to
+// audit-<yyyyMMdd-HHmmss>.csv after the time of its first record, a new audit.csv starts with its own header line,
+// and a background thread gzips the rolled segment and deletes the segments that fall out of retention.
+// Time periods are aligned to local midnight, so a 1440-minute period gives one segment per day; a period only
+// ends when the next record arrives. Only the audit writer thread writes to it.
+public class AuditFile implements AuditSink {
+    private static final String HEADER = "Log,Date-time";
+    private static final DateTimeFormatter SEGMENT_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Path path;
+    private final String baseName;
+    private final String extension;
+    private final long maxSegmentBytes;
+    private final long segmentMillis;
+    private final boolean compress;
+    private final long retentionMillis;
+    private final int maxSegments;
+    private final ExecutorService housekeeper;
+
+    private FileChannel channel;
+    private BufferedWriter writer;
+    private long segmentBytes;
+    private long segmentStartedAt;
+    private long segmentEndsAt;
+
+    // segmentMinutes of 0 never rolls by time; retentionDays and maxSegments of 0 keep rolled segments forever
+    public AuditFile(Path path, long maxSegmentBytes, long segmentMinutes, boolean compress,
+                     int retentionDays, int maxSegments) throws IOException {
+        if (segmentMinutes < 0) {
+            throw new IllegalArgumentException("Audit segment minutes must not be negative: " + segmentMinutes);
+        }
+        this.path = path.toAbsolutePath();
+        String fileName = this.path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        this.baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        this.extension = dot > 0 ? fileName.substring(dot) : "";
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.segmentMillis = TimeUnit.MINUTES.toMillis(segmentMinutes);
+        this.compress = compress;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        this.maxSegments = maxSegments;
+        this.housekeeper = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "audit-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(this.path.getParent());
+        open(System.currentTimeMillis());
+        // Picks up segments a previous run rolled but did not get to compress
+        housekeeper.execute(this::tidyRolledSegments);
+    }
+
+    @Override
+    public void write(List<AuditEvent> batch) throws IOException {
+        for (AuditEvent event : batch) {
+            String line = event.describe() + ","
+                    + formatter.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(event.getTimestampMillis()), zone)) + "\n";
+            if (event.getTimestampMillis() >= segmentEndsAt
+                    || (segmentBytes + line.length() > maxSegmentBytes && segmentBytes > HEADER.length() + 1)) {
+                roll(event.getTimestampMillis());
+            }
+            writer.write(line);
+            // Character count; the same as the byte count for the ASCII the repositories log
+            segmentBytes += line.length();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        writer.flush();
+        channel.force(false);
+    }
+
+    // Waits for a compression that is under way, so no half-written .gz is left behind
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        housekeeper.shutdown();
+        try {
+            housekeeper.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void open(long now) throws IOException {
+        if (Files.exists(path) && Files.size(path) > 0) {
+            long startedAt = firstRecordTime();
+            if (periodEnd(startedAt) <= now || Files.size(path) >= maxSegmentBytes) {
+                Path rolled = moveAside(startedAt);
+                housekeeper.execute(() -> housekeep(rolled));
+            }
+        }
+        boolean fresh = !Files.exists(path) || Files.size(path) == 0;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+        if (fresh) {
+            writer.write(HEADER + "\n");
+            writer.flush();
+            segmentBytes = HEADER.length() + 1;
+            segmentStartedAt = now;
+        } else {
+            segmentBytes = Files.size(path);
+            segmentStartedAt = firstRecordTime();
+        }
+        segmentEndsAt = periodEnd(segmentStartedAt);
+    }
+
+    private void roll(long now) throws IOException {
+        // A rolled segment is complete on disk before it is renamed and handed to the housekeeper
+        sync();
+        writer.close();
+        Path rolled = moveAside(segmentStartedAt);
+        housekeeper.execute(() -> housekeep(rolled));
+        open(now);
+    }
+
+    private Path moveAside(long startedAt) throws IOException {
+        String stamp = SEGMENT_NAME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(startedAt), zone));
+        Path rolled = path.resolveSibling(baseName + "-" + stamp + extension);
+        for (int i = 1; Files.exists(rolled) || Files.exists(gzipped(rolled)); i++) {
+            rolled = path.resolveSibling(baseName + "-" + stamp + "-" + i + extension);
+        }
+        return Files.move(path, rolled);
+    }
+
+    // The segment's first record tells when it was started; the header line carries no time of its own
+    private long firstRecordTime() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line != null && line.equals(HEADER)) {
+                line = reader.readLine();
+            }
+            if (line != null && line.lastIndexOf(',') >= 0) {
+                try {
+                    return LocalDateTime.parse(line.substring(line.lastIndexOf(',') + 1), formatter)
+                            .atZone(zone).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    // Not one of ours; fall back to the file's own time
+                }
+            }
+        }
+        return Files.getLastModifiedTime(path).toMillis();
+    }
+
+    private long periodEnd(long time) {
+        return periodEnd(time, segmentMillis, zone);
+    }
+
+    // Also where an AuditStore segment's period ends; never when segmentMillis is 0
+    static long periodEnd(long time, long segmentMillis, ZoneId zone) {
+        if (segmentMillis <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long offset = zone.getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds() * 1000L;
+        return (Math.floorDiv(time + offset, segmentMillis) + 1) * segmentMillis - offset;
+    }
+
+    private void housekeep(Path rolled) {
+        if (compress) {
+            compress(rolled);
+        }
+        applyRetention();
+    }
+
+    private void tidyRolledSegments() {
+        if (compress) {
+            for (Path segment : rolledSegments()) {
+                if (!segment.getFileName().toString().endsWith(".gz")) {
+                    compress(segment);
+                }
+            }
+        }
+        applyRetention();
+    }
+
+    private void compress(Path segment) {
+        Path target = gzipped(segment);
+        Path partial = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (InputStream in = Files.newInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial))) {
+                in.transferTo(out);
+            }
+            // Retention and ordering go by the time the segment was last written, not when it was compressed
+            Files.setLastModifiedTime(partial, Files.getLastModifiedTime(segment));
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(segment);
+        } catch (IOException e) {
+            System.out.println("Error with audit: could not compress " + segment + ": " + e);
+        }
+    }
+
+    private void applyRetention() {
+        List<Path> segments = rolledSegments();
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            try {
+                boolean tooMany = maxSegments > 0 && segments.size() - i > maxSegments;
+                boolean tooOld = retentionMillis > 0 && Files.getLastModifiedTime(segment).toMillis() < cutoff;
+                if (tooMany || tooOld) {
+                    Files.deleteIfExists(segment);
+                }
+            } catch (IOException e) {
+                System.out.println("Error with audit: could not delete " + segment + ": " + e);
+            }
+        }
+    }
+
+    // Oldest first
+    private List<Path> rolledSegments() {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(path.getParent(), baseName + "-*")) {
+            for (Path segment : directory) {
+                String name = segment.getFileName().toString();
+                if (name.endsWith(extension) || name.endsWith(extension + ".gz")) {
+                    segments.add(segment);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+        }
+        segments.sort(Comparator.comparingLong(AuditFile::lastModified).thenComparing(Comparator.naturalOrder()));
+        return segments;
+    }
+
+    private static long lastModified(Path segment) {
+        try {
+            return Files.getLastModifiedTime(segment).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static Path gzipped(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + ".gz");
+    }
+}
@@ -0,0 +1,9 @@
+package services.audit;
+
+// How the audited operation ended
+public enum AuditOutcome {
+    SUCCESS,
+    // The entity the operation was asked for does not exist
+    NOT_FOUND,
+    FAILURE
+}
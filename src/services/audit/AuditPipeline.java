@@ -0,0 +1,253 @@
+package services.audit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Moves audit events off the callers' threads. publish() only puts the event into the ring buffer; one writer
+// thread takes them out in batches and hands them to the sink, so a burst of actions costs one write call instead
+// of one per action. How often the sink is flushed depends on the durability mode: never before shutdown (none),
+// at most once per flush interval (flush), or forced to disk as soon as the buffer runs dry, with publish()
+// waiting for the force that covers its event (fsync). Every caller that publishes while a force is under way
+// is covered by the next one, so under load one force serves a whole group of callers. When the buffer is full
+// the backpressure policy decides whether the caller waits or the event is dropped. Subscribers are handed a batch
+// only once the sink has taken it, so they never hear of an event the sink lost.
+public class AuditPipeline {
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Under fsync, a force is not put off for more than this many batches even while events keep coming
+    private static final int MAX_BATCHES_PER_SYNC = 8;
+
+    private final AuditRingBuffer buffer;
+    private final AuditSink sink;
+    private final AuditSubscriptions subscriptions;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final DurabilityMode durability;
+    private final BackpressurePolicy policy;
+    private final int sampleRate;
+    private final Thread writer;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final AtomicLong rejected = new AtomicLong();
+    // Fsync waiters: every position below syncedThrough has been through a force, successful or not
+    private final Object syncMonitor = new Object();
+    private volatile long syncedThrough;
+    private volatile long syncFailures;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    public AuditPipeline(AuditSink sink, int capacity, int batchSize, long flushIntervalMillis,
+                         DurabilityMode durability, BackpressurePolicy policy, int sampleRate) {
+        this(sink, null, capacity, batchSize, flushIntervalMillis, durability, policy, sampleRate);
+    }
+
+    // subscriptions may be null when nothing listens in
+    public AuditPipeline(AuditSink sink, AuditSubscriptions subscriptions, int capacity, int batchSize,
+                         long flushIntervalMillis, DurabilityMode durability, BackpressurePolicy policy, int sampleRate) {
+        this.buffer = new AuditRingBuffer(capacity);
+        this.sink = sink;
+        this.subscriptions = subscriptions;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.durability = durability;
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.writer = new Thread(this::writeEvents, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // false when the event was dropped, or under fsync when it could not be forced to disk
+    public boolean publish(AuditEvent event) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+        long position = buffer.offer(event);
+        if (position < 0) {
+            if (policy == BackpressurePolicy.DROP
+                    || (policy == BackpressurePolicy.SAMPLE && rejected.incrementAndGet() % sampleRate != 0)) {
+                dropped.increment();
+                return false;
+            }
+            blocked.increment();
+            do {
+                if (closed) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                position = buffer.offer(event);
+            } while (position < 0);
+        }
+        published.increment();
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return durability != DurabilityMode.FSYNC || awaitSync(position);
+    }
+
+    public DurabilityMode getDurability() {
+        return durability;
+    }
+
+    // A failed force while we wait counts against us even if it was for other events: better a false alarm
+    // than telling a caller an event is on disk when it may not be
+    private boolean awaitSync(long position) {
+        long failuresBefore = syncFailures;
+        boolean interrupted = false;
+        synchronized (syncMonitor) {
+            while (syncedThrough <= position && writer.isAlive()) {
+                try {
+                    syncMonitor.wait(100);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return syncedThrough > position && syncFailures == failuresBefore;
+    }
+
+    // Writes out whatever is still buffered and stops the writer
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String summary() {
+        return "Audit pipeline (" + durability.name().toLowerCase() + ", " + policy.name().toLowerCase()
+                + " when full): published=" + published.sum()
+                + ", written=" + written.sum() + ", dropped=" + dropped.sum() + ", callers blocked=" + blocked.sum()
+                + ", buffered=" + buffer.size() + "/" + buffer.capacity()
+                + ", batches=" + batches.sum() + ", flushes=" + flushes.sum() + ", write errors=" + writeErrors.sum() + "\n"
+                + sink.summary() + (subscriptions == null ? "" : subscriptions.summary());
+    }
+
+    private void writeEvents() {
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        long lastFlush = System.nanoTime();
+        boolean unflushed = false;
+        boolean writeFailed = false;
+        int batchesSinceFlush = 0;
+        while (true) {
+            batch.clear();
+            int drained = buffer.drainTo(batch, batchSize);
+            if (drained > 0) {
+                try {
+                    sink.write(batch);
+                    written.add(drained);
+                    if (subscriptions != null) {
+                        subscriptions.deliver(batch);
+                    }
+                } catch (IOException e) {
+                    writeErrors.increment();
+                    dropped.add(drained);
+                    writeFailed = true;
+                    System.out.println("Error with audit: " + e);
+                }
+                unflushed = true;
+                batchesSinceFlush++;
+                batches.increment();
+            }
+
+            long now = System.nanoTime();
+            boolean stopping = closed && drained == 0 && buffer.size() == 0;
+            boolean due;
+            switch (durability) {
+                case FSYNC:
+                    // A short batch means the buffer has run dry, so nobody is left to join this group
+                    due = drained < batchSize || batchesSinceFlush >= MAX_BATCHES_PER_SYNC;
+                    break;
+                case FLUSH:
+                    due = now - lastFlush >= flushIntervalNanos;
+                    break;
+                default:
+                    due = false;
+                    break;
+            }
+            if (unflushed && (stopping || due)) {
+                // Everything taken from the buffer so far has been written; the head is read before the flush
+                // so that the positions it reports are ones the flush covers
+                long through = buffer.head();
+                boolean flushed = flush() && !writeFailed;
+                if (durability == DurabilityMode.FSYNC) {
+                    releaseWaiters(through, flushed);
+                }
+                unflushed = false;
+                writeFailed = false;
+                batchesSinceFlush = 0;
+                lastFlush = now;
+            }
+            if (stopping) {
+                closeSink();
+                return;
+            }
+            if (drained == 0) {
+                writerParked = true;
+                // Checked again after raising the flag, so an event published in between is not left waiting
+                if (buffer.size() == 0 && !closed) {
+                    LockSupport.parkNanos(unflushed && durability == DurabilityMode.FLUSH
+                            ? flushIntervalNanos - (now - lastFlush) : IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    private boolean flush() {
+        try {
+            if (durability == DurabilityMode.FSYNC) {
+                sink.sync();
+            } else {
+                sink.flush();
+            }
+            flushes.increment();
+            return true;
+        } catch (IOException e) {
+            writeErrors.increment();
+            System.out.println("Error with audit: " + e);
+            return false;
+        }
+    }
+
+    private void releaseWaiters(long through, boolean durable) {
+        synchronized (syncMonitor) {
+            if (!durable) {
+                syncFailures++;
+            }
+            syncedThrough = through;
+            syncMonitor.notifyAll();
+        }
+    }
+
+    private void closeSink() {
+        if (subscriptions != null) {
+            subscriptions.close();
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            System.out.println("Error with audit: " + e);
+        }
+    }
+}
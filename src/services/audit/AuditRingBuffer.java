@@ -0,0 +1,83 @@
+package services.audit;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer, single-consumer ring. Every slot carries a sequence number telling whose turn it is:
+// equal to the claim position when it is free for that producer, one past it once the event is published, and
+// a lap further once the consumer has taken the event out. Producers claim positions with a CAS on the tail and
+// never lock; the consumer owns the head.
+final class AuditRingBuffer {
+    private final AuditEvent[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    AuditRingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Audit buffer capacity must be a power of two, got " + capacity);
+        }
+        this.events = new AuditEvent[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // The position the event was given, or -1 when the buffer is full
+    long offer(AuditEvent event) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events[index] = event;
+                    // The volatile write publishes the event to the consumer
+                    sequences.set(index, position + 1);
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Consumer thread only
+    int drainTo(List<AuditEvent> batch, int maxEvents) {
+        int drained = 0;
+        long position = head;
+        while (drained < maxEvents) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            batch.add(events[index]);
+            events[index] = null;
+            sequences.set(index, position + events.length);
+            position++;
+            drained++;
+        }
+        head = position;
+        return drained;
+    }
+
+    // Every event at a position below this one has been taken out by the consumer
+    long head() {
+        return head;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    int capacity() {
+        return events.length;
+    }
+}
@@ -0,0 +1,28 @@
+package services.audit;
+
+import java.io.IOException;
+import java.util.List;
+
+// Where the audit writer thread puts the events it takes from the buffer: the "Log,Date-time" CSV (AuditFile)
+// or the binary segments (AuditBinaryLog), the indexed event store (AuditStore) and the AUDIT table
+// (DatabaseAuditSink), usually several at once through a FanOutAuditSink. Only the writer thread calls write,
+// flush and close, so a sink needs no locking of its own for them; batches arrive in the order events were taken
+// from the buffer, and flush is called at most once per flush interval.
+public interface AuditSink {
+    void write(List<AuditEvent> batch) throws IOException;
+
+    // Hands what has been written so far on to the file or database behind the sink
+    void flush() throws IOException;
+
+    // Like flush, and returns only once what has been written so far would survive a power cut
+    default void sync() throws IOException {
+        flush();
+    }
+
+    void close() throws IOException;
+
+    // One or more lines for the diagnostics screen; may be called from any thread
+    default String summary() {
+        return "";
+    }
+}
@@ -0,0 +1,766 @@
+package services.audit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+// The structured audit history, kept next to the CSV log so it can be queried without reading all of it.
+// Every event is one tab separated line of an append-only data file (audit-events.tsv):
+//
+//     timestamp  entityType  entityId  operation  outcome  latencyMillis  count  durationMillis  action
+//
+// with two index files beside it:
+//
+//     audit-events.tidx   one line per block of BLOCK_SIZE records: minTimestamp maxTimestamp startOffset endOffset
+//     audit-events.eidx   one line per record that names an entity: entityType entityId offset
+//
+// Both indexes are also held in memory. A time range query reads only the blocks whose timestamps overlap the
+// range (events arrive roughly in time order, coalesced ones up to a window late, hence a min and max per block)
+// and an entity query reads only that entity's own records. The index files trail the data file: on startup
+// whatever they miss is indexed again from the data file, and a torn last record is cut off. Only the audit writer
+// thread writes; queries may come from any thread and see every batch written so far.
+//
+// Like the CSV log the data file is rolled, between batches, once it reaches maxSegmentBytes or its time period
+// ends: it is renamed to audit-events-<offset>.tsv, after the offset of its first record in the whole history,
+// so the offsets in the indexes stay valid. Rolled segments are not compressed, queries read them in place. The
+// oldest ones are deleted under the same retention settings as the CSV log, and then the blocks and entity
+// offsets they held are dropped from memory and the index files are written out again without them. A query that
+// races a roll or a deletion may fail with an IOException.
+public class AuditStore implements AuditSink {
+    static final int BLOCK_SIZE = 256;
+    private static final int SCAN_CHUNK_BYTES = 64 * 1024;
+    private static final String NONE = "-";
+    private static final int OFFSET_DIGITS = 20;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Path dataPath;
+    private final String baseName;
+    private final String extension;
+    private final Path timeIndexPath;
+    private final Path entityIndexPath;
+    private final long maxSegmentBytes;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final int maxSegments;
+    private FileChannel data;
+    private BufferedWriter timeIndex;
+    private BufferedWriter entityIndex;
+    private long segmentEndsAt;
+
+    // Guarded by this; the writer updates them once a batch is in the data file
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<String, Offsets> entities = new HashMap<>();
+    private Block openBlock;
+    private long dataEnd;
+    private long records;
+
+    // segmentMinutes, retentionDays and maxSegments of 0 never roll by time and keep rolled segments forever
+    public AuditStore(Path dataPath, long maxSegmentBytes, long segmentMinutes, int retentionDays, int maxSegments)
+            throws IOException {
+        if (segmentMinutes < 0) {
+            throw new IllegalArgumentException("Audit segment minutes must not be negative: " + segmentMinutes);
+        }
+        this.dataPath = dataPath.toAbsolutePath();
+        String fileName = this.dataPath.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        this.baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        this.extension = dot > 0 ? fileName.substring(dot) : "";
+        this.timeIndexPath = this.dataPath.resolveSibling(baseName + ".tidx");
+        this.entityIndexPath = this.dataPath.resolveSibling(baseName + ".eidx");
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.segmentMillis = TimeUnit.MINUTES.toMillis(segmentMinutes);
+        this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        this.maxSegments = maxSegments;
+        Files.createDirectories(this.dataPath.getParent());
+
+        long activeBase = loadRolledSegments();
+        this.data = FileChannel.open(this.dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        dataEnd = activeBase + cutTornRecord();
+        segments.add(new Segment(activeBase, this.dataPath, data));
+        deleteExpiredSegments();
+        long firstOffset = segments.get(0).base;
+        long indexedEnd = loadTimeIndex(firstOffset);
+        long entitiesIndexedTo = loadEntityIndex(firstOffset);
+        openBlock = new Block(indexedEnd);
+        this.entityIndex = openForAppend(entityIndexPath);
+
+        // Records the indexes do not cover yet; usually the last, unfinished block
+        scan(indexedEnd, dataEnd, (line, offset) -> {
+            AuditEvent event = parse(line);
+            if (event == null) {
+                return;
+            }
+            records++;
+            addToBlock(event.getTimestampMillis(), offset, offset + utf8Length(line) + 1);
+            if (event.hasEntity() && offset > entitiesIndexedTo) {
+                addToEntities(event, offset);
+                try {
+                    appendEntityIndex(event, offset);
+                } catch (IOException e) {
+                    System.out.println("Error with audit: " + e);
+                }
+            }
+        });
+        entityIndex.flush();
+        // The time index is small, so it is written out whole rather than patched
+        writeTimeIndex();
+        this.timeIndex = openForAppend(timeIndexPath);
+        segmentEndsAt = periodEnd(dataEnd > activeBase ? firstRecordTime(activeBase) : System.currentTimeMillis());
+    }
+
+    @Override
+    public void write(List<AuditEvent> batch) throws IOException {
+        long activeBase = segments.get(segments.size() - 1).base;
+        if (!batch.isEmpty() && dataEnd > activeBase
+                && (dataEnd - activeBase >= maxSegmentBytes || batch.get(0).getTimestampMillis() >= segmentEndsAt)) {
+            roll(batch.get(0).getTimestampMillis());
+            activeBase = dataEnd;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 128);
+        long[] ends = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] line = format(batch.get(i)).getBytes(StandardCharsets.UTF_8);
+            bytes.write(line, 0, line.length);
+            ends[i] = bytes.size();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        long start = dataEnd;
+        while (buffer.hasRemaining()) {
+            data.write(buffer, start - activeBase + buffer.position());
+        }
+
+        synchronized (this) {
+            long offset = start;
+            for (int i = 0; i < batch.size(); i++) {
+                AuditEvent event = batch.get(i);
+                long end = start + ends[i];
+                if (addToBlock(event.getTimestampMillis(), offset, end)) {
+                    Block block = blocks.get(blocks.size() - 1);
+                    timeIndex.write(block.minTimestamp + "\t" + block.maxTimestamp + "\t" + block.start + "\t" + block.end + "\n");
+                }
+                if (event.hasEntity()) {
+                    addToEntities(event, offset);
+                    appendEntityIndex(event, offset);
+                }
+                offset = end;
+            }
+            dataEnd = offset;
+            records += batch.size();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        timeIndex.flush();
+        entityIndex.flush();
+    }
+
+    // Only the data is forced; the indexes are rebuilt from it when they fall behind
+    @Override
+    public void sync() throws IOException {
+        flush();
+        data.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            timeIndex.close();
+            entityIndex.close();
+        } finally {
+            synchronized (this) {
+                for (Segment segment : segments) {
+                    segment.channel.close();
+                }
+            }
+        }
+    }
+
+    // Events stamped fromMillis to toMillis inclusive, oldest first
+    public List<AuditEvent> findBetween(long fromMillis, long toMillis) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        synchronized (this) {
+            for (Block block : blocks) {
+                addRange(ranges, block, fromMillis, toMillis);
+            }
+            addRange(ranges, openBlock, fromMillis, toMillis);
+        }
+        List<AuditEvent> events = new ArrayList<>();
+        for (long[] range : ranges) {
+            scan(range[0], range[1], (line, offset) -> {
+                AuditEvent event = parse(line);
+                if (event != null && event.getTimestampMillis() >= fromMillis && event.getTimestampMillis() <= toMillis) {
+                    events.add(event);
+                }
+            });
+        }
+        events.sort(Comparator.comparingLong(AuditEvent::getTimestampMillis));
+        return events;
+    }
+
+    // Every event that touched the entity, oldest first
+    public List<AuditEvent> findByEntity(String entityType, long entityId) throws IOException {
+        return findByEntity(entityType, entityId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    public List<AuditEvent> findByEntity(String entityType, long entityId, long fromMillis, long toMillis) throws IOException {
+        long[] offsets;
+        long end;
+        synchronized (this) {
+            Offsets found = entities.get(entityKey(entityType, entityId));
+            offsets = found == null ? new long[0] : Arrays.copyOf(found.offsets, found.size);
+            end = dataEnd;
+        }
+        List<AuditEvent> events = new ArrayList<>();
+        for (long offset : offsets) {
+            String line = readRecord(offset, end);
+            AuditEvent event = line == null ? null : parse(line);
+            if (event != null && event.getTimestampMillis() >= fromMillis && event.getTimestampMillis() <= toMillis) {
+                events.add(event);
+            }
+        }
+        events.sort(Comparator.comparingLong(AuditEvent::getTimestampMillis));
+        return events;
+    }
+
+    @Override
+    public synchronized String summary() {
+        return "Audit event store: records=" + records + ", time blocks=" + blocks.size()
+                + ", entities indexed=" + entities.size() + ", segments=" + segments.size()
+                + ", data bytes=" + (dataEnd - segments.get(0).base) + "\n";
+    }
+
+    // A rolled segment is complete on disk before it is renamed
+    private void roll(long now) throws IOException {
+        data.force(false);
+        long base = segments.get(segments.size() - 1).base;
+        Path rolled = dataPath.resolveSibling(segmentName(base));
+        synchronized (this) {
+            data.close();
+            Files.move(dataPath, rolled);
+            segments.set(segments.size() - 1, new Segment(base, rolled, FileChannel.open(rolled, StandardOpenOption.READ)));
+            data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(new Segment(dataEnd, dataPath, data));
+        }
+        segmentEndsAt = periodEnd(now);
+        if (deleteExpiredSegments()) {
+            dropExpiredEntries();
+        }
+    }
+
+    // Deletes the oldest rolled segments retention no longer keeps; true when there were any
+    private boolean deleteExpiredSegments() {
+        List<Segment> expired = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        synchronized (this) {
+            int rolled = segments.size() - 1;
+            while (expired.size() < rolled) {
+                Segment oldest = segments.get(expired.size());
+                boolean tooMany = maxSegments > 0 && rolled - expired.size() > maxSegments;
+                boolean tooOld = retentionMillis > 0 && lastModified(oldest.path) < cutoff;
+                if (!tooMany && !tooOld) {
+                    break;
+                }
+                expired.add(oldest);
+            }
+            segments.subList(0, expired.size()).clear();
+        }
+        for (Segment segment : expired) {
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.out.println("Error with audit: could not delete " + segment.path + ": " + e);
+            }
+        }
+        return !expired.isEmpty();
+    }
+
+    // Forgets the blocks and entity offsets of deleted segments, in memory and in the index files
+    private void dropExpiredEntries() throws IOException {
+        synchronized (this) {
+            long firstOffset = segments.get(0).base;
+            int expired = 0;
+            while (expired < blocks.size() && blocks.get(expired).end <= firstOffset) {
+                expired++;
+            }
+            blocks.subList(0, expired).clear();
+            records -= (long) expired * BLOCK_SIZE;
+            entities.values().removeIf(offsets -> offsets.dropBefore(firstOffset));
+        }
+        timeIndex.close();
+        writeTimeIndex();
+        timeIndex = openForAppend(timeIndexPath);
+        entityIndex.close();
+        writeEntityIndex();
+        entityIndex = openForAppend(entityIndexPath);
+    }
+
+    // Caller holds the lock (or is the constructor). True when the record completed a block.
+    private boolean addToBlock(long timestamp, long offset, long end) {
+        openBlock.add(timestamp, end);
+        if (openBlock.count < BLOCK_SIZE) {
+            return false;
+        }
+        blocks.add(openBlock);
+        openBlock = new Block(end);
+        return true;
+    }
+
+    private void addToEntities(AuditEvent event, long offset) {
+        entities.computeIfAbsent(entityKey(event.getEntityType(), event.getEntityId()), key -> new Offsets()).add(offset);
+    }
+
+    private void appendEntityIndex(AuditEvent event, long offset) throws IOException {
+        entityIndex.write(event.getEntityType() + "\t" + event.getEntityId() + "\t" + offset + "\n");
+    }
+
+    private static void addRange(List<long[]> ranges, Block block, long fromMillis, long toMillis) {
+        if (block.count == 0 || block.maxTimestamp < fromMillis || block.minTimestamp > toMillis) {
+            return;
+        }
+        long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        // Neighbouring blocks are read in one go
+        if (last != null && last[1] == block.start) {
+            last[1] = block.end;
+        } else {
+            ranges.add(new long[]{block.start, block.end});
+        }
+    }
+
+    private static String entityKey(String entityType, long entityId) {
+        return entityType.toUpperCase(Locale.ROOT) + "\t" + entityId;
+    }
+
+    // Drops a record the previous run did not finish writing; returns the new end of the data
+    private long cutTornRecord() throws IOException {
+        long end = data.size();
+        ByteBuffer chunk = ByteBuffer.allocate(4096);
+        while (end > 0) {
+            long from = Math.max(0, end - chunk.capacity());
+            chunk.clear();
+            chunk.limit((int) (end - from));
+            while (chunk.hasRemaining() && data.read(chunk, from + chunk.position()) > 0) {
+                // keep reading
+            }
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) == '\n') {
+                    long complete = from + i + 1;
+                    if (complete < data.size()) {
+                        data.truncate(complete);
+                    }
+                    return complete;
+                }
+            }
+            end = from;
+        }
+        data.truncate(0);
+        return 0;
+    }
+
+    // Takes the complete blocks the index file has in order, up to the first one the data file does not back.
+    // The first may begin in a deleted segment; its records from firstOffset on are still there.
+    private long loadTimeIndex(long firstOffset) throws IOException {
+        long indexedEnd = firstOffset;
+        for (String line : readIndexFile(timeIndexPath)) {
+            String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                break;
+            }
+            try {
+                Block block = new Block(Long.parseLong(fields[2]));
+                block.minTimestamp = Long.parseLong(fields[0]);
+                block.maxTimestamp = Long.parseLong(fields[1]);
+                block.end = Long.parseLong(fields[3]);
+                block.count = BLOCK_SIZE;
+                if (block.end <= firstOffset) {
+                    continue;
+                }
+                boolean follows = blocks.isEmpty() ? block.start <= firstOffset : block.start == indexedEnd;
+                if (!follows || block.end > dataEnd) {
+                    break;
+                }
+                blocks.add(block);
+                indexedEnd = block.end;
+            } catch (NumberFormatException e) {
+                break;
+            }
+        }
+        records = (long) blocks.size() * BLOCK_SIZE;
+        return indexedEnd;
+    }
+
+    // Returns the offset of the last record the entity index covers
+    private long loadEntityIndex(long firstOffset) throws IOException {
+        long indexedTo = -1;
+        boolean expired = false;
+        for (String line : readIndexFile(entityIndexPath)) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                long offset = Long.parseLong(fields[2]);
+                if (offset < firstOffset) {
+                    expired = true;
+                    continue;
+                }
+                if (offset >= dataEnd) {
+                    continue;
+                }
+                Offsets offsets = entities.computeIfAbsent(entityKey(fields[0], Long.parseLong(fields[1])), key -> new Offsets());
+                // A record indexed twice (the tail is re-indexed after a crash) is kept once
+                if (offsets.size == 0 || offsets.offsets[offsets.size - 1] < offset) {
+                    offsets.add(offset);
+                }
+                indexedTo = Math.max(indexedTo, offset);
+            } catch (NumberFormatException e) {
+                // A torn line; the record is picked up again by the tail scan
+            }
+        }
+        // Segments deleted before the index was written out again
+        if (expired) {
+            writeEntityIndex();
+        }
+        return indexedTo;
+    }
+
+    // Oldest first; returns the offset the active data file starts at
+    private long loadRolledSegments() throws IOException {
+        List<Path> rolled = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(dataPath.getParent(), baseName + "-*" + extension)) {
+            for (Path segment : directory) {
+                if (segmentBase(segment) >= 0) {
+                    rolled.add(segment);
+                }
+            }
+        }
+        rolled.sort(Comparator.comparingLong(this::segmentBase));
+        long activeBase = 0;
+        for (Path segment : rolled) {
+            segments.add(new Segment(segmentBase(segment), segment, FileChannel.open(segment, StandardOpenOption.READ)));
+            activeBase = segmentBase(segment) + Files.size(segment);
+        }
+        return activeBase;
+    }
+
+    private String segmentName(long base) {
+        return baseName + "-" + String.format("%0" + OFFSET_DIGITS + "d", base) + extension;
+    }
+
+    // -1 when the file is not one of the rolled segments
+    private long segmentBase(Path segment) {
+        String name = segment.getFileName().toString();
+        String digits = name.substring(baseName.length() + 1, name.length() - extension.length());
+        if (digits.length() != OFFSET_DIGITS || !digits.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(digits);
+    }
+
+    private long firstRecordTime(long offset) throws IOException {
+        String line = readRecord(offset, dataEnd);
+        AuditEvent event = line == null ? null : parse(line);
+        return event == null ? System.currentTimeMillis() : event.getTimestampMillis();
+    }
+
+    private long periodEnd(long time) {
+        return AuditFile.periodEnd(time, segmentMillis, zone);
+    }
+
+    private static long lastModified(Path segment) {
+        try {
+            return Files.getLastModifiedTime(segment).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static List<String> readIndexFile(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (NoSuchFileException e) {
+            // Rebuilt from the data file
+        }
+        return lines;
+    }
+
+    private void writeTimeIndex() throws IOException {
+        Path partial = timeIndexPath.resolveSibling(timeIndexPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            for (Block block : blocks) {
+                writer.write(block.minTimestamp + "\t" + block.maxTimestamp + "\t" + block.start + "\t" + block.end + "\n");
+            }
+        }
+        Files.move(partial, timeIndexPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Only the writer changes the entities, so it reads them without the lock
+    private void writeEntityIndex() throws IOException {
+        Path partial = entityIndexPath.resolveSibling(entityIndexPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Offsets> entity : entities.entrySet()) {
+                Offsets offsets = entity.getValue();
+                for (int i = 0; i < offsets.size; i++) {
+                    writer.write(entity.getKey() + "\t" + offsets.offsets[i] + "\n");
+                }
+            }
+        }
+        Files.move(partial, entityIndexPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Starts on a fresh line, so a line torn by a crash is not glued to the next one
+    private static BufferedWriter openForAppend(Path path) throws IOException {
+        boolean torn = false;
+        if (Files.exists(path) && Files.size(path) > 0) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, channel.size() - 1);
+                torn = last.get(0) != '\n';
+            }
+        }
+        BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (torn) {
+            writer.write("\n");
+        }
+        return writer;
+    }
+
+    // Hands every complete line between from and to to the handler, with the offset it starts at. Segments end
+    // on a record boundary, so each is read on its own; what lies in deleted segments is skipped.
+    private void scan(long from, long to, ObjLongConsumer<String> handler) throws IOException {
+        List<Segment> covering = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i).base < to && segmentEnd(i) > from) {
+                    covering.add(segments.get(i));
+                    ends.add(segmentEnd(i));
+                }
+            }
+        }
+        for (int i = 0; i < covering.size(); i++) {
+            Segment segment = covering.get(i);
+            scan(segment, Math.max(from, segment.base), Math.min(to, ends.get(i)), handler);
+        }
+    }
+
+    private static void scan(Segment segment, long from, long to, ObjLongConsumer<String> handler) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_BYTES);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        long lineStart = from;
+        long position = from;
+        while (position < to) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), to - position));
+            int read = segment.channel.read(chunk, position - segment.base);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = chunk.get(i);
+                if (b == '\n') {
+                    handler.accept(line.toString(StandardCharsets.UTF_8), lineStart);
+                    line.reset();
+                    lineStart = position + i + 1;
+                } else {
+                    line.write(b);
+                }
+            }
+            position += read;
+        }
+    }
+
+    // Null when the record is not there, or no longer is
+    private String readRecord(long offset, long end) throws IOException {
+        FileChannel channel;
+        long base;
+        synchronized (this) {
+            int index = segmentIndex(offset);
+            if (index < 0) {
+                return null;
+            }
+            channel = segments.get(index).channel;
+            base = segments.get(index).base;
+            end = Math.min(end, segmentEnd(index));
+        }
+        int length = 256;
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, end - offset));
+            while (buffer.hasRemaining() && channel.read(buffer, offset - base + buffer.position()) > 0) {
+                // keep reading
+            }
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return new String(buffer.array(), 0, i, StandardCharsets.UTF_8);
+                }
+            }
+            if (offset + buffer.position() >= end) {
+                return null;
+            }
+            length *= 2;
+        }
+    }
+
+    // Caller holds the lock; the segment holding offset, or -1 when it was deleted
+    private int segmentIndex(long offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segments.get(middle).base <= offset) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    // Caller holds the lock
+    private long segmentEnd(int index) {
+        return index + 1 < segments.size() ? segments.get(index + 1).base : dataEnd;
+    }
+
+    // Also the payload of a record in the hash-chained log (AuditChainLog)
+    static String format(AuditEvent event) {
+        return event.getTimestampMillis()
+                + "\t" + (event.getEntityType() == null ? NONE : event.getEntityType())
+                + "\t" + event.getEntityId()
+                + "\t" + (event.getOperation() == null ? NONE : event.getOperation())
+                + "\t" + event.getOutcome()
+                + "\t" + event.getLatencyMillis()
+                + "\t" + event.getCount()
+                + "\t" + event.getDurationMillis()
+                + "\t" + escape(event.getAction())
+                + "\n";
+    }
+
+    static AuditEvent parse(String line) {
+        String[] fields = line.split("\t", 9);
+        if (fields.length != 9) {
+            return null;
+        }
+        try {
+            return new AuditEvent(unescape(fields[8]), Long.parseLong(fields[0]),
+                    NONE.equals(fields[1]) ? null : fields[1], Long.parseLong(fields[2]),
+                    NONE.equals(fields[3]) ? null : fields[3], AuditOutcome.valueOf(fields[4]),
+                    Long.parseLong(fields[5]), Integer.parseInt(fields[6]), Long.parseLong(fields[7]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String text) {
+        if (text.indexOf('\\') < 0 && text.indexOf('\t') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static int utf8Length(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static final class Block {
+        private final long start;
+        private long end;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private int count;
+
+        private Block(long start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        private void add(long timestamp, long recordEnd) {
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            end = recordEnd;
+            count++;
+        }
+    }
+
+    private static final class Segment {
+        // Offset of its first record in the whole history
+        private final long base;
+        private final Path path;
+        private final FileChannel channel;
+
+        private Segment(long base, Path path, FileChannel channel) {
+            this.base = base;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Offsets {
+        private long[] offsets = new long[4];
+        private int size;
+
+        private void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        // Offsets are added in order; true when none is left
+        private boolean dropBefore(long firstOffset) {
+            int expired = 0;
+            while (expired < size && offsets[expired] < firstOffset) {
+                expired++;
+            }
+            if (expired > 0) {
+                offsets = Arrays.copyOfRange(offsets, expired, expired + Math.max(4, size - expired));
+                size -= expired;
+            }
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package services.audit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// One in-process consumer of live audit events (see AuditSubscriptions). The events its filter accepts wait in a
+// queue of its own and are handed to the listener, one at a time and in order, on a daemon thread of its own, so
+// a slow or failing listener holds up nobody else. When the queue is full the event is dropped for this
+// subscriber alone and counted. Closing it delivers what is already queued and stops the thread.
+public final class AuditSubscription implements AutoCloseable {
+    private static final long POLL_MILLIS = 100;
+
+    private final String name;
+    private final Predicate<AuditEvent> filter;
+    private final Consumer<AuditEvent> listener;
+    private final BlockingQueue<AuditEvent> queue;
+    private final Thread deliverer;
+    private final AuditSubscriptions owner;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // Filters and listeners that threw
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean closed;
+
+    AuditSubscription(AuditSubscriptions owner, String name, Predicate<AuditEvent> filter, int queueCapacity,
+                      Consumer<AuditEvent> listener) {
+        this.owner = owner;
+        this.name = name;
+        this.filter = filter;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.deliverer = new Thread(this::deliver, "audit-subscriber-" + name);
+        deliverer.setDaemon(true);
+        deliverer.start();
+    }
+
+    // Called by the audit writer thread; never waits
+    void offer(AuditEvent event) {
+        if (closed) {
+            return;
+        }
+        boolean wanted;
+        try {
+            wanted = filter.test(event);
+        } catch (RuntimeException e) {
+            errors.increment();
+            return;
+        }
+        if (wanted && !queue.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    private void deliver() {
+        while (!closed || !queue.isEmpty()) {
+            AuditEvent event;
+            try {
+                event = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                closed = true;
+                continue;
+            }
+            if (event == null) {
+                continue;
+            }
+            try {
+                listener.accept(event);
+                delivered.increment();
+            } catch (RuntimeException e) {
+                errors.increment();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        owner.remove(this);
+        if (Thread.currentThread() != deliverer) {
+            try {
+                deliverer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    String summary() {
+        return "Audit subscriber " + name + ": delivered=" + delivered.sum() + ", dropped=" + dropped.sum()
+                + ", queued=" + queue.size() + "/" + (queue.size() + queue.remainingCapacity())
+                + ", errors=" + errors.sum() + "\n";
+    }
+}
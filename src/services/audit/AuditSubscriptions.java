@@ -0,0 +1,58 @@
+package services.audit;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Hands live events to in-process subscribers: a dashboard counter, an anomaly detector, a socket tailer. Once
+// the pipeline's sink has taken a batch, the audit writer thread offers it to every subscription, which keeps what its filter accepts in
+// a bounded queue of its own (see AuditSubscription); a full queue drops events for that subscriber only. Nothing
+// here waits, so subscribers never hold up the writer, and so never the callers of logAction either. Subscribers
+// see an event once the sink has written it, coalesced runs once they end, and possibly before a flush or force
+// has put it on disk. A batch the sink failed is not delivered at all.
+public class AuditSubscriptions {
+    private final List<AuditSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    // name only labels the delivery thread and the summary line; numbered when null
+    public AuditSubscription subscribe(String name, Predicate<AuditEvent> filter, int queueCapacity,
+                                       Consumer<AuditEvent> listener) {
+        String label = name == null ? String.valueOf(created.incrementAndGet()) : name;
+        AuditSubscription subscription = new AuditSubscription(this, label, filter == null ? event -> true : filter,
+                queueCapacity, listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void remove(AuditSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    void deliver(List<AuditEvent> batch) {
+        for (AuditSubscription subscription : subscriptions) {
+            for (AuditEvent event : batch) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    void close() {
+        for (AuditSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+    }
+
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (AuditSubscription subscription : subscriptions) {
+            summary.append(subscription.summary());
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package services.audit;
+
+// What a caller does when the audit buffer is full
+public enum BackpressurePolicy {
+    // Wait for the writer to make room; nothing is lost, but a stalled disk stalls the callers
+    BLOCK,
+    // Give up on the event at once and count it
+    DROP,
+    // Keep one in every sampleRate of the events that find the buffer full (waiting for room like BLOCK)
+    // and drop the rest, so a flood still leaves a trace of what it was made of
+    SAMPLE;
+
+    public static BackpressurePolicy fromName(String name) {
+        for (BackpressurePolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name.trim())) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown audit backpressure policy '" + name + "', expected one of block, drop, sample");
+    }
+}
@@ -0,0 +1,200 @@
+package services.audit;
+
+import database.UnitOfWork;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Copies audit events into the AUDIT table, so they can be queried next to the clinic data. Rows go in as JDBC
+// batches of up to batchSize in one transaction: as soon as that many events have gathered, and otherwise
+// whatever has gathered when the pipeline flushes (once per audit flush interval). The inserts run on a thread of
+// their own: write and flush only queue the events and wake it, so a database that is down or a pool that is
+// exhausted never holds up the audit writer, the other sinks, or the callers of logAction behind them. While
+// the database is unavailable the events are kept for the next attempt, at most maxPending of them; beyond that
+// the oldest are dropped and counted. Attempts after a failure back off from RETRY_MIN_MILLIS to RETRY_MAX_MILLIS.
+public class DatabaseAuditSink implements AuditSink {
+    static final String INSERT_AUDIT = "INSERT INTO AUDIT(logged_at, action, entity_type, entity_id, operation, " +
+            "outcome, latency_ms, repeat_count, duration_ms) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // The width of AUDIT.action
+    private static final int MAX_ACTION_LENGTH = 500;
+    private static final long RETRY_MIN_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+    // How long close waits for the last inserts before counting what is left as dropped
+    private static final long CLOSE_WAIT_MILLIS = 10_000;
+
+    private final int batchSize;
+    private final int maxPending;
+    private final Thread inserter;
+
+    // Guarded by this
+    private final ArrayDeque<AuditEvent> pending = new ArrayDeque<>();
+    private boolean flushRequested;
+    private boolean closed;
+
+    private final LongAdder inserted = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile int pendingCount;
+
+    public DatabaseAuditSink(int batchSize, int maxPending) {
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPending = Math.max(this.batchSize, maxPending);
+        this.inserter = new Thread(this::insertEvents, "audit-database");
+        inserter.setDaemon(true);
+        inserter.start();
+    }
+
+    @Override
+    public synchronized void write(List<AuditEvent> batch) {
+        pending.addAll(batch);
+        while (pending.size() > maxPending) {
+            pending.removeFirst();
+            dropped.increment();
+        }
+        pendingCount = pending.size();
+        if (pending.size() >= batchSize) {
+            notifyAll();
+        }
+    }
+
+    // Does not wait for the inserts
+    @Override
+    public synchronized void flush() {
+        if (!pending.isEmpty()) {
+            flushRequested = true;
+            notifyAll();
+        }
+    }
+
+    // The table is a copy for queries; the files are what a force makes durable
+    @Override
+    public void sync() {
+        flush();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            inserter.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            dropped.add(pending.size());
+            pending.clear();
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public String summary() {
+        return "Audit table: inserted=" + inserted.sum() + ", batches=" + batches.sum() + ", pending=" + pendingCount
+                + ", failed inserts=" + failures.sum() + ", dropped=" + dropped.sum() + "\n";
+    }
+
+    // Inserts full batches, or everything pending once a flush asks for it; once closed, one last attempt
+    private void insertEvents() {
+        long retryMillis = 0;
+        boolean failing = false;
+        while (true) {
+            List<AuditEvent> rows;
+            boolean stopping;
+            synchronized (this) {
+                try {
+                    if (retryMillis > 0 && !closed) {
+                        wait(retryMillis);
+                    }
+                    while (!closed && pending.size() < batchSize && !(flushRequested && !pending.isEmpty())) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                rows = new ArrayList<>(Math.min(batchSize, pending.size()));
+                Iterator<AuditEvent> events = pending.iterator();
+                while (rows.size() < batchSize && events.hasNext()) {
+                    rows.add(events.next());
+                }
+                stopping = closed;
+            }
+            try {
+                insert(rows);
+            } catch (SQLException e) {
+                failures.increment();
+                if (!failing) {
+                    System.out.println("Error with audit: could not insert audit events into AUDIT, keeping up to "
+                            + maxPending + " for later: " + e.getMessage());
+                    failing = true;
+                }
+                if (stopping) {
+                    return;
+                }
+                retryMillis = Math.min(RETRY_MAX_MILLIS, Math.max(RETRY_MIN_MILLIS, retryMillis * 2));
+                continue;
+            }
+            failing = false;
+            retryMillis = 0;
+            inserted.add(rows.size());
+            batches.increment();
+            synchronized (this) {
+                // The oldest may have been dropped to make room meanwhile; those are already counted
+                for (AuditEvent row : rows) {
+                    if (pending.peekFirst() == row) {
+                        pending.removeFirst();
+                    }
+                }
+                if (pending.isEmpty()) {
+                    flushRequested = false;
+                }
+                pendingCount = pending.size();
+            }
+        }
+    }
+
+    private static void insert(List<AuditEvent> rows) throws SQLException {
+        try (UnitOfWork unitOfWork = UnitOfWork.begin()) {
+            Connection connection = unitOfWork.getConnection();
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_AUDIT)) {
+                for (AuditEvent event : rows) {
+                    bind(statement, event);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            unitOfWork.commit();
+        }
+    }
+
+    private static void bind(PreparedStatement statement, AuditEvent event) throws SQLException {
+        String action = event.getAction();
+        statement.setTimestamp(1, new Timestamp(event.getTimestampMillis()));
+        statement.setString(2, action.length() > MAX_ACTION_LENGTH ? action.substring(0, MAX_ACTION_LENGTH) : action);
+        statement.setString(3, event.getEntityType());
+        if (event.getEntityId() == AuditEvent.NO_ENTITY_ID) {
+            statement.setNull(4, Types.BIGINT);
+        } else {
+            statement.setLong(4, event.getEntityId());
+        }
+        statement.setString(5, event.getOperation());
+        statement.setString(6, event.getOutcome().name());
+        statement.setLong(7, event.getLatencyMillis());
+        statement.setInt(8, event.getCount());
+        statement.setLong(9, event.getDurationMillis());
+    }
+}
@@ -0,0 +1,33 @@
+package services.audit;
+
+// When an audit event is safe, traded against what it costs the callers. Measured with AuditBenchmark, CSV log
+// plus event store, on a single-vCPU VM with a virtio disk; run it on the target machine, as fsync in particular
+// depends on the disk:
+//
+//                 8 callers                                  1 caller
+//     none    0.2-0.3M events/s, p50 0.2 us, p99 0.8 us      0.6M events/s, p50 0.2 us, p99 0.4 us
+//     flush   0.55M events/s,    p50 0.2 us, p99 0.6 us      0.7M events/s, p50 0.2 us, p99 0.4 us
+//     fsync   23k events/s,      p50 0.28 ms, p99 2.1 ms     5.5k events/s, p50 0.16 ms, p99 0.5 ms
+//
+// none and flush are the same within the noise: a flush is one write per interval. Under fsync the eight callers
+// get four times the throughput of one because they share forces.
+public enum DurabilityMode {
+    // Written to the files when their buffers fill and at shutdown; a crash loses whatever was still buffered
+    NONE,
+    // Handed to the operating system at least once per flush interval; survives the process dying, not the
+    // machine losing power
+    FLUSH,
+    // logAction returns only once the event has been forced to disk. Callers that are waiting at the same time
+    // share one force: while one is in progress the next callers' events gather and go down with the next one.
+    // Coalescing is off in this mode, since a folded event is only written once its run ends.
+    FSYNC;
+
+    public static DurabilityMode fromName(String name) {
+        for (DurabilityMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name.trim())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown audit durability '" + name + "', expected one of none, flush, fsync");
+    }
+}
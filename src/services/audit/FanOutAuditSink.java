@@ -0,0 +1,94 @@
+package services.audit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Feeds every batch to several sinks in turn. A sink that fails is reported and counted without keeping the
+// batch from the others, so a database outage does not cost the CSV its records; a batch only counts as lost
+// (the IOException reaches the pipeline) when every sink failed it.
+public class FanOutAuditSink implements AuditSink {
+    private final List<AuditSink> sinks;
+    private final List<LongAdder> failures = new ArrayList<>();
+
+    public FanOutAuditSink(List<AuditSink> sinks) {
+        this.sinks = new ArrayList<>(sinks);
+        for (int i = 0; i < sinks.size(); i++) {
+            failures.add(new LongAdder());
+        }
+    }
+
+    @Override
+    public void write(List<AuditEvent> batch) throws IOException {
+        each(sink -> sink.write(batch), false);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        each(AuditSink::flush, false);
+    }
+
+    // Unlike a write, a sync only counts when every sink made it: a caller told its event is on disk must be
+    // able to rely on that whichever sink it looks in
+    @Override
+    public void sync() throws IOException {
+        each(AuditSink::sync, true);
+    }
+
+    // Closes every sink even when one of them fails to
+    @Override
+    public void close() throws IOException {
+        IOException firstFailure = null;
+        for (AuditSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                } else {
+                    firstFailure.addSuppressed(e);
+                }
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+
+    @Override
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < sinks.size(); i++) {
+            summary.append(sinks.get(i).summary());
+            long count = failures.get(i).sum();
+            if (count > 0) {
+                summary.append("Audit sink ").append(sinks.get(i).getClass().getSimpleName())
+                        .append(" failed ").append(count).append(" times\n");
+            }
+        }
+        return summary.toString();
+    }
+
+    private void each(SinkCall call, boolean all) throws IOException {
+        IOException lastFailure = null;
+        int failed = 0;
+        for (int i = 0; i < sinks.size(); i++) {
+            try {
+                call.apply(sinks.get(i));
+            } catch (IOException e) {
+                failures.get(i).increment();
+                System.out.println("Error with audit: " + sinks.get(i).getClass().getSimpleName() + ": " + e);
+                lastFailure = e;
+                failed++;
+            }
+        }
+        if (lastFailure != null && (all || failed == sinks.size())) {
+            throw lastFailure;
+        }
+    }
+
+    private interface SinkCall {
+        void apply(AuditSink sink) throws IOException;
+    }
+}